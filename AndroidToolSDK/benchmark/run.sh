@@ -0,0 +1,19 @@
+#!/bin/sh
+# 在JVM上编译并运行benchmark，不需要设备：
+#     ANDROID_ALL_JAR=/path/to/android-all-5.0.0_r2-robolectric-1.jar benchmark/run.sh <主类> [参数...]
+# ANDROID_ALL_JAR必须是带有实现的android-all(API 21)，SDK中的android.jar只有方法签名，不能运行。
+# 依赖native方法的几个类(Log、SystemProperties、Build、Handler、Looper)由benchmark/stubs替换。
+set -e
+cd "$(dirname "$0")/.."
+: "${ANDROID_ALL_JAR:?set ANDROID_ALL_JAR to an android-all jar (API 21)}"
+OUT=build/benchmark
+LIBS="$ANDROID_ALL_JAR:libs/android-support-v4.jar"
+rm -rf "$OUT"
+mkdir -p "$OUT/main" "$OUT/stubs" "$OUT/bench"
+# db和task使用GBK编码，MainActivity依赖aapt生成的R，benchmark都不需要，不参与编译
+find src -name '*.java' -not -path '*/db/*' -not -path '*/task/*' -not -name MainActivity.java > "$OUT/main.txt"
+echo benchmark/stubs/com/tom/basecore/BuildConfig.java >> "$OUT/main.txt"
+javac -encoding UTF-8 -nowarn -d "$OUT/main" -cp "$LIBS" @"$OUT/main.txt"
+javac -encoding UTF-8 -nowarn -d "$OUT/stubs" $(find benchmark/stubs/android -name '*.java')
+javac -encoding UTF-8 -nowarn -d "$OUT/bench" -cp "$OUT/main:$LIBS" $(find benchmark/src -name '*.java')
+java -cp "$OUT/stubs:$OUT/bench:$OUT/main:$LIBS" "$@"
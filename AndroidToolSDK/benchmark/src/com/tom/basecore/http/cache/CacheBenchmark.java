@@ -0,0 +1,170 @@
+package com.tom.basecore.http.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Description:对比{@link DiskBasedCache}(每条缓存一个文件)和{@link SegmentBasedCache}(追加写入segment)
+ * <pre>
+ *     1、吞吐量：写入{@link #ENTRIES}条256-1023字节的缓存，乱序读取，重新打开后再读取，删除1/5，最后清空，
+ *        关闭内存缓存，输出每次操作的耗时和磁盘上的文件数，共{@link #ROUNDS}轮
+ *     2、磁盘占用：在{@link #BUDGET_BYTES}的总大小下反复覆盖和删除同一批key，输出segment目录的最大实际大小
+ *     运行：ANDROID_ALL_JAR=... benchmark/run.sh com.tom.basecore.http.cache.CacheBenchmark [工作目录]
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-14 11:00
+ */
+public class CacheBenchmark {
+    private static final int ENTRIES = 10000;
+    private static final int ROUNDS = 3;
+    private static final int MAX_SIZE_BYTES = 64 * 1024 * 1024;
+    private static final int BUDGET_BYTES = 2 * 1024 * 1024;
+
+    private static Cache create(boolean segment, File dir, int maxSize) {
+        return segment ? new SegmentBasedCache(dir, maxSize, 0) : new DiskBasedCache(dir, maxSize, 0);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static long countFiles(File file) {
+        File[] children = file.listFiles();
+        long count = 0;
+        if (children != null) {
+            for (File child : children) {
+                count += child.isDirectory() ? countFiles(child) : 1;
+            }
+        }
+        return count;
+    }
+
+    private static long directorySize(File file) {
+        File[] children = file.listFiles();
+        long size = 0;
+        if (children != null) {
+            for (File child : children) {
+                size += child.isDirectory() ? directorySize(child) : child.length();
+            }
+        }
+        return size;
+    }
+
+    private static CacheEntry newEntry(Random random, int index) {
+        CacheEntry entry = new CacheEntry();
+        entry.data = new byte[256 + random.nextInt(768)];
+        random.nextBytes(entry.data);
+        entry.etag = "\"" + index + "\"";
+        entry.serverDate = System.currentTimeMillis();
+        entry.ttl = entry.serverDate + 3600 * 1000;
+        entry.softTtl = entry.ttl;
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        headers.put("ETag", entry.etag);
+        entry.responseHeaders = headers;
+        return entry;
+    }
+
+    private static void throughput(File root, int round, boolean segment) {
+        File dir = new File(root, segment ? "segment" : "file");
+        delete(dir);
+        Random random = new Random(42);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < ENTRIES; i++) {
+            keys.add("https://api.example.com/v1/item?id=" + i);
+        }
+        Cache cache = create(segment, dir, MAX_SIZE_BYTES);
+        long start = System.nanoTime();
+        cache.initialize();
+        for (int i = 0; i < ENTRIES; i++) {
+            cache.put(keys.get(i), newEntry(random, i));
+        }
+        long put = System.nanoTime() - start;
+
+        Collections.shuffle(keys, new Random(7));
+        int hits = 0;
+        start = System.nanoTime();
+        for (String key : keys) {
+            if (cache.get(key) != null) {
+                hits++;
+            }
+        }
+        long get = System.nanoTime() - start;
+
+        Cache reopened = create(segment, dir, MAX_SIZE_BYTES);
+        start = System.nanoTime();
+        reopened.initialize();
+        long init = System.nanoTime() - start;
+        int reopenHits = 0;
+        start = System.nanoTime();
+        for (String key : keys) {
+            if (reopened.get(key) != null) {
+                reopenHits++;
+            }
+        }
+        long reopenGet = System.nanoTime() - start;
+
+        long files = countFiles(dir);
+        int removed = ENTRIES / 5;
+        start = System.nanoTime();
+        for (int i = 0; i < removed; i++) {
+            reopened.remove(keys.get(i));
+        }
+        long remove = System.nanoTime() - start;
+        start = System.nanoTime();
+        reopened.clear();
+        long clear = System.nanoTime() - start;
+
+        System.out.printf("round %d %-7s put %6.1fus get %5.1fus init %6.1fms reopen-get %5.1fus remove %5.1fus "
+                        + "clear %6.1fms files %5d hits %d/%d%n",
+                round, segment ? "segment" : "file", put / 1e3 / ENTRIES, get / 1e3 / ENTRIES, init / 1e6,
+                reopenGet / 1e3 / ENTRIES, remove / 1e3 / removed, clear / 1e6, files, hits, reopenHits);
+    }
+
+    private static void footprint(File root) {
+        File dir = new File(root, "budget");
+        delete(dir);
+        Random random = new Random(11);
+        Cache cache = create(true, dir, BUDGET_BYTES);
+        cache.initialize();
+        long maxDisk = 0;
+        int keys = 1500;
+        for (int i = 0; i < ENTRIES * 2; i++) {
+            String key = "https://api.example.com/v1/feed?page=" + random.nextInt(keys);
+            if (random.nextInt(10) == 0) {
+                cache.remove(key);
+            } else {
+                cache.put(key, newEntry(random, i));
+            }
+            if (i % 100 == 0) {
+                maxDisk = Math.max(maxDisk, directorySize(dir));
+            }
+        }
+        maxDisk = Math.max(maxDisk, directorySize(dir));
+        System.out.printf("segment footprint: budget %d bytes, max on disk %d bytes (%.2fx)%n",
+                BUDGET_BYTES, maxDisk, (double) maxDisk / BUDGET_BYTES);
+        cache.clear();
+    }
+
+    public static void main(String[] args) {
+        File root = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"), "cache-benchmark");
+        for (int round = 0; round < ROUNDS; round++) {
+            throughput(root, round, false);
+            throughput(root, round, true);
+        }
+        footprint(root);
+        delete(root);
+        System.exit(0);
+    }
+}
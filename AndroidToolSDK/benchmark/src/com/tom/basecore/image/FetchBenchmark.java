@@ -0,0 +1,180 @@
+package com.tom.basecore.image;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Description:{@link ImageFetcher}下载到http缓存的吞吐量
+ * <pre>
+ *     1、本地用JDK的HttpServer模拟图片服务器，每个请求等待指定的毫秒数(默认100)后返回32KB
+ *     2、1、4、8个线程各自下载{@link #IMAGES}张不同的图片，对比：
+ *        serial：所有下载共用一把锁，相当于user-001之前在mHttpDiskCacheLock中下载
+ *        per-key：当前的实现，只有相同的key互相等待
+ *     3、8个线程同时下载同一个url，输出服务器实际收到的请求数，应该为1
+ *     ImageFetcher需要Context才能创建，这里跳过构造方法，只设置下载用到的字段
+ *     运行：ANDROID_ALL_JAR=... benchmark/run.sh com.tom.basecore.image.FetchBenchmark [延迟毫秒数]
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-14 14:00
+ */
+public class FetchBenchmark {
+    private static final int IMAGES = 40;
+    private static final int BODY_SIZE = 32 * 1024;
+    private static final int[] THREADS = {1, 4, 8};
+
+    private static final AtomicInteger sServerHits = new AtomicInteger();
+
+    private static File sRoot;
+
+    private static ImageFetcher newFetcher() throws Exception {
+        File dir = new File(sRoot, "http-" + System.nanoTime());
+        dir.mkdirs();
+        Field unsafeField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        Object unsafe = unsafeField.get(null);
+        Method allocate = unsafe.getClass().getMethod("allocateInstance", Class.class);
+        ImageFetcher fetcher = (ImageFetcher) allocate.invoke(unsafe, ImageFetcher.class);
+        set(fetcher, "mDownloadsInFlight", new HashMap<Object, Object>());
+        set(fetcher, "mHttpDiskCacheLock", new Object());
+        set(fetcher, "mHttpDiskCacheStarting", false);
+        set(fetcher, "mHttpDiskCache", DiskLruCache.open(dir, 1, 1, 200L * 1024 * 1024));
+        return fetcher;
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = ImageFetcher.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static Method downloadMethod() throws Exception {
+        Method method = ImageFetcher.class.getDeclaredMethod("downloadToHttpCache", String.class, String.class);
+        method.setAccessible(true);
+        return method;
+    }
+
+    private static HttpServer startServer(final int delayMillis) throws IOException {
+        final byte[] body = new byte[BODY_SIZE];
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                sServerHits.incrementAndGet();
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    private static void throughput(String base, int threads, final boolean serial) throws Exception {
+        final ImageFetcher fetcher = newFetcher();
+        final Method download = downloadMethod();
+        final Object globalLock = new Object();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < IMAGES; i++) {
+            final String url = base + "/img" + i;
+            final String key = "k" + i;
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (serial) {
+                        synchronized (globalLock) {
+                            return download.invoke(fetcher, url, key);
+                        }
+                    }
+                    return download.invoke(fetcher, url, key);
+                }
+            }));
+        }
+        int success = 0;
+        for (Future<Object> future : futures) {
+            if (Boolean.TRUE.equals(future.get())) {
+                success++;
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        executor.shutdown();
+        System.out.printf("threads=%d %-7s %d/%d images in %5d ms (%6.1f img/s)%n", threads,
+                serial ? "serial" : "per-key", success, IMAGES, millis, IMAGES * 1000.0 / Math.max(millis, 1));
+    }
+
+    private static void sameUrl(String base) throws Exception {
+        sServerHits.set(0);
+        final ImageFetcher fetcher = newFetcher();
+        final Method download = downloadMethod();
+        final String url = base + "/same";
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return download.invoke(fetcher, url, "same");
+                }
+            }));
+        }
+        int success = 0;
+        for (Future<Object> future : futures) {
+            if (Boolean.TRUE.equals(future.get())) {
+                success++;
+            }
+        }
+        executor.shutdown();
+        System.out.printf("same url x8: server hits=%d successes=%d%n", sServerHits.get(), success);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int delayMillis = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        sRoot = new File(System.getProperty("java.io.tmpdir"), "fetch-benchmark");
+        delete(sRoot);
+        HttpServer server = startServer(delayMillis);
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            for (int threads : THREADS) {
+                throughput(base, threads, true);
+                throughput(base, threads, false);
+            }
+            sameUrl(base);
+        } finally {
+            server.stop(0);
+            delete(sRoot);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,251 @@
+package com.tom.basecore.image;
+
+import com.tom.basecore.thread.ThreadPoolManager;
+import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Description:模拟快速滑动列表时图片加载的线程数和首屏图片的显示时间
+ * <pre>
+ *     1、{@link #WORKERS}个ImageWorker，每个对应一个列表，列表有{@link #VISIBLE}个ImageView循环复用，
+ *        每{@link #BIND_INTERVAL}毫秒绑定下一行，一共{@link #ROWS}行
+ *     2、每张图片依次读取磁盘{@link #DISK_MILLIS}ms、下载{@link #NETWORK_MILLIS}ms、解码{@link #DECODE_MILLIS}ms，
+ *        ImageView绑定到其他行后，它之前的加载不再需要
+ *     3、对比三种实现：
+ *        cached：每个ImageWorker一个createCacheThreadPool，绑定新的行时取消旧的任务(user-021之前)
+ *        priority：每个ImageWorker一个createPriorityThreadPool(1, 2, 32, 1)，队列满时丢弃优先级最低的任务(user-005)
+ *        pipeline：所有ImageWorker共享{@link ImagePipeline}
+ *     4、输出滑动期间的线程数峰值、滑动停止后最后一屏第一张图片和全部图片显示的时间，以及最后一屏没有显示的图片数
+ *     运行：ANDROID_ALL_JAR=... benchmark/run.sh com.tom.basecore.image.PipelineBenchmark
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-14 15:20
+ */
+public class PipelineBenchmark {
+    private static final int WORKERS = 3;
+    private static final int VISIBLE = 8;
+    private static final int ROWS = 200;
+    private static final int BIND_INTERVAL = 8;
+    private static final int DISK_MILLIS = 5;
+    private static final int NETWORK_MILLIS = 80;
+    private static final int DECODE_MILLIS = 15;
+    /** 滑动停止后最多等待最后一屏显示的时间 */
+    private static final long SETTLE_TIMEOUT = 10000;
+
+    /**
+     * 一个复用的ImageView，记录当前绑定的行和显示的时间
+     */
+    private static final class Slot {
+        volatile int mRow = -1;
+        volatile long mShownAt;
+        volatile Future<?> mFuture;
+
+        boolean isBoundTo(int row) {
+            return mRow == row;
+        }
+
+        void show(int row) {
+            synchronized (this) {
+                if (mRow == row && mShownAt == 0) {
+                    mShownAt = System.nanoTime();
+                }
+            }
+        }
+
+        void bind(int row) {
+            synchronized (this) {
+                mRow = row;
+                mShownAt = 0;
+            }
+        }
+    }
+
+    private interface Loader {
+        void load(Slot slot, int row);
+
+        void shutdown() throws InterruptedException;
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 在一个线程中依次完成读取磁盘、下载和解码，每一步之前检查ImageView是否已经绑定到其他行
+     */
+    private static void loadInline(Slot slot, int row) {
+        if (!slot.isBoundTo(row) || !sleep(DISK_MILLIS)) {
+            return;
+        }
+        if (!slot.isBoundTo(row) || !sleep(NETWORK_MILLIS)) {
+            return;
+        }
+        if (!slot.isBoundTo(row) || !sleep(DECODE_MILLIS)) {
+            return;
+        }
+        slot.show(row);
+    }
+
+    private static final class ExecutorLoader implements Loader {
+        private final XThreadPoolExecutor mExecutor;
+
+        ExecutorLoader(XThreadPoolExecutor executor) {
+            this.mExecutor = executor;
+        }
+
+        @Override
+        public void load(final Slot slot, final int row) {
+            Future<?> previous = slot.mFuture;
+            if (previous != null) {
+                previous.cancel(true);
+            }
+            XRunnable<Void> runnable = new XRunnable<Void>() {
+                @Override
+                public void run() {
+                    loadInline(slot, row);
+                }
+            };
+            runnable.setPriority(ImageWorker.PRIORITY_VISIBLE);
+            slot.mFuture = mExecutor.submit(runnable);
+        }
+
+        @Override
+        public void shutdown() throws InterruptedException {
+            mExecutor.shutdownNow();
+            mExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static final class PipelineLoader implements Loader {
+        private final ImagePipeline mPipeline = ImagePipeline.getInstance();
+
+        @Override
+        public void load(final Slot slot, final int row) {
+            mPipeline.submit(ImagePipeline.STAGE_DISK, new ImagePipeline.Job() {
+                {
+                    setPriority(ImageWorker.PRIORITY_VISIBLE);
+                }
+
+                @Override
+                boolean isStale() {
+                    return !slot.isBoundTo(row);
+                }
+
+                @Override
+                void run(int stage) {
+                    switch (stage) {
+                        case ImagePipeline.STAGE_DISK:
+                            sleep(DISK_MILLIS);
+                            mPipeline.submit(ImagePipeline.STAGE_NETWORK, this);
+                            break;
+                        case ImagePipeline.STAGE_NETWORK:
+                            sleep(NETWORK_MILLIS);
+                            mPipeline.submit(ImagePipeline.STAGE_DECODE, this);
+                            break;
+                        case ImagePipeline.STAGE_DECODE:
+                            sleep(DECODE_MILLIS);
+                            slot.show(row);
+                            break;
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            //流水线是全局共享的，空闲的线程超时后自己退出
+        }
+    }
+
+    private static void fling(String name, Loader[] loaders) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Slot[][] slots = new Slot[WORKERS][VISIBLE];
+        for (int w = 0; w < WORKERS; w++) {
+            for (int s = 0; s < VISIBLE; s++) {
+                slots[w][s] = new Slot();
+            }
+        }
+        int baseline = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        final AtomicInteger bound = new AtomicInteger();
+        long next = System.nanoTime();
+        for (int row = 0; row < ROWS; row++) {
+            for (int w = 0; w < WORKERS; w++) {
+                Slot slot = slots[w][row % VISIBLE];
+                slot.bind(row);
+                loaders[w].load(slot, row);
+                bound.incrementAndGet();
+            }
+            next += TimeUnit.MILLISECONDS.toNanos(BIND_INTERVAL);
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        long stoppedAt = System.nanoTime();
+        long deadline = stoppedAt + TimeUnit.MILLISECONDS.toNanos(SETTLE_TIMEOUT);
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        int missing;
+        while (true) {
+            missing = 0;
+            first = Long.MAX_VALUE;
+            last = 0;
+            for (Slot[] list : slots) {
+                for (Slot slot : list) {
+                    long shownAt = slot.mShownAt;
+                    if (shownAt == 0) {
+                        missing++;
+                    } else {
+                        first = Math.min(first, shownAt);
+                        last = Math.max(last, shownAt);
+                    }
+                }
+            }
+            if (missing == 0 || System.nanoTime() > deadline) {
+                break;
+            }
+            Thread.sleep(5);
+        }
+        int peak = threads.getPeakThreadCount() - baseline;
+        for (Loader loader : loaders) {
+            loader.shutdown();
+        }
+        System.out.printf("%-8s binds=%d peak threads=+%-3d first visible=%5s ms  all visible=%5s ms  never shown=%d/%d%n",
+                name, bound.get(), peak, millisAfter(first, stoppedAt), missing == 0 ? millisAfter(last, stoppedAt) : "-",
+                missing, WORKERS * VISIBLE);
+    }
+
+    private static String millisAfter(long time, long stoppedAt) {
+        if (time == Long.MAX_VALUE) {
+            return "-";
+        }
+        return String.valueOf(Math.max(0, TimeUnit.NANOSECONDS.toMillis(time - stoppedAt)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Loader[] cached = new Loader[WORKERS];
+        Loader[] priority = new Loader[WORKERS];
+        Loader[] pipeline = new Loader[WORKERS];
+        for (int w = 0; w < WORKERS; w++) {
+            cached[w] = new ExecutorLoader(ThreadPoolManager.createCacheThreadPool());
+            priority[w] = new ExecutorLoader(ThreadPoolManager.createPriorityThreadPool(1, 2, 32, 1));
+            pipeline[w] = new PipelineLoader();
+        }
+        fling("cached", cached);
+        fling("priority", priority);
+        fling("pipeline", pipeline);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,108 @@
+package com.tom.basecore.thread;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Description:对比{@link BoundedPriorityBlockingQueue}(索引双堆)和{@link LegacyBoundedPriorityBlockingQueue}
+ * <pre>
+ *     队列保持装满，单线程反复执行以下操作，输出每次操作的纳秒数(7轮的中位数，之前预热3轮)：
+ *     1、shed：removeMinPriority() + offer()，线程池已满时{@link ThreadPoolManager}移除最低优先级任务的路径
+ *     2、poll：poll() + offer()，工作线程取任务的路径
+ *     3、cancel：remove(Object) + offer()，取消任务的路径
+ *     比较器和{@link ThreadPoolManager}一致，优先级在0-9之间随机
+ *     运行：ANDROID_ALL_JAR=... benchmark/run.sh com.tom.basecore.thread.QueueBenchmark
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-14 10:00
+ */
+public class QueueBenchmark {
+    private static final int[] SIZES = {64, 512, 4096};
+    private static final String[] OPS = {"shed", "poll", "cancel"};
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 7;
+
+    private static final class Task {
+        final int priority;
+
+        Task(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    private static final Comparator<Task> COMPARATOR = new Comparator<Task>() {
+        @Override
+        public int compare(Task lhs, Task rhs) {
+            return lhs.priority < rhs.priority ? 1 : (lhs.priority > rhs.priority ? -1 : 0);
+        }
+    };
+
+    private static BlockingQueue<Task> create(boolean legacy, int capacity) {
+        return legacy ? new LegacyBoundedPriorityBlockingQueue<Task>(capacity, COMPARATOR)
+                : new BoundedPriorityBlockingQueue<Task>(capacity, COMPARATOR);
+    }
+
+    private static void shed(BlockingQueue<Task> queue) {
+        if (queue instanceof BoundedPriorityBlockingQueue) {
+            ((BoundedPriorityBlockingQueue<Task>) queue).removeMinPriority();
+        } else {
+            ((LegacyBoundedPriorityBlockingQueue<Task>) queue).removeMinPriority();
+        }
+    }
+
+    /**
+     * @return 每次操作的纳秒数
+     */
+    private static long run(String op, boolean legacy, int size, int ops, long seed) {
+        Random random = new Random(seed);
+        BlockingQueue<Task> queue = create(legacy, size);
+        Task[] live = new Task[size];
+        for (int i = 0; i < size; i++) {
+            live[i] = new Task(random.nextInt(10));
+            queue.offer(live[i]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            Task task = new Task(random.nextInt(10));
+            if ("shed".equals(op)) {
+                shed(queue);
+            } else if ("poll".equals(op)) {
+                queue.poll();
+            } else {
+                int index = random.nextInt(size);
+                queue.remove(live[index]);
+                live[index] = task;
+            }
+            queue.offer(task);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (queue.size() != size) {
+            throw new IllegalStateException(op + ": size is " + queue.size() + ", expected " + size);
+        }
+        return elapsed / ops;
+    }
+
+    public static void main(String[] args) {
+        System.out.printf("%-7s %6s %12s %12s%n", "op", "n", "legacy ns/op", "heap ns/op");
+        for (String op : OPS) {
+            for (int size : SIZES) {
+                int ops = Math.max(20000, 4000000 / size);
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    run(op, true, size, ops, i);
+                    run(op, false, size, ops, i);
+                }
+                long[] legacy = new long[ROUNDS];
+                long[] heap = new long[ROUNDS];
+                for (int i = 0; i < ROUNDS; i++) {
+                    legacy[i] = run(op, true, size, ops, i);
+                    heap[i] = run(op, false, size, ops, i);
+                }
+                Arrays.sort(legacy);
+                Arrays.sort(heap);
+                System.out.printf("%-7s %6d %12d %12d%n", op, size, legacy[ROUNDS / 2], heap[ROUNDS / 2]);
+            }
+        }
+    }
+}
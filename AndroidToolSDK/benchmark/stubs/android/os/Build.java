@@ -0,0 +1,27 @@
+package android.os;
+
+/**
+ * Description:在JVM上运行benchmark时替换android.os.Build，模拟API 21的设备。
+ * 常量在编译时已经内联，这里只需要运行时读取的字段
+ * User： yuanzeyao.
+ * Date： 2015-09-14 10:00
+ */
+public class Build {
+    public static final String MODEL = "jvm";
+    public static final String MANUFACTURER = "jvm";
+
+    public static class VERSION {
+        public static final int SDK_INT = 21;
+        public static final String RELEASE = "5.0";
+    }
+
+    public static class VERSION_CODES {
+        public static final int FROYO = 8;
+        public static final int GINGERBREAD = 9;
+        public static final int HONEYCOMB = 11;
+        public static final int HONEYCOMB_MR1 = 12;
+        public static final int JELLY_BEAN = 16;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * Description:在JVM上运行benchmark时替换android.os.Handler，post的任务在调用线程中立即执行，
+ * 用来代替主线程的回调
+ * User： yuanzeyao.
+ * Date： 2015-09-14 10:00
+ */
+public class Handler {
+    public Handler() {
+    }
+
+    public Handler(Looper looper) {
+    }
+
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Description:在JVM上运行benchmark时替换android.os.Looper，benchmark中没有消息循环
+ * User： yuanzeyao.
+ * Date： 2015-09-14 10:00
+ */
+public final class Looper {
+    public static Looper getMainLooper() {
+        return null;
+    }
+
+    public static Looper myLooper() {
+        return null;
+    }
+}
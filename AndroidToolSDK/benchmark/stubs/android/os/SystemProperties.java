@@ -0,0 +1,28 @@
+package android.os;
+
+/**
+ * Description:在JVM上运行benchmark时替换android.os.SystemProperties(原实现依赖native方法)
+ * User： yuanzeyao.
+ * Date： 2015-09-14 10:00
+ */
+public class SystemProperties {
+    public static String get(String key) {
+        return "";
+    }
+
+    public static String get(String key, String def) {
+        return def;
+    }
+
+    public static int getInt(String key, int def) {
+        return "ro.build.version.sdk".equals(key) ? Build.VERSION.SDK_INT : def;
+    }
+
+    public static long getLong(String key, long def) {
+        return def;
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        return def;
+    }
+}
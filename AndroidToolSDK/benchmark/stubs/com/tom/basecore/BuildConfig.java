@@ -0,0 +1,10 @@
+package com.tom.basecore;
+
+/**
+ * Description:benchmark使用的BuildConfig，正式构建时由gradle生成。关闭调试日志，避免日志影响计时
+ * User： yuanzeyao.
+ * Date： 2015-09-14 10:00
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
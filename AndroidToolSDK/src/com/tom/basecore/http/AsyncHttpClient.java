@@ -76,9 +76,14 @@ import java.lang.reflect.Field;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 
@@ -119,6 +124,8 @@ public class AsyncHttpClient {
     public static final String ENCODING_GZIP = "gzip";
 
     public static final int DEFAULT_MAX_CONNECTIONS = 10;
+    //同一个host最多同时执行的请求数，小于DEFAULT_MAX_CONNECTIONS，避免一个慢速host占满所有连接
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
     public static final int DEFAULT_SOCKET_TIMEOUT = 3 * 1000;
     public static final int DEFAULT_MAX_RETRIES = 5;
     public static final int DEFAULT_RETRY_SLEEP_TIME_MILLIS = 1500;
@@ -134,7 +141,13 @@ public class AsyncHttpClient {
     private static final ExecutorService defaultThreadPool =ThreadPoolManager.createPriorityAndDefaultThreadPool();
     //外部设置的线程池，如果设置了此线程池，那么异步请求会在此线程池上执行
     private static ExecutorService privateThreadPool;
+    //所有请求共享的host并发限制
+    private static final HostConcurrencyLimiter hostLimiter = new HostConcurrencyLimiter(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    private static final SingleFlight singleFlight = new SingleFlight();
     private final Map<String, String> clientHeaderMap;
+    /**通过此client发出的请求，结束的请求在{@link #isDrained()}时移除，见{@link #shutdown()}*/
+    private final Set<AsyncHttpRequest> sentRequests =
+            Collections.newSetFromMap(new WeakHashMap<AsyncHttpRequest, Boolean>());
     private boolean isUrlEncodingEnabled = true;
 
     public static LogInterface log = new LogHandler();
@@ -331,6 +344,58 @@ public class AsyncHttpClient {
         return this.httpClient;
     }
 
+    /**
+     * 关闭连接池中已经过期或者空闲时间超过idleTimeMillis的连接，正在使用的连接不受影响
+     *
+     * @param idleTimeMillis 空闲时间，单位毫秒
+     */
+    public void closeIdleConnections(long idleTimeMillis) {
+        ClientConnectionManager manager = httpClient.getConnectionManager();
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(idleTimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 通过此client发出的请求是否都已经结束(包括取消)，并且连接池中没有连接，调用前先通过
+     * {@link #closeIdleConnections(long)}关闭空闲的连接
+     *
+     * @return 返回true时可以调用{@link #shutdown()}
+     */
+    public boolean isDrained() {
+        synchronized (sentRequests) {
+            Iterator<AsyncHttpRequest> iterator = sentRequests.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isDone()) {
+                    iterator.remove();
+                }
+            }
+            if (!sentRequests.isEmpty()) {
+                return false;
+            }
+        }
+        return getConnectionsInPool() <= 0;
+    }
+
+    /**
+     * 关闭连接管理器和其中所有的连接，之后不能再通过此client发出请求，通常在{@link #isDrained()}返回true后调用
+     */
+    public void shutdown() {
+        httpClient.getConnectionManager().shutdown();
+    }
+
+    /**
+     * 获取连接池中的连接数量(包括正在使用和空闲的连接)
+     *
+     * @return 连接管理器不是{@link ThreadSafeClientConnManager}时返回-1
+     */
+    public int getConnectionsInPool() {
+        ClientConnectionManager manager = httpClient.getConnectionManager();
+        if (manager instanceof ThreadSafeClientConnManager) {
+            return ((ThreadSafeClientConnManager) manager).getConnectionsInPool();
+        }
+        return -1;
+    }
+
     /**
      * Get the underlying HttpContext instance. This is useful for getting and setting fine-grained
      * settings for requests by accessing the context's attributes such as the CookieStore.
@@ -524,6 +589,44 @@ public class AsyncHttpClient {
         ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(this.maxConnections));
     }
 
+    /**
+     * Returns current limit of requests executed in parallel against a single host
+     *
+     * @return maximum parallel requests per host, default is {@link #DEFAULT_MAX_CONNECTIONS_PER_HOST}
+     */
+    public int getMaxConnectionsPerHost() {
+        return hostLimiter.getMaxPerHost();
+    }
+
+    /**
+     * Sets maximum limit of requests executed in parallel against a single host, shared by all
+     * clients. Requests above the limit wait without holding a pool thread, so a slow host cannot
+     * starve requests to other hosts.
+     *
+     * @param maxConnectionsPerHost maximum parallel requests per host, must be at least 1
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1)
+            maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        hostLimiter.setMaxPerHost(maxConnectionsPerHost);
+    }
+
+    /**
+     * Returns the per-host health tracker shared by all clients, used for circuit breaking and
+     * adapting the per-host limit
+     */
+    static HostHealthTracker getHostHealthTracker() {
+        return hostLimiter.getHealthTracker();
+    }
+
+    /**
+     * Clears the circuit breaker and adaptive limit of a host, and lets requests waiting for that
+     * host use the restored limit right away
+     */
+    static void resetHostHealth(String host) {
+        hostLimiter.resetHost(host);
+    }
+
     /**
      * Set both the connection and socket timeouts. By default, both are set to
      * 10 seconds.
@@ -626,7 +729,7 @@ public class AsyncHttpClient {
      * Sets the maximum number of retries and timeout for a particular Request.
      *
      * @param retries maximum number of retries per request
-     * @param timeout sleep between retries in milliseconds
+     * @param timeout delay before the first retry in milliseconds, doubled (with jitter) for each following retry
      */
     public void setMaxRetriesAndTimeout(int retries, int timeout) {
         this.httpClient.setHttpRequestRetryHandler(new RetryHandler(retries, timeout));
@@ -1199,7 +1302,15 @@ public class AsyncHttpClient {
         }
 
         AsyncHttpRequest httpRequest = newAsyncHttpRequest(client, httpContext, uriRequest, contentType, mRequset);
-        getThreadPool().submit(httpRequest);
+        ExecutorService threadPool = getThreadPool();
+        httpRequest.setHostLimiter(hostLimiter, threadPool);
+        if (mRequset != null && mRequset.shouldCoalesce()) {
+            httpRequest.setSingleFlight(singleFlight, SingleFlight.keyOf(uriRequest, mRequset));
+        }
+        synchronized (sentRequests) {
+            sentRequests.add(httpRequest);
+        }
+        httpRequest.setFuture(threadPool.submit(httpRequest));
         RequestHandle requestHandle = new RequestHandle(httpRequest);
         return requestHandle;
     }
@@ -18,22 +18,44 @@
 
 package com.tom.basecore.http;
 
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.tom.basecore.http.cache.Cache;
 import com.tom.basecore.http.cache.CacheEntry;
+import com.tom.basecore.http.cache.CacheKeyBuilder;
+import com.tom.basecore.http.cache.HttpHeaderParser;
 import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
 import com.tom.basecore.utlis.DebugLog;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.protocol.HttpContext;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -41,6 +63,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class AsyncHttpRequest extends XRunnable {
     public static final String TAG="AsyncHttpRequest";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    //有相同的请求在等待时，响应体超过此大小不再共享，等待的请求各自执行
+    static final int MAX_SHARED_BODY_SIZE = 1024 * 1024;
+    private static final String STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+    private static final String STALE_IF_ERROR = "stale-if-error";
     private final AbstractHttpClient client;
     private final HttpContext context;
     private final HttpUriRequest request;
@@ -50,12 +77,104 @@ public class AsyncHttpRequest extends XRunnable {
     private boolean cancelIsNotified;
     private volatile boolean isFinished;
     private boolean isRequestPreProcessed;
+    //限制同一个host并发请求数量，为null时不做限制
+    private HostConcurrencyLimiter mHostLimiter;
+    //执行此请求的线程池，host名额释放后等待的请求会重新提交到这里
+    private ExecutorService mExecutor;
+    //从host等待队列中重新提交时已经占用了名额，开始执行时不再申请
+    private final AtomicBoolean mHostSlotGranted = new AtomicBoolean();
+    //此请求在线程池中对应的任务，用于修改排队中请求的优先级
+    private volatile Future<?> mFuture;
+    //已经过期的缓存，网络请求会带上条件请求头，服务器返回304时直接使用此缓存
+    private CacheEntry mStaleEntry;
+    //过期的缓存已经回调并且在stale-if-error时间内，网络请求失败时不再回调失败
+    private boolean mServeStaleOnError;
+    //请求已经开始执行，重新提交时不再发送开始消息
+    private boolean isStarted;
+    //已经读取过缓存，重新提交时不再读取
+    private boolean isCacheChecked;
+    //第一次发送网络请求的时间，用于判断重试是否超过了请求的总时长
+    private long mFirstAttemptTime;
+    //合并相同的请求，为null时不合并
+    private SingleFlight mSingleFlight;
+    private String mFlightKey;
+    //此请求作为leader执行时对应的flight
+    private SingleFlight.Flight mFlight;
+    //此请求的最终结果，用于回调给等待中的相同请求
+    private SharedResult mFlightResult;
+    //读取缓存时实际使用的key，响应带有Vary时是二级key
+    private String mCacheKey;
 
     public AsyncHttpRequest(AbstractHttpClient client, HttpContext context, HttpUriRequest httpRequest,Request<?> mRequest) {
         this.client = Utils.notNull(client, "client");
         this.context = Utils.notNull(context, "context");
         this.request = Utils.notNull(httpRequest, "httpRequest");
         this.mRequest = Utils.notNull(mRequest, "mRequest");
+        setPriority(mRequest.getPriority().getTaskPriority());
+    }
+
+    /**
+     * 设置host并发限制，在提交到线程池之前调用
+     * @param limiter
+     * @param executor 执行此请求的线程池
+     */
+    void setHostLimiter(HostConcurrencyLimiter limiter, ExecutorService executor) {
+        this.mHostLimiter = limiter;
+        this.mExecutor = executor;
+    }
+
+    /**
+     * 设置合并相同请求的{@link SingleFlight}，在提交到线程池之前调用
+     * @param singleFlight
+     * @param key 请求的标识，见{@link SingleFlight#keyOf(HttpUriRequest, Request)}
+     */
+    void setSingleFlight(SingleFlight singleFlight, String key) {
+        this.mSingleFlight = singleFlight;
+        this.mFlightKey = key;
+    }
+
+    /**
+     * 记录此请求提交到线程池后对应的任务
+     * @param future
+     */
+    void setFuture(Future<?> future) {
+        this.mFuture = future;
+    }
+
+    /**
+     * 修改请求的优先级，如果请求还在线程池中排队，会立即按照新的优先级重新排序
+     * @param priority
+     * @return 请求还在排队并且已经重新排序返回true，否则返回false
+     */
+    public boolean updatePriority(Request.Priority priority) {
+        mRequest.setPriority(priority);
+        return updateTaskPriority(priority.getTaskPriority());
+    }
+
+    /**
+     * 优先级更高的相同请求在等待此请求的结果时调用，只提高排队使用的优先级，不修改{@link Request}的配置
+     * @param taskPriority
+     */
+    void raiseTaskPriority(int taskPriority) {
+        if (taskPriority > getPriority()) {
+            updateTaskPriority(taskPriority);
+        }
+    }
+
+    private boolean updateTaskPriority(int taskPriority) {
+        //在host等待队列中时按照新的优先级重新排队
+        final String host = request.getURI().getHost();
+        if (mHostLimiter != null && host != null
+                && mHostLimiter.updatePriority(host, this, taskPriority)) {
+            setPriority(taskPriority);
+            return true;
+        }
+        final Future<?> future = mFuture;
+        if (future != null && mExecutor instanceof XThreadPoolExecutor) {
+            return ((XThreadPoolExecutor) mExecutor).setTaskPriority(future, taskPriority);
+        }
+        setPriority(taskPriority);
+        return false;
     }
 
     /**
@@ -91,8 +210,57 @@ public class AsyncHttpRequest extends XRunnable {
     @Override
     public void run() {
         if (isCancelled()) {
+            abandon();
+            return;
+        }
+
+        //相同的请求正在执行时加入等待，让出线程，由正在执行的请求回调结果
+        if (mSingleFlight != null && mFlight == null) {
+            mFlight = mSingleFlight.join(mFlightKey, this);
+            if (mFlight == null) {
+                if (!isStarted) {
+                    isStarted = true;
+                    mRequest.getResponseHandler().sendStartMessage();
+                }
+                DebugLog.d(TAG, "same request is in flight, waiting. url is %s", mRequest.getUrl());
+                return;
+            }
+        }
+
+        final String host = request.getURI().getHost();
+        if (mHostLimiter == null || host == null) {
+            runRequest();
             return;
         }
+        //该host的并发数已满时进入等待队列，让出线程给其他host的请求
+        if (!takeHostSlot() && !mHostLimiter.tryAcquire(host, this, mExecutor)) {
+            return;
+        }
+        try {
+            runRequest();
+        } finally {
+            mHostLimiter.release(host);
+        }
+    }
+
+    private void runRequest() {
+        boolean retryScheduled = false;
+        try {
+            retryScheduled = !executeRequest();
+        } finally {
+            if (!retryScheduled) {
+                finishFlight();
+            }
+        }
+    }
+
+    /**
+     * @return 请求已经结束返回true，已经登记重试返回false
+     */
+    private boolean executeRequest() {
+        if (isCancelled()) {
+            return true;
+        }
 
         // Carry out pre-processing for this request only once.
         if (!isRequestPreProcessed) {
@@ -101,68 +269,92 @@ public class AsyncHttpRequest extends XRunnable {
         }
 
         if (isCancelled()) {
-            return;
+            return true;
         }
 
-        mRequest.getResponseHandler().sendStartMessage();
+        if (!isStarted) {
+            isStarted = true;
+            mRequest.getResponseHandler().sendStartMessage();
+        }
 
         if (isCancelled()) {
-            return;
+            return true;
         }
 
         try {
             //先从缓存中读取数据，如果读取不到或者过期，那么进行网络请求
-            if(mRequest.shouldCache()){
+            if(!isCacheChecked && mRequest.shouldCache()){
+                isCacheChecked = true;
                 if(HttpManager.getInstance().isDiskCacheCanUse()){
-                    CacheEntry entry=HttpManager.getInstance().getHttpDiskCache().get(mRequest.getCacheKey());
+                    CacheEntry entry=getCacheEntry(HttpManager.getInstance().getHttpDiskCache());
                     if(entry!=null){
                         DebugLog.d(TAG,"Request has Cache hit! url is %s",mRequest.getUrl());
-                        Header[] headers=null;
-                        if(entry.responseHeaders!=null && entry.responseHeaders.size()>0){
-                            headers=new BasicHeader[entry.responseHeaders.size()];
-                            int i=0;
-                            for(Map.Entry<String,String> item : entry.responseHeaders.entrySet()){
-                                headers[i++]=new BasicHeader(item.getKey(),item.getValue());
-                            }
-                        }
+                        Header[] headers=toHeaders(entry.responseHeaders);
                         if(isCancelled()){
-                            return;
+                            return true;
                         }
-                        mRequest.getResponseHandler().sendSuccessMessage(entry.isExpired() ? HttpManager.STATUS_CODE_LOCAL_EXPIRED : HttpManager.STATUS_CODE_LOCAL
-                                , headers, entry.data);
-                        if(!entry.isExpired()){
-                            mRequest.getResponseHandler().sendFinishMessage();
-                            return;
-                        }else {
-                            DebugLog.d(TAG, "cache hit but expired!!");
+                        boolean expired = entry.isExpired();
+                        if (expired && mRequest.isRevalidation()) {
+                            //后台刷新缓存的请求，过期的缓存已经回调给发起刷新的请求
+                            addConditionalHeaders(entry);
+                        } else {
+                            int statusCode = expired ? HttpManager.STATUS_CODE_LOCAL_EXPIRED : HttpManager.STATUS_CODE_LOCAL;
+                            mRequest.getResponseHandler().sendSuccessMessage(statusCode, headers, entry.data);
+                            mFlightResult = SharedResult.success(statusCode, headers, entry.data);
+                            if (!expired) {
+                                mRequest.getResponseHandler().sendFinishMessage();
+                                isFinished = true;
+                                return true;
+                            } else if (entry.isUsableWhenStale(getStaleWindow(entry, mRequest.getStaleWhileRevalidate(),
+                                    STALE_WHILE_REVALIDATE))) {
+                                //stale-while-revalidate：直接使用过期的缓存结束请求，在后台刷新缓存
+                                DebugLog.d(TAG, "cache hit but expired, revalidate in background! url is %s", mRequest.getUrl());
+                                mRequest.getResponseHandler().sendFinishMessage();
+                                isFinished = true;
+                                HttpManager.getInstance().revalidate(mRequest);
+                                return true;
+                            } else {
+                                DebugLog.d(TAG, "cache hit but expired!!");
+                                mServeStaleOnError = entry.isUsableWhenStale(getStaleWindow(entry,
+                                        mRequest.getStaleIfError(), STALE_IF_ERROR));
+                                addConditionalHeaders(entry);
+                            }
                         }
 
                     }
                 }
             }
-            makeRequestWithRetries();
+            if (!makeRequestWithRetries()) {
+                //已经登记重试，释放请求线程，等待时间到了以后重新执行
+                return false;
+            }
         } catch (IOException e) {
-            if (!isCancelled()) {
+            if ((e instanceof HostUnavailableException && mStaleEntry != null) || mServeStaleOnError) {
+                //host已经熔断或者在stale-if-error时间内，过期的缓存已经回调，不再回调失败
+                DebugLog.d(TAG, "request failed, use expired cache! url is %s", mRequest.getUrl());
+            } else if (!isCancelled()) {
                 mRequest.getResponseHandler().sendFailureMessage(0, null, null, e);
+                mFlightResult = SharedResult.failure(e);
             } else {
                 AsyncHttpClient.log.e("AsyncHttpRequest", "makeRequestWithRetries returned error", e);
             }
         }
 
         if (isCancelled()) {
-            return;
+            return true;
         }
 
         mRequest.getResponseHandler().sendFinishMessage();
 
         if (isCancelled()) {
-            return;
+            return true;
         }
 
         // Carry out post-processing for this request.
         onPostProcessRequest(this);
 
         isFinished = true;
+        return true;
     }
 
     private void makeRequest() throws IOException {
@@ -179,61 +371,324 @@ public class AsyncHttpRequest extends XRunnable {
         if (mRequest.getResponseHandler() instanceof RangeFileAsyncHttpResponseHandler) {
             ((RangeFileAsyncHttpResponseHandler) mRequest.getResponseHandler()).updateRequestHeaders(request);
         }
-        HttpResponse response = client.execute(request, context);
+        final long startTime = SystemClock.elapsedRealtime();
+        HttpResponse response;
+        try {
+            response = client.execute(request, context);
+        } catch (IOException e) {
+            if (!isCancelled()) {
+                onHostFailure();
+            }
+            throw e;
+        }
 
         if (isCancelled()) {
             return;
         }
 
-        // Carry out pre-processing for this response.
-        mRequest.getResponseHandler().onPreProcessResponse(mRequest.getResponseHandler(), response);
+        int statusCode = response.getStatusLine().getStatusCode();
+        onHostResponse(statusCode, SystemClock.elapsedRealtime() - startTime);
+        if (mStaleEntry != null && statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            handleNotModified(response);
+            return;
+        }
 
-        if (isCancelled()) {
+        if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR && mServeStaleOnError) {
+            //stale-if-error：服务器错误时丢弃本次响应，已经回调的过期缓存作为结果
+            DebugLog.d(TAG, "server error %d, use expired cache! url is %s", statusCode, mRequest.getUrl());
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent();
+            }
             return;
         }
 
-        // The response is ready, handle it.
-        mRequest.getResponseHandler().sendResponseMessage(response);
+        if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE || statusCode == SC_TOO_MANY_REQUESTS) {
+            //服务器通过Retry-After告知了等待时间并且还可以重试时，丢弃本次响应，按照服务器要求的时间重试
+            long retryAfter = HttpHeaderParser.parseRetryAfter(response);
+            if (retryAfter >= 0 && retryAfter <= RetryHandler.MAX_RETRY_SLEEP_TIME_MILLIS
+                    && canRetry(executionCount + 1) && isWithinDeadline(retryAfter)) {
+                HttpEntity entity = response.getEntity();
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                throw new RetryAfterException(statusCode, retryAfter);
+            }
+        }
 
+        //有相同的请求在等待时读取整个响应体，同一份数据回调给所有等待的请求
+        List<AsyncHttpRequest> followers = mFlight != null ? mSingleFlight.seal(mFlight)
+                : Collections.<AsyncHttpRequest>emptyList();
+        SharedResult shared = null;
+        if (!followers.isEmpty()) {
+            try {
+                shared = bufferResponse(response);
+            } finally {
+                if (shared == null) {
+                    //响应体太大或者读取失败，等待的请求各自执行
+                    releaseFollowers(followers, true);
+                    followers = Collections.emptyList();
+                }
+            }
+        }
+
+        try {
+            // Carry out pre-processing for this response.
+            mRequest.getResponseHandler().onPreProcessResponse(mRequest.getResponseHandler(), response);
+
+            if (isCancelled()) {
+                return;
+            }
+
+            // The response is ready, handle it.
+            mRequest.getResponseHandler().sendResponseMessage(response);
+
+            if (isCancelled()) {
+                return;
+            }
+
+            // Carry out post-processing for this response.
+            mRequest.getResponseHandler().onPostProcessResponse(mRequest.getResponseHandler(), response);
+        } finally {
+            boolean cachedByLeader = mRequest.shouldCache();
+            for (AsyncHttpRequest follower : followers) {
+                follower.deliverSharedResult(shared, cachedByLeader);
+            }
+        }
+    }
+
+    /**
+     * 读取整个响应体，并替换为可以重复读取的实体
+     * <pre>
+     *     没有Content-Length的响应在读取过程中超过{@link #MAX_SHARED_BODY_SIZE}时停止读取，
+     *     已经读取的数据和剩余的流重新组成实体交给leader自己处理
+     * </pre>
+     * @param response
+     * @return 响应体超过{@link #MAX_SHARED_BODY_SIZE}时返回null
+     * @throws IOException
+     */
+    private static SharedResult bufferResponse(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return SharedResult.response(response, null);
+        }
+        long contentLength = entity.getContentLength();
+        if (contentLength > MAX_SHARED_BODY_SIZE) {
+            return null;
+        }
+        ByteArrayPool pool = ByteArrayPool.getInstance();
+        PoolingByteArrayOutputStream buffer = new PoolingByteArrayOutputStream(pool,
+                contentLength > 0 ? (int) contentLength : AsyncHttpResponseHandler.BUFFER_SIZE);
+        byte[] tmp = pool.getBuf(AsyncHttpResponseHandler.BUFFER_SIZE);
+        InputStream instream = entity.getContent();
+        boolean tooLarge = false;
+        try {
+            if (instream != null) {
+                int l;
+                while ((l = instream.read(tmp)) != -1) {
+                    buffer.write(tmp, 0, l);
+                    if (buffer.size() > MAX_SHARED_BODY_SIZE) {
+                        tooLarge = true;
+                        response.setEntity(new PartiallyReadEntity(entity, buffer.toByteArray(), instream));
+                        return null;
+                    }
+                }
+            }
+            SharedResult shared = SharedResult.response(response, buffer.toByteArray());
+            response.setEntity(shared.newEntity());
+            return shared;
+        } finally {
+            pool.returnBuf(tmp);
+            buffer.close();
+            if (!tooLarge) {
+                AsyncHttpClient.silentCloseInputStream(instream);
+                AsyncHttpClient.endEntityViaReflection(entity);
+            }
+        }
+    }
+
+    /**
+     * 读取了一部分的响应体：先返回已经读取的数据，再继续读取原来的流
+     */
+    private static final class PartiallyReadEntity extends HttpEntityWrapper {
+        private final InputStream mContent;
+
+        PartiallyReadEntity(HttpEntity wrapped, byte[] head, InputStream rest) {
+            super(wrapped);
+            mContent = new SequenceInputStream(new ByteArrayInputStream(head), rest);
+        }
+
+        @Override
+        public InputStream getContent() {
+            return mContent;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            byte[] tmp = new byte[AsyncHttpResponseHandler.BUFFER_SIZE];
+            int l;
+            while ((l = mContent.read(tmp)) != -1) {
+                outstream.write(tmp, 0, l);
+            }
+        }
+    }
+
+    /**
+     * 读取缓存，一级key下是Vary索引时按照当前请求头的值读取二级key下的缓存
+     * @param cache
+     * @return
+     */
+    private CacheEntry getCacheEntry(Cache cache) {
+        String key = mRequest.getCacheKey();
+        CacheEntry entry = cache.get(key);
+        if (entry != null && !TextUtils.isEmpty(entry.vary)) {
+            key = CacheKeyBuilder.secondaryKey(key, entry.vary, request.getAllHeaders());
+            entry = cache.get(key);
+        }
+        mCacheKey = key;
+        return entry;
+    }
+
+    /**
+     * 获取过期的缓存还可以使用的时长，请求中设置的值优先，否则使用缓存的响应头中Cache-Control的指令
+     * @param entry
+     * @param override 请求中设置的时长，-1表示没有设置
+     * @param directive Cache-Control中的指令名称
+     * @return 毫秒
+     */
+    private static long getStaleWindow(CacheEntry entry, long override, String directive) {
+        if (override >= 0) {
+            return override;
+        }
+        long seconds = HttpHeaderParser.parseCacheControlSeconds(entry.responseHeaders, directive);
+        return seconds > 0 ? seconds * 1000 : 0;
+    }
+
+    /**
+     * 为过期的缓存添加If-None-Match/If-Modified-Since请求头，调用方已经设置的同名请求头不会被覆盖
+     * @param entry
+     */
+    private void addConditionalHeaders(CacheEntry entry) {
+        mStaleEntry = entry;
+        Map<String, String> headers = HttpHeaderParser.getConditionalHeaders(entry);
+        if (headers.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!request.containsHeader(header.getKey())) {
+                request.addHeader(header.getKey(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * 服务器返回304，缓存的数据仍然有效：只刷新缓存的头信息和过期时间，不重写数据
+     * @param response
+     * @throws IOException
+     */
+    private void handleNotModified(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            entity.consumeContent();
+        }
+        CacheEntry entry = HttpHeaderParser.parseNotModified(response, mStaleEntry);
+        entry.softTtl = System.currentTimeMillis() + mRequest.getCacheTimeOut();
+        if (HttpManager.getInstance().isDiskCacheCanUse()) {
+            HttpManager.getInstance().getHttpDiskCache().updateHeader(mCacheKey, entry);
+        }
+        DebugLog.d(TAG, "304 Not Modified, reuse cache! url is %s", mRequest.getUrl());
         if (isCancelled()) {
             return;
         }
+        Header[] headers = toHeaders(entry.responseHeaders);
+        mRequest.getResponseHandler().sendSuccessMessage(HttpManager.STATUS_CODE_LOCAL_NOT_MODIFIED, headers, entry.data);
+        mFlightResult = SharedResult.success(HttpManager.STATUS_CODE_LOCAL_NOT_MODIFIED, headers, entry.data);
+    }
 
-        // Carry out post-processing for this response.
-        mRequest.getResponseHandler().onPostProcessResponse(mRequest.getResponseHandler(), response);
+    private static Header[] toHeaders(Map<String, String> responseHeaders) {
+        Header[] headers = null;
+        if (responseHeaders != null && responseHeaders.size() > 0) {
+            headers = new BasicHeader[responseHeaders.size()];
+            int i = 0;
+            for (Map.Entry<String, String> item : responseHeaders.entrySet()) {
+                headers[i++] = new BasicHeader(item.getKey(), item.getValue());
+            }
+        }
+        return headers;
     }
 
-    private void makeRequestWithRetries() throws IOException {
-        boolean retry = true;
+    /**
+     * 执行网络请求，失败时按照{@link RetryHandler}计算的等待时间重试
+     * <pre>
+     *     有线程池时通过{@link RetryScheduler}登记重试并立即返回false，当前线程可以去执行其他请求；
+     *     同步请求没有线程池，只能在当前线程中等待后重试
+     * </pre>
+     * @return 请求完成或者取消返回true，已经登记重试返回false
+     * @throws IOException 不再重试时抛出最后一次失败的原因
+     */
+    private boolean makeRequestWithRetries() throws IOException {
         IOException cause = null;
         HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
+        if (mFirstAttemptTime == 0) {
+            mFirstAttemptTime = SystemClock.elapsedRealtime();
+        }
         try {
-            while (retry) {
+            while (true) {
+                if (!isHostAvailable()) {
+                    //该host已经熔断，直接失败，不再占用线程和连接
+                    cause = new HostUnavailableException(request.getURI().getHost());
+                    break;
+                }
+                long delay;
                 try {
                     makeRequest();
-                    return;
+                    return true;
+                } catch (RetryAfterException e) {
+                    // makeRequest() has already checked that a retry is allowed
+                    cause = e;
+                    executionCount++;
+                    delay = e.retryAfterMillis;
                 } catch (UnknownHostException e) {
                     // switching between WI-FI and mobile data networks can cause a retry which then results in an UnknownHostException
                     // while the WI-FI is initialising. The retry logic will be invoked here, if this is NOT the first retry
                     // (to assist in genuine cases of unknown host) which seems better than outright failure
                     cause = new IOException("UnknownHostException exception: " + e.getMessage());
-                    retry = (executionCount > 0) && retryHandler.retryRequest(e, ++executionCount, context);
+                    delay = (executionCount > 0) ? getRetryDelay(retryHandler, e, ++executionCount) : -1;
                 } catch (NullPointerException e) {
                     // there's a bug in HttpClient 4.0.x that on some occasions causes
                     // DefaultRequestExecutor to throw an NPE, see
                     // https://code.google.com/p/android/issues/detail?id=5255
                     cause = new IOException("NPE in HttpClient: " + e.getMessage());
-                    retry = retryHandler.retryRequest(cause, ++executionCount, context);
+                    delay = getRetryDelay(retryHandler, cause, ++executionCount);
                 } catch (IOException e) {
                     if (isCancelled()) {
                         // Eating exception, as the request was cancelled
-                        return;
+                        return true;
                     }
                     cause = e;
-                    retry = retryHandler.retryRequest(cause, ++executionCount, context);
+                    delay = getRetryDelay(retryHandler, cause, ++executionCount);
+                }
+                if (delay < 0 || !isWithinDeadline(delay)) {
+                    break;
+                }
+                mRequest.getResponseHandler().sendRetryMessage(executionCount);
+                DebugLog.d(TAG, "retry %d after %d ms, url is %s", executionCount, delay, mRequest.getUrl());
+                if (mExecutor != null && RetryScheduler.schedule(this, mExecutor, delay)) {
+                    return false;
                 }
-                if (retry) {
-                    mRequest.getResponseHandler().sendRetryMessage(executionCount);
+                SystemClock.sleep(delay);
+                if (isCancelled()) {
+                    return true;
                 }
             }
         } catch (Exception e) {
@@ -246,6 +701,205 @@ public class AsyncHttpRequest extends XRunnable {
         throw (cause);
     }
 
+    /**
+     * @return 需要重试时返回等待的毫秒数，否则返回-1
+     */
+    private long getRetryDelay(HttpRequestRetryHandler retryHandler, IOException exception, int count) {
+        if (retryHandler instanceof RetryHandler) {
+            return ((RetryHandler) retryHandler).getRetryDelay(exception, count, context);
+        }
+        return retryHandler.retryRequest(exception, count, context) ? 0 : -1;
+    }
+
+    private boolean canRetry(int count) {
+        HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
+        return retryHandler instanceof RetryHandler && ((RetryHandler) retryHandler).canRetry(count);
+    }
+
+    /**
+     * 等待delayMillis后重试是否还在请求的总时长{@link Request#getRetryDeadline()}以内
+     */
+    private boolean isWithinDeadline(long delayMillis) {
+        long deadline = mRequest.getRetryDeadline();
+        if (deadline <= 0) {
+            return true;
+        }
+        return SystemClock.elapsedRealtime() + delayMillis - mFirstAttemptTime <= deadline;
+    }
+
+    private HostHealthTracker getHealthTracker() {
+        return mHostLimiter != null ? mHostLimiter.getHealthTracker() : null;
+    }
+
+    /**
+     * 该host是否已经熔断，HALF_OPEN状态下只有探测请求可以通过
+     */
+    private boolean isHostAvailable() {
+        HostHealthTracker health = getHealthTracker();
+        String host = request.getURI().getHost();
+        return health == null || host == null || health.allowRequest(host);
+    }
+
+    private void onHostResponse(int statusCode, long latencyMillis) {
+        String host = request.getURI().getHost();
+        if (mHostLimiter != null && host != null) {
+            mHostLimiter.onResponse(host, statusCode, latencyMillis);
+        }
+    }
+
+    private void onHostFailure() {
+        String host = request.getURI().getHost();
+        if (mHostLimiter != null && host != null) {
+            mHostLimiter.onFailure(host);
+        }
+    }
+
+    /**
+     * leader结束时把结果回调给等待中的相同请求，leader被取消时等待的请求重新提交
+     */
+    private void finishFlight() {
+        if (mFlight == null) {
+            return;
+        }
+        List<AsyncHttpRequest> followers = mSingleFlight.seal(mFlight);
+        if (followers.isEmpty()) {
+            return;
+        }
+        if (mFlightResult == null || isCancelled()) {
+            //没有拿到结果，等待的请求重新提交，其中一个成为新的leader
+            releaseFollowers(followers, false);
+            return;
+        }
+        boolean cachedByLeader = mRequest.shouldCache();
+        for (AsyncHttpRequest follower : followers) {
+            follower.deliverSharedResult(mFlightResult, cachedByLeader);
+        }
+    }
+
+    /**
+     * 把等待中的请求重新提交到线程池
+     * @param followers
+     * @param independent 为true时这些请求不再合并，各自执行
+     */
+    private static void releaseFollowers(List<AsyncHttpRequest> followers, boolean independent) {
+        for (AsyncHttpRequest follower : followers) {
+            if (follower.isCancelled()) {
+                continue;
+            }
+            if (independent) {
+                follower.mSingleFlight = null;
+            }
+            try {
+                follower.setFuture(follower.mExecutor.submit(follower));
+            } catch (RejectedExecutionException e) {
+                DebugLog.e(TAG, "resubmit waiting request failed:" + e.getMessage());
+                follower.onResubmitRejected(e);
+            }
+        }
+    }
+
+    /**
+     * 等待中的请求收到相同请求的结果，在执行相同请求的线程中调用
+     * @param result
+     * @param cachedByLeader leader已经把响应写入缓存时不再重复写入
+     */
+    private void deliverSharedResult(SharedResult result, boolean cachedByLeader) {
+        if (isCancelled()) {
+            return;
+        }
+        ResponseHandlerInterface handler = mRequest.getResponseHandler();
+        if (result.error != null) {
+            handler.sendFailureMessage(0, null, null, result.error);
+        } else if (result.statusLine != null) {
+            HttpResponse response = result.newResponse();
+            AsyncHttpResponseHandler skipCache = cachedByLeader && handler instanceof AsyncHttpResponseHandler
+                    ? (AsyncHttpResponseHandler) handler : null;
+            if (skipCache != null) {
+                skipCache.setSkipCacheSave(true);
+            }
+            try {
+                handler.onPreProcessResponse(handler, response);
+                handler.sendResponseMessage(response);
+                handler.onPostProcessResponse(handler, response);
+            } catch (IOException e) {
+                handler.sendFailureMessage(0, null, null, e);
+            } finally {
+                if (skipCache != null) {
+                    skipCache.setSkipCacheSave(false);
+                }
+            }
+        } else {
+            handler.sendSuccessMessage(result.statusCode, result.headers, result.body);
+        }
+        if (isCancelled()) {
+            return;
+        }
+        handler.sendFinishMessage();
+        onPostProcessRequest(this);
+        isFinished = true;
+    }
+
+    /**
+     * host等待队列把名额交给此请求，在重新提交到线程池之前调用
+     */
+    void grantHostSlot() {
+        mHostSlotGranted.set(true);
+    }
+
+    /**
+     * 取走{@link #grantHostSlot()}交给此请求的名额
+     * @return 有名额返回true
+     */
+    boolean takeHostSlot() {
+        return mHostSlotGranted.getAndSet(false);
+    }
+
+    /**
+     * 请求不会再执行时归还已经交给它的host名额
+     */
+    private void releaseGrantedHostSlot() {
+        if (takeHostSlot()) {
+            mHostLimiter.release(request.getURI().getHost());
+        }
+    }
+
+    /**
+     * 请求已经取消，不会再执行：归还host名额，等待中的相同请求重新提交
+     */
+    void abandon() {
+        releaseGrantedHostSlot();
+        finishFlight();
+    }
+
+    /**
+     * 线程池已满，请求在执行之前被挤出队列(包括等待重试和等待host名额后重新提交的请求)，
+     * 按照提交失败处理，等待中的相同请求不会一直等待
+     */
+    @Override
+    public void onDiscarded() {
+        DebugLog.e(TAG, "request discarded by thread pool, url is %s", mRequest.getUrl());
+        onResubmitRejected(new RejectedExecutionException("discarded by a higher priority task"));
+    }
+
+    /**
+     * 重新提交到线程池失败，直接回调失败
+     * @param e
+     */
+    void onResubmitRejected(Exception e) {
+        if (isCancelled()) {
+            abandon();
+            return;
+        }
+        releaseGrantedHostSlot();
+        IOException error = new IOException("Resubmit rejected: " + e.getMessage());
+        mRequest.getResponseHandler().sendFailureMessage(0, null, null, error);
+        mFlightResult = SharedResult.failure(error);
+        mRequest.getResponseHandler().sendFinishMessage();
+        onPostProcessRequest(this);
+        isFinished = true;
+        finishFlight();
+    }
+
     public boolean isCancelled() {
         boolean cancelled = isCancelled.get();
         if (cancelled || mRequest.isCanceled()) {
@@ -272,4 +926,83 @@ public class AsyncHttpRequest extends XRunnable {
         return isCancelled();
     }
 
+    /**
+     * 请求的结果，可以回调给多个相同的请求
+     */
+    private static final class SharedResult {
+        int statusCode;
+        Header[] headers;
+        byte[] body;
+        Throwable error;
+        //网络请求的响应，不为null时交给Handler的sendResponseMessage处理
+        StatusLine statusLine;
+        Header contentType;
+        Header contentEncoding;
+
+        static SharedResult success(int statusCode, Header[] headers, byte[] body) {
+            SharedResult result = new SharedResult();
+            result.statusCode = statusCode;
+            result.headers = headers;
+            result.body = body;
+            return result;
+        }
+
+        static SharedResult failure(Throwable error) {
+            SharedResult result = new SharedResult();
+            result.error = error;
+            return result;
+        }
+
+        static SharedResult response(HttpResponse response, byte[] body) {
+            SharedResult result = new SharedResult();
+            result.statusLine = response.getStatusLine();
+            result.statusCode = result.statusLine.getStatusCode();
+            result.headers = response.getAllHeaders();
+            result.body = body;
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                result.contentType = entity.getContentType();
+                result.contentEncoding = entity.getContentEncoding();
+            }
+            return result;
+        }
+
+        HttpEntity newEntity() {
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(contentType);
+            entity.setContentEncoding(contentEncoding);
+            return entity;
+        }
+
+        HttpResponse newResponse() {
+            BasicHttpResponse response = new BasicHttpResponse(statusLine);
+            response.setHeaders(headers);
+            if (body != null) {
+                response.setEntity(newEntity());
+            }
+            return response;
+        }
+    }
+
+    /**
+     * host已经熔断时抛出，请求没有发送
+     */
+    public static class HostUnavailableException extends IOException {
+        HostUnavailableException(String host) {
+            super("Host " + host + " is unavailable, circuit is open");
+        }
+    }
+
+    /**
+     * 服务器返回503/429并且带有Retry-After时抛出，按照服务器要求的时间重试
+     */
+    private static class RetryAfterException extends IOException {
+        final long retryAfterMillis;
+
+        RetryAfterException(int statusCode, long retryAfterMillis) {
+            super("Server responded " + statusCode + ", retry after " + retryAfterMillis + " ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
 }
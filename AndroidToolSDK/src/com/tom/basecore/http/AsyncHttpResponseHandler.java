@@ -22,8 +22,13 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
+import com.tom.basecore.http.cache.Cache;
 import com.tom.basecore.http.cache.CacheEntry;
+import com.tom.basecore.http.cache.CacheKeyBuilder;
 import com.tom.basecore.http.cache.HttpHeaderParser;
+import com.tom.basecore.thread.ThreadPoolManager;
+import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
 import com.tom.basecore.utlis.DebugLog;
 
 import org.apache.http.Header;
@@ -31,7 +36,6 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
-import org.apache.http.util.ByteArrayBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -109,6 +113,11 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
     private Looper looper = null;
     private WeakReference<Object> TAG = new WeakReference<Object>(null);
     private Request<?> mRequest;
+    /**为true时不把响应写入缓存，相同的请求已经写入过*/
+    private volatile boolean mSkipCacheSave;
+
+    /**解析响应数据的线程池，所有的Handler共享，队列满时在提交任务的线程中直接解析，保证回调不会丢失*/
+    private static XThreadPoolExecutor sParserExecutor;
 
     /**
      * Creates a new AsyncHttpResponseHandler
@@ -401,7 +410,6 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
                     break;
                 case FINISH_MESSAGE:
                     onFinish();
-                    HttpManager.getInstance().notifyFinish(mRequest);
                     break;
                 case PROGRESS_MESSAGE:
                     response = (Object[]) message.obj;
@@ -425,7 +433,6 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
                     break;
                 case CANCEL_MESSAGE:
                     onCancel();
-                    HttpManager.getInstance().notifyFinish(mRequest);
                     break;
             }
         } catch (Throwable error) {
@@ -459,6 +466,39 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
         }
     }
 
+    private static synchronized XThreadPoolExecutor getParserExecutor() {
+        if (sParserExecutor == null) {
+            //runParser通常在主线程调用，队列不设上限，解析任务不会因为线程池已满回到主线程执行
+            sParserExecutor = ThreadPoolManager.createUnboundedPriorityThreadPool(1, 1);
+        }
+        return sParserExecutor;
+    }
+
+    /**
+     * 执行解析响应数据的任务
+     * <pre>
+     *     1、同步模式或者在请求线程中回调时，直接在当前线程执行
+     *     2、否则提交到所有Handler共享的解析线程池，任务的优先级和请求的优先级一致
+     * </pre>
+     * @param parser 解析任务，解析完成后通过{@link #postRunnable(Runnable)}回调结果
+     */
+    protected void runParser(final Runnable parser) {
+        if (getUseSynchronousMode() || getUsePoolThread()) {
+            // In synchronous mode everything should be run on one thread
+            parser.run();
+            return;
+        }
+        XRunnable<Void> task = new XRunnable<Void>() {
+            @Override
+            public void run() {
+                parser.run();
+            }
+        };
+        Request.Priority priority = mRequest != null ? mRequest.getPriority() : null;
+        task.setPriority((priority != null ? priority : Request.Priority.NORMAL).getTaskPriority());
+        getParserExecutor().submit(task);
+    }
+
     /**
      * Helper method to create Message instance from handler
      *
@@ -483,20 +523,56 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
                     sendFailureMessage(status.getStatusCode(), response.getAllHeaders(), responseBody, new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()));
                 } else {
                     sendSuccessMessage(status.getStatusCode(), response.getAllHeaders(), responseBody);
-                    if(mRequest!=null && mRequest.shouldCache() && HttpManager.getInstance().isDiskCacheCanUse()){
-                        CacheEntry entry= HttpHeaderParser.parseCacheHeaders(response);
-                        entry.data=responseBody;
-                        entry.softTtl=System.currentTimeMillis()+mRequest.getCacheTimeOut();
-                        HttpManager.getInstance().getHttpDiskCache().put(mRequest.getCacheKey(), entry);
-                        DebugLog.d(LOG_TAG,"sendResponseMessage:save Cache Success!!");
-                    }else{
-                        DebugLog.d(LOG_TAG,"sendResponseMessage:not Cache!!");
-                    }
+                    saveResponseToCache(response, responseBody);
                 }
             }
         }
     }
 
+    /**
+     * 当前请求是否需要把响应写入磁盘缓存
+     */
+    boolean shouldSaveToCache() {
+        return !mSkipCacheSave && mRequest != null && mRequest.shouldCache() && HttpManager.getInstance().isDiskCacheCanUse();
+    }
+
+    /**
+     * 合并的请求共享同一个响应时，只由执行网络请求的请求写入缓存
+     * @param skip
+     */
+    void setSkipCacheSave(boolean skip) {
+        this.mSkipCacheSave = skip;
+    }
+
+    /**
+     * 如果当前请求需要缓存，将响应写入磁盘缓存
+     * @param response
+     * @param responseBody 完整的响应数据
+     */
+    void saveResponseToCache(HttpResponse response, byte[] responseBody) {
+        if (shouldSaveToCache()) {
+            CacheEntry entry = HttpHeaderParser.parseCacheHeaders(response);
+            entry.data = responseBody;
+            entry.softTtl = System.currentTimeMillis() + mRequest.getCacheTimeOut();
+            Cache cache = HttpManager.getInstance().getHttpDiskCache();
+            String key = mRequest.getCacheKey();
+            String vary = HttpHeaderParser.parseVary(response);
+            if (vary.length() == 0) {
+                cache.put(key, entry);
+            } else if (CacheKeyBuilder.VARY_ALL.equals(vary)) {
+                DebugLog.d(LOG_TAG, "sendResponseMessage:Vary is *, not Cache!!");
+                return;
+            } else {
+                //一级key下保存Vary索引，响应按照Vary中请求头的值保存在二级key下
+                cache.put(key, CacheKeyBuilder.newVaryIndex(vary, entry));
+                cache.put(CacheKeyBuilder.secondaryKey(key, vary, getRequestHeaders()), entry);
+            }
+            DebugLog.d(LOG_TAG, "sendResponseMessage:save Cache Success!!");
+        } else {
+            DebugLog.d(LOG_TAG, "sendResponseMessage:not Cache!!");
+        }
+    }
+
     /**
      * Returns byte array of response HttpEntity contents
      *
@@ -513,26 +589,18 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
                 if (contentLength > Integer.MAX_VALUE) {
                     throw new IllegalArgumentException("HTTP entity too large to be buffered in memory");
                 }
-                int buffersize = (contentLength <= 0) ? BUFFER_SIZE : (int) contentLength;
                 try {
-                    ByteArrayBuffer buffer = new ByteArrayBuffer(buffersize);
                     try {
-                        byte[] tmp = new byte[BUFFER_SIZE];
-                        long count = 0;
-                        int l;
-                        // do not send messages if request has been cancelled
-                        while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
-                            count += l;
-                            buffer.append(tmp, 0, l);
-                            sendProgressMessage(count, (contentLength <= 0 ? 1 : contentLength));
+                        if (contentLength > 0) {
+                            responseBody = readFixedLength(instream, (int) contentLength);
+                        } else {
+                            responseBody = readUnknownLength(instream);
                         }
                     } finally {
                         AsyncHttpClient.silentCloseInputStream(instream);
                         AsyncHttpClient.endEntityViaReflection(entity);
                     }
-                    responseBody = buffer.toByteArray();
                 } catch (OutOfMemoryError e) {
-                    System.gc();
                     throw new IOException("File too large to fit into available memory");
                 }
             }
@@ -540,4 +608,64 @@ public abstract class AsyncHttpResponseHandler implements ResponseHandlerInterfa
         return responseBody;
     }
 
+    /**
+     * 已知Content-Length时直接读入最终的数组，避免再复制一次
+     */
+    private byte[] readFixedLength(InputStream instream, int contentLength) throws IOException {
+        byte[] body = new byte[contentLength];
+        int count = 0;
+        int l;
+        // do not send messages if request has been cancelled
+        while (count < contentLength && !Thread.currentThread().isInterrupted()
+                && (l = instream.read(body, count, Math.min(BUFFER_SIZE, contentLength - count))) != -1) {
+            count += l;
+            sendProgressMessage(count, contentLength);
+        }
+        if (count < contentLength) {
+            byte[] result = new byte[count];
+            System.arraycopy(body, 0, result, 0, count);
+            return result;
+        }
+        // 服务器返回的数据比Content-Length长，剩余部分按未知长度读取
+        int next = instream.read();
+        if (next == -1 || Thread.currentThread().isInterrupted()) {
+            return body;
+        }
+        PoolingByteArrayOutputStream buffer = new PoolingByteArrayOutputStream(ByteArrayPool.getInstance(), contentLength + BUFFER_SIZE);
+        try {
+            buffer.write(body, 0, contentLength);
+            buffer.write(next);
+            appendRemaining(instream, buffer, contentLength + 1, contentLength);
+            return buffer.toByteArray();
+        } finally {
+            buffer.close();
+        }
+    }
+
+    private byte[] readUnknownLength(InputStream instream) throws IOException {
+        PoolingByteArrayOutputStream buffer = new PoolingByteArrayOutputStream(ByteArrayPool.getInstance());
+        try {
+            appendRemaining(instream, buffer, 0, 1);
+            return buffer.toByteArray();
+        } finally {
+            buffer.close();
+        }
+    }
+
+    private void appendRemaining(InputStream instream, PoolingByteArrayOutputStream buffer, long count, long total) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getInstance();
+        byte[] tmp = pool.getBuf(BUFFER_SIZE);
+        try {
+            int l;
+            // do not send messages if request has been cancelled
+            while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
+                count += l;
+                buffer.write(tmp, 0, l);
+                sendProgressMessage(count, total);
+            }
+        } finally {
+            pool.returnBuf(tmp);
+        }
+    }
+
 }
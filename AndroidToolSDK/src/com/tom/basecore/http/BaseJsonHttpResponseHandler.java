@@ -18,15 +18,24 @@
 
 package com.tom.basecore.http;
 
+import android.util.JsonReader;
+
 import org.apache.http.Header;
 import org.apache.http.HttpStatus;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+
 /**
  * Class meant to be used with custom JSON parser (such as GSON or Jackson JSON) <p>&nbsp;</p>
  * {@link #parseResponse(String, boolean)} should be overriden and must return type of generic param
  * class, response will be then handled to implementation of abstract methods {@link #onSuccess(int,
  * Header[], String, Object)} or {@link #onFailure(int, Header[],
  * Throwable, String, Object)}, depending of response HTTP status line (result http code)
+ * <p>&nbsp;</p>
+ * {@link #isStreamParsing()}返回true时，响应数据不会转换成String，而是交给{@link #parseResponse(JsonReader, boolean)}
+ * 用{@link JsonReader}直接解析，回调中的原始字符串为null。响应仍然先完整读入byte[]，需要边下载边解析时使用
+ * {@link JsonStreamHttpResponseHandler}
  *
  * @param <JSON_TYPE> Generic type meant to be returned in callback
  */
@@ -70,14 +79,44 @@ public abstract class BaseJsonHttpResponseHandler<JSON_TYPE> extends TextHttpRes
      */
     public abstract void onFailure(int statusCode, Header[] headers, Throwable throwable, String rawJsonData, JSON_TYPE errorResponse);
 
+    @Override
+    public void onSuccess(int statusCode, Header[] headers, byte[] responseBytes) {
+        if (isStreamParsing()) {
+            handleSuccess(statusCode, headers, null, responseBytes);
+        } else {
+            super.onSuccess(statusCode, headers, responseBytes);
+        }
+    }
+
+    @Override
+    public void onFailure(int statusCode, Header[] headers, byte[] responseBytes, Throwable throwable) {
+        if (isStreamParsing()) {
+            handleFailure(statusCode, headers, null, responseBytes, throwable);
+        } else {
+            super.onFailure(statusCode, headers, responseBytes, throwable);
+        }
+    }
+
     @Override
     public final void onSuccess(final int statusCode, final Header[] headers, final String responseString) {
+        handleSuccess(statusCode, headers, responseString, null);
+    }
+
+    @Override
+    public final void onFailure(final int statusCode, final Header[] headers, final String responseString, final Throwable throwable) {
+        handleFailure(statusCode, headers, responseString, null, throwable);
+    }
+
+    /**
+     * @param responseBytes 不为null时用{@link JsonReader}解析，否则解析responseString
+     */
+    private void handleSuccess(final int statusCode, final Header[] headers, final String responseString, final byte[] responseBytes) {
         if (statusCode != HttpStatus.SC_NO_CONTENT) {
             Runnable parser = new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        final JSON_TYPE jsonResponse = parseResponse(responseString, false);
+                        final JSON_TYPE jsonResponse = parse(responseString, responseBytes, false);
                         postRunnable(new Runnable() {
                             @Override
                             public void run() {
@@ -95,25 +134,19 @@ public abstract class BaseJsonHttpResponseHandler<JSON_TYPE> extends TextHttpRes
                     }
                 }
             };
-            if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
-            } else {
-                // In synchronous mode everything should be run on one thread
-                parser.run();
-            }
+            runParser(parser);
         } else {
             onSuccess(statusCode, headers, null, null);
         }
     }
 
-    @Override
-    public final void onFailure(final int statusCode, final Header[] headers, final String responseString, final Throwable throwable) {
-        if (responseString != null) {
+    private void handleFailure(final int statusCode, final Header[] headers, final String responseString, final byte[] responseBytes, final Throwable throwable) {
+        if (responseString != null || responseBytes != null) {
             Runnable parser = new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        final JSON_TYPE jsonResponse = parseResponse(responseString, true);
+                        final JSON_TYPE jsonResponse = parse(responseString, responseBytes, true);
                         postRunnable(new Runnable() {
                             @Override
                             public void run() {
@@ -131,12 +164,7 @@ public abstract class BaseJsonHttpResponseHandler<JSON_TYPE> extends TextHttpRes
                     }
                 }
             };
-            if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
-            } else {
-                // In synchronous mode everything should be run on one thread
-                parser.run();
-            }
+            runParser(parser);
         } else {
             onFailure(statusCode, headers, throwable, null, null);
         }
@@ -152,4 +180,38 @@ public abstract class BaseJsonHttpResponseHandler<JSON_TYPE> extends TextHttpRes
      * @throws Throwable allows you to throw anything from within deserializing JSON response
      */
     protected abstract JSON_TYPE parseResponse(String rawJsonData, boolean isFailure) throws Throwable;
+
+    /**
+     * 是否用{@link JsonReader}直接解析响应数据，默认返回false，使用{@link #parseResponse(String, boolean)}
+     * @return 返回true时调用{@link #parseResponse(JsonReader, boolean)}，不会构造响应的String
+     */
+    protected boolean isStreamParsing() {
+        return false;
+    }
+
+    /**
+     * {@link #isStreamParsing()}返回true时在解析线程中调用，按需读取字段直接构造需要的对象，
+     * 不需要构造String和JSONObject/JSONArray
+     *
+     * @param reader    响应数据的JsonReader，已经跳过UTF-8 BOM，不需要关闭
+     * @param isFailure indicating if this method is called from onFailure or not
+     * @return object of generic type or possibly null if you choose so
+     * @throws Throwable allows you to throw anything from within deserializing JSON response
+     */
+    protected JSON_TYPE parseResponse(JsonReader reader, boolean isFailure) throws Throwable {
+        throw new UnsupportedOperationException("isStreamParsing() returns true but parseResponse(JsonReader, boolean) is not overridden");
+    }
+
+    private JSON_TYPE parse(String rawJsonData, byte[] responseBytes, boolean isFailure) throws Throwable {
+        if (responseBytes == null) {
+            return parseResponse(rawJsonData, isFailure);
+        }
+        JsonReader reader = new JsonReader(JsonStreamHttpResponseHandler.skipBom(
+                new InputStreamReader(new ByteArrayInputStream(responseBytes), getCharset())));
+        try {
+            return parseResponse(reader, isFailure);
+        } finally {
+            reader.close();
+        }
+    }
 }
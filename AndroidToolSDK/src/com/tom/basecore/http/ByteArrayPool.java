@@ -0,0 +1,193 @@
+package com.tom.basecore.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Description:进程内共享的byte[]对象池，用于读取响应、读写缓存时的临时数组，减少网络线程上的GC
+ * <pre>
+ *     1、数组按照尺寸等级存放，等级从{@link #MIN_CLASS_SIZE}开始每级翻倍，直到{@link #MAX_CLASS_SIZE}，
+ *        {@link #getBuf(int)}返回的数组长度是不小于请求长度的最小等级，可能比请求的长度大
+ *     2、超过{@link #MAX_CLASS_SIZE}的数组直接分配，也不会回收到对象池
+ *     3、对象池持有的字节数有上限，超过上限时归还的数组直接丢弃
+ *     4、通过{@link #hitCount()}、{@link #missCount()}、{@link #retainedBytes()}统计使用情况
+ *     5、从对象池获取的数组只能在使用完毕后归还一次，归还以后不能再使用
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-09 15:10
+ */
+public class ByteArrayPool {
+    public static final String TAG = "ByteArrayPool";
+
+    /** 最小的尺寸等级 */
+    public static final int MIN_CLASS_SIZE = 1024;
+
+    /** 最大的尺寸等级，更大的数组不进入对象池 */
+    public static final int MAX_CLASS_SIZE = 64 * 1024;
+
+    /** 默认最多持有的字节数 */
+    public static final int DEFAULT_MAX_RETAINED_BYTES = 512 * 1024;
+
+    private static ByteArrayPool sInstance;
+
+    /** 每个尺寸等级的空闲数组，后归还的在末尾 */
+    private final List<List<byte[]>> mClasses = new ArrayList<List<byte[]>>();
+
+    /** 最多持有的字节数 */
+    private int mMaxRetainedBytes;
+
+    /** 当前持有的字节数 */
+    private int mRetainedBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mDiscardCount;
+
+    /**
+     * 获取进程内共享的对象池
+     * @return
+     */
+    public static synchronized ByteArrayPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ByteArrayPool(DEFAULT_MAX_RETAINED_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxRetainedBytes 对象池最多持有的字节数
+     */
+    public ByteArrayPool(int maxRetainedBytes) {
+        for (int size = MIN_CLASS_SIZE; size <= MAX_CLASS_SIZE; size <<= 1) {
+            mClasses.add(new ArrayList<byte[]>());
+        }
+        setMaxRetainedBytes(maxRetainedBytes);
+    }
+
+    /**
+     * 修改对象池最多持有的字节数，超出的部分立即释放
+     * @param maxRetainedBytes
+     */
+    public synchronized void setMaxRetainedBytes(int maxRetainedBytes) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("maxRetainedBytes < 0");
+        }
+        mMaxRetainedBytes = maxRetainedBytes;
+        trimToSize(maxRetainedBytes);
+    }
+
+    /**
+     * 获取一个长度不小于len的数组，数组中的内容是不确定的
+     * @param len
+     * @return
+     */
+    public byte[] getBuf(int len) {
+        int index = classIndex(len);
+        if (index < 0) {
+            synchronized (this) {
+                mMissCount++;
+            }
+            return new byte[len];
+        }
+        synchronized (this) {
+            List<byte[]> free = mClasses.get(index);
+            if (!free.isEmpty()) {
+                byte[] buf = free.remove(free.size() - 1);
+                mRetainedBytes -= buf.length;
+                mHitCount++;
+                return buf;
+            }
+            mMissCount++;
+        }
+        return new byte[MIN_CLASS_SIZE << index];
+    }
+
+    /**
+     * 归还一个不再使用的数组，长度不是尺寸等级的数组会被忽略
+     * @param buf
+     */
+    public synchronized void returnBuf(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        int index = classIndex(buf.length);
+        if (index < 0 || (MIN_CLASS_SIZE << index) != buf.length) {
+            return;
+        }
+        if (mRetainedBytes + buf.length > mMaxRetainedBytes) {
+            mDiscardCount++;
+            return;
+        }
+        mClasses.get(index).add(buf);
+        mRetainedBytes += buf.length;
+    }
+
+    /**
+     * 释放对象池持有的所有数组
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(int maxSize) {
+        // 优先释放大数组
+        for (int i = mClasses.size() - 1; i >= 0 && mRetainedBytes > maxSize; i--) {
+            List<byte[]> free = mClasses.get(i);
+            while (!free.isEmpty() && mRetainedBytes > maxSize) {
+                mRetainedBytes -= free.remove(free.size() - 1).length;
+            }
+        }
+    }
+
+    /**
+     * @return len所属的尺寸等级，超过{@link #MAX_CLASS_SIZE}返回-1
+     */
+    private static int classIndex(int len) {
+        if (len > MAX_CLASS_SIZE) {
+            return -1;
+        }
+        int index = 0;
+        int size = MIN_CLASS_SIZE;
+        while (size < len) {
+            size <<= 1;
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * 从对象池中获取到数组的次数
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * 对象池中没有可用数组，需要重新分配的次数
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 对象池已满，归还的数组被丢弃的次数
+     */
+    public synchronized int discardCount() {
+        return mDiscardCount;
+    }
+
+    /**
+     * 对象池当前持有的字节数
+     */
+    public synchronized int retainedBytes() {
+        return mRetainedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("ByteArrayPool[retained=%d,maxRetained=%d,hits=%d,misses=%d,discards=%d,hitRate=%d%%]",
+                mRetainedBytes, mMaxRetainedBytes, mHitCount, mMissCount, mDiscardCount, hitPercent);
+    }
+}
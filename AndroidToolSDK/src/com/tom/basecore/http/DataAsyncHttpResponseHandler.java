@@ -21,7 +21,6 @@ package com.tom.basecore.http;
 import android.os.Message;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.util.ByteArrayBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -96,24 +95,26 @@ public abstract class DataAsyncHttpResponseHandler extends AsyncHttpResponseHand
                 if (contentLength < 0) {
                     contentLength = BUFFER_SIZE;
                 }
+                ByteArrayPool pool = ByteArrayPool.getInstance();
                 try {
-                    ByteArrayBuffer buffer = new ByteArrayBuffer((int) contentLength);
+                    PoolingByteArrayOutputStream buffer = new PoolingByteArrayOutputStream(pool, (int) contentLength);
+                    byte[] tmp = pool.getBuf(BUFFER_SIZE);
                     try {
-                        byte[] tmp = new byte[BUFFER_SIZE];
                         int l, count = 0;
                         // do not send messages if request has been cancelled
                         while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
                             count=count+l;
-                            buffer.append(tmp, 0, l);
+                            buffer.write(tmp, 0, l);
                             sendProgressDataMessage(copyOfRange(tmp, 0, l));
                             sendProgressMessage(count, contentLength);
                         }
+                        responseBody = buffer.toByteArray();
                     } finally {
                         AsyncHttpClient.silentCloseInputStream(instream);
+                        pool.returnBuf(tmp);
+                        buffer.close();
                     }
-                    responseBody = buffer.toByteArray();
                 } catch (OutOfMemoryError e) {
-                    System.gc();
                     throw new IOException("File too large to fit into available memory");
                 }
             }
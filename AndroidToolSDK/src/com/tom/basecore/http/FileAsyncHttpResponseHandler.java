@@ -206,8 +206,9 @@ public abstract class FileAsyncHttpResponseHandler extends AsyncHttpResponseHand
             long contentLength = entity.getContentLength();
             FileOutputStream buffer = new FileOutputStream(getTargetFile(), this.append);
             if (instream != null) {
+                ByteArrayPool pool = ByteArrayPool.getInstance();
+                byte[] tmp = pool.getBuf(BUFFER_SIZE);
                 try {
-                    byte[] tmp = new byte[BUFFER_SIZE];
                     int l, count = 0;
                     // do not send messages if request has been cancelled
                     while ((l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
@@ -216,6 +217,7 @@ public abstract class FileAsyncHttpResponseHandler extends AsyncHttpResponseHand
                         sendProgressMessage(count, contentLength);
                     }
                 } finally {
+                    pool.returnBuf(tmp);
                     AsyncHttpClient.silentCloseInputStream(instream);
                     buffer.flush();
                     AsyncHttpClient.silentCloseOutputStream(buffer);
@@ -0,0 +1,243 @@
+package com.tom.basecore.http;
+
+import com.tom.basecore.utlis.DebugLog;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Description:限制同一个host同时执行的http请求数量
+ * <pre>
+ *     1、请求开始执行时调用{@link #tryAcquire(String, AsyncHttpRequest, ExecutorService)}，如果该host正在执行的请求
+ *        已经达到上限，请求会被放入该host的等待队列并立即返回，不会占用线程池中的线程
+ *     2、请求执行完毕后调用{@link #release(String)}，名额直接交给等待队列中优先级最高的请求，再把它重新提交到线程池；
+ *        已经取消的请求被跳过，重新提交失败的请求直接回调失败
+ *     3、等待队列中相同优先级的请求按照先进先出的顺序执行，等待中的请求修改优先级时通过
+ *        {@link #updatePriority(String, AsyncHttpRequest, int)}重新排队
+ *     4、每个host实际的并发数量由{@link HostHealthTracker}根据请求结果动态调整，不超过{@link #getMaxPerHost()}；
+ *        并发数量增加时(包括熔断恢复、重置和调大上限)立即按照新的名额提交等待的请求
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-06 15:12
+ */
+class HostConcurrencyLimiter {
+    public static final String TAG = "HostConcurrencyLimiter";
+
+    /**每个host正在执行的请求数量*/
+    private final Map<String, Integer> mRunning = new HashMap<String, Integer>();
+    /**每个host等待执行的请求*/
+    private final Map<String, PriorityQueue<Waiter>> mWaiting = new HashMap<String, PriorityQueue<Waiter>>();
+    /**每个host最多同时执行的请求数量*/
+    private volatile int mMaxPerHost;
+    /**等待队列中的序号，保证相同优先级的请求先进先出*/
+    private long mSequence;
+    /**记录每个host的请求结果，用于熔断和调整并发数量*/
+    private final HostHealthTracker mHealth = new HostHealthTracker();
+
+    private static final Comparator<Waiter> WAITER_COMPARATOR = new Comparator<Waiter>() {
+        @Override
+        public int compare(Waiter lhs, Waiter rhs) {
+            int result = rhs.priority - lhs.priority;
+            if (result != 0) {
+                return result;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    HostConcurrencyLimiter(int maxPerHost) {
+        setMaxPerHost(maxPerHost);
+    }
+
+    void setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be at least 1");
+        }
+        boolean grown = maxPerHost > mMaxPerHost;
+        this.mMaxPerHost = maxPerHost;
+        if (grown) {
+            dispatchAll();
+        }
+    }
+
+    int getMaxPerHost() {
+        return mMaxPerHost;
+    }
+
+    HostHealthTracker getHealthTracker() {
+        return mHealth;
+    }
+
+    /**
+     * 记录一次收到响应的请求，该host的并发数量增加时提交等待的请求
+     * @see HostHealthTracker#onResponse(String, int, long, int)
+     */
+    void onResponse(String host, int statusCode, long latencyMillis) {
+        int before = mHealth.getLimit(host, mMaxPerHost);
+        mHealth.onResponse(host, statusCode, latencyMillis, mMaxPerHost);
+        if (mHealth.getLimit(host, mMaxPerHost) > before) {
+            dispatch(host);
+        }
+    }
+
+    /**
+     * 记录一次失败的请求
+     * @see HostHealthTracker#onFailure(String, int)
+     */
+    void onFailure(String host) {
+        mHealth.onFailure(host, mMaxPerHost);
+    }
+
+    /**
+     * 清除该host的熔断状态和并发数量调整，并发数量恢复到上限后提交等待的请求
+     * @param host
+     */
+    void resetHost(String host) {
+        mHealth.reset(host);
+        dispatch(host);
+    }
+
+    /**
+     * 所有host按照当前的名额提交等待的请求
+     */
+    private void dispatchAll() {
+        List<String> hosts;
+        synchronized (this) {
+            hosts = new ArrayList<String>(mWaiting.keySet());
+        }
+        for (String host : hosts) {
+            dispatch(host);
+        }
+    }
+
+    /**
+     * 尝试占用该host的一个执行名额
+     * @param host
+     * @param request 当前请求，占用失败时放入等待队列
+     * @param executor 名额释放后重新提交请求的线程池
+     * @return 占用成功返回true，此时请求结束后必须调用{@link #release(String)}
+     */
+    synchronized boolean tryAcquire(String host, AsyncHttpRequest request, ExecutorService executor) {
+        int count = getRunning(host);
+        if (count < mHealth.getLimit(host, mMaxPerHost)) {
+            mRunning.put(host, count + 1);
+            return true;
+        }
+        PriorityQueue<Waiter> waiters = mWaiting.get(host);
+        if (waiters == null) {
+            waiters = new PriorityQueue<Waiter>(11, WAITER_COMPARATOR);
+            mWaiting.put(host, waiters);
+        }
+        waiters.add(new Waiter(request, executor, request.getPriority(), mSequence++));
+        DebugLog.d(TAG, "host %s is busy, %d requests waiting", host, waiters.size());
+        return false;
+    }
+
+    /**
+     * 释放该host的一个执行名额，并把空出的名额交给等待队列中的请求
+     * @param host
+     */
+    void release(String host) {
+        decrement(host);
+        dispatch(host);
+    }
+
+    /**
+     * 该host还有空闲名额时，按照优先级把等待的请求重新提交到线程池，直到名额用完或者没有等待的请求。
+     * 名额在提交前就已经交给请求，请求开始执行时不再调用{@link #tryAcquire(String, AsyncHttpRequest, ExecutorService)}
+     * @param host
+     */
+    void dispatch(String host) {
+        while (true) {
+            Waiter next;
+            synchronized (this) {
+                PriorityQueue<Waiter> waiters = mWaiting.get(host);
+                int count = getRunning(host);
+                if (waiters == null || count >= mHealth.getLimit(host, mMaxPerHost)) {
+                    return;
+                }
+                next = waiters.poll();
+                if (waiters.isEmpty()) {
+                    mWaiting.remove(host);
+                }
+                mRunning.put(host, count + 1);
+            }
+            if (next.request.isCancelled()) {
+                //已经取消的请求不再执行，名额留给下一个等待的请求
+                decrement(host);
+                continue;
+            }
+            next.request.grantHostSlot();
+            try {
+                next.request.setFuture(next.executor.submit(next.request));
+            } catch (RejectedExecutionException e) {
+                DebugLog.e(TAG, "resubmit waiting request failed:" + e.getMessage());
+                if (next.request.takeHostSlot()) {
+                    decrement(host);
+                }
+                next.request.onResubmitRejected(e);
+            }
+        }
+    }
+
+    /**
+     * 修改等待中的请求的优先级，按照新的优先级重新排队
+     * @param host
+     * @param request
+     * @param priority
+     * @return 请求在该host的等待队列中返回true
+     */
+    synchronized boolean updatePriority(String host, AsyncHttpRequest request, int priority) {
+        PriorityQueue<Waiter> waiters = mWaiting.get(host);
+        if (waiters == null) {
+            return false;
+        }
+        for (Waiter waiter : waiters) {
+            if (waiter.request == request) {
+                //PriorityQueue不会感知元素的变化，先移除再按照新的优先级放回
+                waiters.remove(waiter);
+                waiters.add(new Waiter(request, waiter.executor, priority, waiter.sequence));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getRunning(String host) {
+        Integer running = mRunning.get(host);
+        return running == null ? 0 : running;
+    }
+
+    private synchronized void decrement(String host) {
+        int running = getRunning(host);
+        if (running <= 1) {
+            mRunning.remove(host);
+        } else {
+            mRunning.put(host, running - 1);
+        }
+    }
+
+    /**
+     * 等待执行的请求
+     */
+    private static final class Waiter {
+        final AsyncHttpRequest request;
+        final ExecutorService executor;
+        //入队时的优先级，请求的优先级之后可能被修改，队列只按照这里的值排序
+        final int priority;
+        final long sequence;
+
+        Waiter(AsyncHttpRequest request, ExecutorService executor, int priority, long sequence) {
+            this.request = request;
+            this.executor = executor;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.tom.basecore.http;
+
+import android.os.SystemClock;
+
+import com.tom.basecore.utlis.DebugLog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Description:记录每个host的请求结果和耗时，用于熔断和调整该host的并发数量
+ * <pre>
+ *     1、熔断器有三种状态：
+ *        CLOSED：正常状态，连续失败{@link #FAILURE_THRESHOLD}次后进入OPEN
+ *        OPEN：该host的请求直接失败(有缓存时使用缓存)，不占用线程和连接，等待一段时间后进入HALF_OPEN
+ *        HALF_OPEN：只放行一个探测请求，成功后回到CLOSED，失败后重新进入OPEN，等待时间翻倍
+ *     2、并发数量按照AIMD调整：请求成功时每次增加1/limit，失败时减半；响应耗时超过基准耗时
+ *        {@link #LATENCY_TOLERANCE}倍时小幅减少，避免一个变慢的host占满共享的线程池
+ *     3、连接失败、5xx和429视为失败，其他状态码说明host可以正常响应，视为成功
+ *     4、最多记录{@link #MAX_HOSTS}个host，超出时移除最久没有访问的host
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-10 15:30
+ */
+class HostHealthTracker {
+    public static final String TAG = "HostHealthTracker";
+
+    /** 连续失败多少次后熔断 */
+    static final int FAILURE_THRESHOLD = 5;
+    /** 第一次熔断的时长 */
+    static final long MIN_OPEN_MILLIS = 10 * 1000;
+    /** 探测失败后熔断时长翻倍，最多到这个时长 */
+    static final long MAX_OPEN_MILLIS = 2 * 60 * 1000;
+    /** 响应耗时超过基准耗时的倍数时减少并发数量 */
+    static final double LATENCY_TOLERANCE = 2.0;
+    /** 最多记录的host数量 */
+    static final int MAX_HOSTS = 64;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Map<String, HostState> mHosts = new LinkedHashMap<String, HostState>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HostState> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    /**
+     * 该host当前是否可以发送请求，HALF_OPEN状态下只有一个请求可以通过
+     * @param host
+     * @return
+     */
+    synchronized boolean allowRequest(String host) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        switch (state.state) {
+            case OPEN:
+                if (now < state.openUntil) {
+                    return false;
+                }
+                DebugLog.d(TAG, "host %s half open, send probe request", host);
+                state.state = State.HALF_OPEN;
+                state.probeStartTime = now;
+                return true;
+            case HALF_OPEN:
+                // 探测请求被取消时不会有结果，超过熔断时长后允许下一个探测请求
+                if (now - state.probeStartTime < state.openMillis) {
+                    return false;
+                }
+                state.probeStartTime = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * 获取该host当前允许的并发数量
+     * @param host
+     * @param maxPerHost 并发数量的上限
+     * @return
+     */
+    synchronized int getLimit(String host, int maxPerHost) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            return maxPerHost;
+        }
+        if (state.limit > maxPerHost) {
+            state.limit = maxPerHost;
+        }
+        return Math.max(1, (int) state.limit);
+    }
+
+    /**
+     * 记录一次收到响应的请求
+     * @param host
+     * @param statusCode 响应的状态码
+     * @param latencyMillis 从发送请求到收到响应头的耗时
+     * @param maxPerHost 并发数量的上限
+     */
+    void onResponse(String host, int statusCode, long latencyMillis, int maxPerHost) {
+        if (statusCode >= 500 || statusCode == 429) {
+            onFailure(host, maxPerHost);
+        } else {
+            onSuccess(host, latencyMillis, maxPerHost);
+        }
+    }
+
+    /**
+     * 记录一次成功的请求
+     */
+    synchronized void onSuccess(String host, long latencyMillis, int maxPerHost) {
+        HostState state = getOrCreate(host, maxPerHost);
+        if (state.state != State.CLOSED) {
+            DebugLog.d(TAG, "host %s recovered, close circuit", host);
+        }
+        state.state = State.CLOSED;
+        state.failures = 0;
+        state.openMillis = MIN_OPEN_MILLIS;
+
+        if (state.baseLatency <= 0 || latencyMillis < state.baseLatency) {
+            state.baseLatency = Math.max(latencyMillis, 1);
+        } else {
+            // 基准耗时缓慢跟随实际耗时，避免网络环境变化后一直使用旧的最小值
+            state.baseLatency += (latencyMillis - state.baseLatency) * 0.01;
+        }
+        if (latencyMillis > state.baseLatency * LATENCY_TOLERANCE) {
+            state.limit = Math.max(1, state.limit * 0.9);
+        } else {
+            state.limit = Math.min(maxPerHost, state.limit + 1 / state.limit);
+        }
+    }
+
+    /**
+     * 记录一次失败的请求
+     */
+    synchronized void onFailure(String host, int maxPerHost) {
+        HostState state = getOrCreate(host, maxPerHost);
+        state.limit = Math.max(1, state.limit / 2);
+        state.failures++;
+        long now = SystemClock.elapsedRealtime();
+        if (state.state == State.HALF_OPEN) {
+            state.openMillis = Math.min(state.openMillis * 2, MAX_OPEN_MILLIS);
+            open(host, state, now);
+        } else if (state.state == State.CLOSED && state.failures >= FAILURE_THRESHOLD) {
+            open(host, state, now);
+        }
+    }
+
+    private void open(String host, HostState state, long now) {
+        state.state = State.OPEN;
+        state.openUntil = now + state.openMillis;
+        DebugLog.e(TAG, "host %s failed %d times, open circuit for %d ms", host, state.failures, state.openMillis);
+    }
+
+    /**
+     * 获取该host的熔断器状态
+     * @param host
+     * @return
+     */
+    synchronized State getState(String host) {
+        HostState state = mHosts.get(host);
+        return state == null ? State.CLOSED : state.state;
+    }
+
+    /**
+     * 清除该host的记录，恢复到正常状态
+     * @param host
+     */
+    synchronized void reset(String host) {
+        mHosts.remove(host);
+    }
+
+    private HostState getOrCreate(String host, int maxPerHost) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            state = new HostState(maxPerHost);
+            mHosts.put(host, state);
+        }
+        return state;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("HostHealthTracker[");
+        boolean first = true;
+        for (Map.Entry<String, HostState> entry : mHosts.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            HostState state = entry.getValue();
+            sb.append(String.format("%s{state=%s,limit=%.1f,failures=%d,baseLatency=%.0fms}",
+                    entry.getKey(), state.state, state.limit, state.failures, state.baseLatency));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static final class HostState {
+        State state = State.CLOSED;
+        /** 当前允许的并发数量 */
+        double limit;
+        /** 连续失败的次数 */
+        int failures;
+        /** 本次熔断的时长 */
+        long openMillis = MIN_OPEN_MILLIS;
+        /** 熔断结束的时间 */
+        long openUntil;
+        /** 探测请求开始的时间 */
+        long probeStartTime;
+        /** 基准耗时，接近该host在没有排队时的响应耗时 */
+        double baseLatency;
+
+        HostState(int maxPerHost) {
+            this.limit = maxPerHost;
+        }
+    }
+}
@@ -1,31 +1,49 @@
 package com.tom.basecore.http;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
+import com.tom.basecore.http.cache.Cache;
 import com.tom.basecore.http.cache.DiskBasedCache;
+import com.tom.basecore.http.cache.SegmentBasedCache;
+import com.tom.basecore.http.cache.WriteBehindCache;
+import com.tom.basecore.thread.ThreadPoolManager;
+import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
 import com.tom.basecore.utlis.AppUtils;
 import com.tom.basecore.utlis.DebugLog;
 
+import org.apache.http.Header;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Description:用于管理所有的http请求
  * <pre>
- *     1、默认情况下，所有的http请求使用共同的{@link AsyncHttpClient}对象，除非
- *     在{@link Request}中进行特殊的设置.如设置了重试次数等，具体见{@link Request#isBaseRequest()}
- *     2、如果要启动http缓存功能，那么需要提前调用{@link #initHttpDiskCache(Context)}
- *     3、在进行一次http请求之前，会检查是否有相同的http请求正在进行，如果有则此次http请求直接等待之前的http请求，
- *     并使用缓存的结果
- *     4、取消http请求使用{@link #cancelAllRequests(boolean)} or {@link #cancelRequestByTag(String, boolean)}
+ *     1、{@link AsyncHttpClient}按照{@link Request}的配置(重试次数、超时时间、是否修正无响应错误、代理、用户代理)缓存，
+ *     配置相同的请求共享同一个{@link AsyncHttpClient}和连接池，可以复用keep-alive连接；使用默认配置的请求共享{@link #mHttpClient}。
+ *     空闲的连接和长时间没有使用的{@link AsyncHttpClient}会被定期清理，见{@link #evictIdleConnections()}；
+ *     被移除的{@link AsyncHttpClient}在它发出的请求都结束后关闭连接管理器
+ *     2、如果要启动http缓存功能，那么需要提前调用{@link #initHttpDiskCache(Context)}，响应在后台线程写入磁盘缓存，
+ *     见{@link WriteBehindCache}
+ *     3、同时发起的相同GET请求(url和请求头都相同)会被合并，只有一个请求访问缓存和网络，其他请求不占用线程，
+ *     直接收到同一份响应，见{@link Request#setShouldCoalesce(boolean)}
+ *     4、缓存过期后在stale-while-revalidate时间内直接使用过期的缓存，并在后台以低优先级刷新，相同的缓存同时只刷新一次；
+ *     在stale-if-error时间内网络请求失败时使用过期的缓存，见{@link Request#setStaleWhileRevalidate(long)}
+ *     和{@link Request#setStaleIfError(long)}
+ *     5、{@link #prefetch(Collection)}以最低优先级预取下一个页面需要的请求，只写入磁盘缓存，没有回调
+ *     6、取消http请求使用{@link #cancelAllRequests(boolean)} or {@link #cancelRequestByTag(String, boolean)}
  *     or{@link #cancelRequests(List, boolean)}
  * </pre>
  * User： yuanzeyao.
@@ -37,21 +55,52 @@ public class HttpManager {
     public static final int STATUS_CODE_LOCAL=-1;
     /**标识 使用过期的缓存的状态码 */
     public static final int STATUS_CODE_LOCAL_EXPIRED=-2;
+    /**标识 缓存已经过期，但服务器返回304确认内容没有修改，使用缓存的状态码 */
+    public static final int STATUS_CODE_LOCAL_NOT_MODIFIED=-3;
     /**默认的AsyncHttpClient对象*/
     private AsyncHttpClient mHttpClient;
+    /**默认AsyncHttpClient对应的配置*/
+    private static final ClientConfig DEFAULT_CLIENT_CONFIG = new ClientConfig(AsyncHttpClient.DEFAULT_MAX_RETRIES,
+            false, AsyncHttpClient.DEFAULT_SOCKET_TIMEOUT, AsyncHttpClient.DEFAULT_SOCKET_TIMEOUT, "", "", -1);
+    /**按照配置缓存的AsyncHttpClient，不包括{@link #mHttpClient}*/
+    private final Map<ClientConfig, ClientEntry> mHttpClients = new HashMap<ClientConfig, ClientEntry>();
+    /**连接空闲超过此时间后关闭*/
+    private static final long IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+    /**AsyncHttpClient超过此时间没有使用后从缓存中移除*/
+    private static final long IDLE_CLIENT_TIMEOUT = 5 * 60 * 1000;
+    /**两次清理空闲连接的最小间隔*/
+    private static final long EVICT_INTERVAL = 30 * 1000;
+    /**上次清理空闲连接的时间*/
+    private long mLastEvictTime;
+    /**已经从缓存中移除、等待请求结束后关闭的AsyncHttpClient，由mHttpClients保护*/
+    private final List<AsyncHttpClient> mEvictedClients = new ArrayList<AsyncHttpClient>();
+    /**是否已经登记了下一次检查mEvictedClients，由mHttpClients保护*/
+    private boolean mDrainCheckScheduled;
+    /**关闭空闲连接的线程，清理任务最多每{@link #EVICT_INTERVAL}提交一次，不为每次清理创建线程*/
+    private final XThreadPoolExecutor mCleanupExecutor = ThreadPoolManager.createSingleThreadPool(1);
+    private int mClientHitCount;
+    private int mClientMissCount;
+    private int mClientEvictionCount;
     /**磁盘缓存文件夹*/
     private static final String mCacheDirName="http";
+    /**segment方式存储的磁盘缓存文件夹，和按文件存储的缓存分开存放*/
+    private static final String mSegmentCacheDirName="http-segment";
     /**磁盘缓存目录*/
     private File mHttpCacheDir;
     /**磁盘缓存*/
-    private DiskBasedCache mHttpDiskCache;
+    private Cache mHttpDiskCache;
     /**磁盘缓存默认大小*/
     private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
     /**磁盘缓存是否已经初始化*/
     private boolean mHttpDiskCacheInit = false;
-    /**存放当前正在进行的相同的http请求，key是Request的cacheKey*/
-    private final Map<String, Queue<Request<?>>> mWaitingRequests =
-            new HashMap<String, Queue<Request<?>>>();
+    /**刷新缓存和预取等后台请求使用的tag*/
+    public static final String BACKGROUND_TAG = "BACKGROUND_TAG";
+    /**后台预取请求的调度器*/
+    private final Prefetcher mPrefetcher = new Prefetcher(this);
+    /**后台刷新缓存的请求超过此时间没有结束时，允许再次发起刷新*/
+    private static final long REVALIDATE_TIMEOUT = 60 * 1000;
+    /**正在后台刷新的缓存，key是缓存的key，value是发起刷新的时间*/
+    private final Map<String, Long> mRevalidating = new HashMap<String, Long>();
     /**存放没有完成的http请求，key 是每个Request的tag*/
     private final Map<String, List<RequestHandle>> requestMap=
             Collections.synchronizedMap(new WeakHashMap<String, List<RequestHandle>>());
@@ -63,6 +112,7 @@ public class HttpManager {
 
     private HttpManager() {
         mHttpClient = new AsyncHttpClient();
+        mLastEvictTime = SystemClock.elapsedRealtime();
     }
 
     public static HttpManager getInstance() {
@@ -73,43 +123,13 @@ public class HttpManager {
      * 执行http网络请求
      *
      * @param mRequest
-     * @return
+     * @return 用于取消请求或者修改优先级的{@link RequestHandle}
      */
-    public void performRequest(Request<?> mRequest) {
-         performRequest(mRequest, true);
-    }
-
-    /**
-     * 执行http网络请求
-     * @param mRequest
-     * @param checkRepet
-     *          是否检查有相同的http请求正在进行
-     */
-    private void performRequest(Request<?> mRequest,boolean checkRepet){
+    public RequestHandle performRequest(Request<?> mRequest) {
         if (mRequest == null) {
             throw new NullPointerException("performRequest:mRequest should not be null!");
         }
         DebugLog.d(TAG,"Request key:"+mRequest.getCacheKey());
-        if (mRequest.shouldCache() && checkRepet) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = mRequest.getCacheKey();
-                if (mWaitingRequests.containsKey(cacheKey)) {
-                    // There is already a request in flight. Queue up.
-                    Queue<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
-                    if (stagedRequests == null) {
-                        stagedRequests = new LinkedList<Request<?>>();
-                    }
-                    stagedRequests.add(mRequest);
-                    mWaitingRequests.put(cacheKey, stagedRequests);
-                    DebugLog.d(TAG,"Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
-                    return ;
-                } else {
-                    // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                    // flight.
-                    mWaitingRequests.put(cacheKey, null);
-                }
-            }
-        }
         AsyncHttpClient mClient = getHttpClient(mRequest);
         if (mClient == null) {
             throw new NullPointerException("performRequest:mHttpClient should not be null!");
@@ -122,6 +142,188 @@ public class HttpManager {
             mHandler=mClient.get(mRequest);
         }
         updateRequestMap(mRequest,mHandler);
+        if (!BACKGROUND_TAG.equals(mRequest.getTag())) {
+            mPrefetcher.onForegroundRequest();
+        }
+        return mHandler;
+    }
+
+    /**
+     * 预取请求，把响应写入磁盘缓存，供之后的请求直接使用
+     * <pre>
+     *     1、只预取需要缓存的请求({@link Request#shouldCache()})，磁盘缓存中已有没有过期的缓存时，
+     *        预取请求在请求线程中读取到缓存后直接结束，不会发起网络请求；调用线程不读取磁盘缓存
+     *     2、预取请求使用{@link Request.Priority#LOW}优先级，不会回调传入请求的{@link ResponseHandlerInterface}，
+     *        传入的请求只提供url、参数、请求头和网络配置
+     *     3、同时执行的预取请求数量有上限，前台请求增多时自动暂停，见{@link Prefetcher}
+     * </pre>
+     * @param requests
+     */
+    public void prefetch(Collection<? extends Request<?>> requests) {
+        if (requests == null || requests.isEmpty()) {
+            return;
+        }
+        if (!isDiskCacheCanUse()) {
+            DebugLog.d(TAG, "prefetch: disk cache is not ready, skip %d requests", requests.size());
+            return;
+        }
+        for (Request<?> request : requests) {
+            if (request == null || !request.shouldCache()) {
+                continue;
+            }
+            mPrefetcher.enqueue(request);
+        }
+        mPrefetcher.schedule();
+    }
+
+    /**
+     * 取消所有排队和正在执行的预取请求
+     */
+    public void cancelPrefetch() {
+        mPrefetcher.cancelAll();
+    }
+
+    /**
+     * 获取排队和正在执行的预取请求的数量
+     * @return
+     */
+    public int getPrefetchCount() {
+        return mPrefetcher.size();
+    }
+
+    /**
+     * 在后台以低优先级重新请求source，刷新过期的缓存(stale-while-revalidate)，相同的缓存同时只刷新一次
+     * @param source 已经使用过期缓存结束的请求
+     */
+    void revalidate(final Request<?> source) {
+        final String key = source.getCacheKey();
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mRevalidating) {
+            Long startTime = mRevalidating.get(key);
+            if (startTime != null && now - startTime < REVALIDATE_TIMEOUT) {
+                DebugLog.d(TAG, "revalidate is running, skip. url is %s", source.getUrl());
+                return;
+            }
+            mRevalidating.put(key, now);
+        }
+        Request<Void> request = newBackgroundRequest(source, new Runnable() {
+            @Override
+            public void run() {
+                finishRevalidate(key);
+            }
+        });
+        try {
+            performRequest(request);
+        } catch (RuntimeException e) {
+            DebugLog.e(TAG, "revalidate failed:" + e.getMessage());
+            finishRevalidate(key);
+        }
+    }
+
+    private void finishRevalidate(String key) {
+        synchronized (mRevalidating) {
+            mRevalidating.remove(key);
+        }
+    }
+
+    /**
+     * 以低优先级执行source的副本，响应只写入缓存
+     * @param source
+     * @param onDone 请求结束或者取消时在请求线程中调用
+     * @return
+     */
+    RequestHandle performBackgroundRequest(Request<?> source, Runnable onDone) {
+        return performRequest(newBackgroundRequest(source, onDone));
+    }
+
+    /**
+     * 复制source的url、参数、请求头和网络配置，生成没有回调的低优先级请求
+     */
+    private Request<Void> newBackgroundRequest(Request<?> source, Runnable onDone) {
+        final Header[] headers = source.getHeaders();
+        Request<Void> request = new Request<Void>(source.getMethod(), source.getUrl(), new BackgroundResponseHandler(onDone)) {
+            @Override
+            protected Header[] getHeaders() {
+                return headers;
+            }
+        };
+        request.setRequestParams(source.getRequestParams())
+                .setPriority(Request.Priority.LOW)
+                .setConnectionTimeout(source.getConnectionTimeout())
+                .setSocketTimeout(source.getSocketTimeout())
+                .setUserAgent(source.getUserAgent())
+                .setFixNoHttpResponseException(source.getFixNoHttpResponseException())
+                .setMaxRetry(source.getMaxRetry());
+        request.setProxy(source.getProxyHost(), source.getProxyPort());
+        request.setCacheTimeOut(source.getCacheTimeOut());
+        request.setTag(BACKGROUND_TAG);
+        //缓存过期时直接发送条件请求，不回调过期的缓存
+        request.setRevalidation(true);
+        return request;
+    }
+
+    /**
+     * 获取前台(不包括刷新缓存和预取)还没有结束的请求数量
+     * @return
+     */
+    int getForegroundRequestCount() {
+        int count = 0;
+        synchronized (requestMap) {
+            for (Map.Entry<String, List<RequestHandle>> entry : requestMap.entrySet()) {
+                if (BACKGROUND_TAG.equals(entry.getKey()) || entry.getValue() == null) {
+                    continue;
+                }
+                synchronized (entry.getValue()) {
+                    for (RequestHandle handle : entry.getValue()) {
+                        if (!handle.isFinished() && !handle.isCancelled()) {
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 后台请求(刷新缓存、预取)使用的回调，响应由{@link AsyncHttpResponseHandler}写入缓存，
+     * 这里只在请求结束时通知调用方
+     */
+    private static final class BackgroundResponseHandler extends AsyncHttpResponseHandler {
+        private final Runnable mOnDone;
+        private final AtomicBoolean mDone = new AtomicBoolean();
+
+        BackgroundResponseHandler(Runnable onDone) {
+            //在请求线程中回调，不依赖调用线程的Looper
+            super(true);
+            this.mOnDone = onDone;
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+            DebugLog.d(TAG, "background request success, statusCode:%d", statusCode);
+        }
+
+        @Override
+        public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+            DebugLog.d(TAG, "background request failed, statusCode:%d", statusCode);
+        }
+
+        @Override
+        public void onFinish() {
+            done();
+        }
+
+        @Override
+        public void onCancel() {
+            done();
+        }
+
+        private void done() {
+            if (mOnDone != null && mDone.compareAndSet(false, true)) {
+                mOnDone.run();
+            }
+        }
     }
 
     /**
@@ -153,8 +355,8 @@ public class HttpManager {
     }
 
     /**
-     * 拿到一个{@link AsyncHttpClient} 如果指定{@link Request}的重试次数和是否修正无响应错误
-     * 都等于默认值，那么就是用默认的{@link #mHttpClient},否则自己创建一个
+     * 拿到一个{@link AsyncHttpClient}，配置和默认值相同时使用{@link #mHttpClient}，否则使用按照配置缓存的对象，
+     * 缓存中没有时创建一个
      * @param mRequest
      * @return
      */
@@ -162,11 +364,36 @@ public class HttpManager {
         if (mRequest == null) {
             throw new NullPointerException("getHttpClient mRequest is null!");
         }
-        if (mRequest.isBaseRequest()) {
-            return mHttpClient;
-        } else {
-            return createHttpClient(mRequest);
+        ClientConfig config = new ClientConfig(mRequest);
+        AsyncHttpClient client;
+        List<AsyncHttpClient> active = null;
+        synchronized (mHttpClients) {
+            long now = SystemClock.elapsedRealtime();
+            if (DEFAULT_CLIENT_CONFIG.equals(config)) {
+                client = mHttpClient;
+                mClientHitCount++;
+            } else {
+                ClientEntry entry = mHttpClients.get(config);
+                if (entry == null) {
+                    entry = new ClientEntry(createHttpClient(mRequest));
+                    mHttpClients.put(config, entry);
+                    mClientMissCount++;
+                    DebugLog.d(TAG, "create AsyncHttpClient for %s, %d clients cached", config, mHttpClients.size());
+                } else {
+                    mClientHitCount++;
+                }
+                entry.lastUsedTime = now;
+                client = entry.client;
+            }
+            if (now - mLastEvictTime >= EVICT_INTERVAL) {
+                active = new ArrayList<AsyncHttpClient>();
+                removeIdleClientsLocked(now, active);
+            }
+        }
+        if (active != null) {
+            closeIdleConnectionsAsync(active);
         }
+        return client;
     }
 
     /**
@@ -176,15 +403,180 @@ public class HttpManager {
      */
     private AsyncHttpClient createHttpClient(Request<?> mRequest) {
         AsyncHttpClient mClient = new AsyncHttpClient(mRequest.getFixNoHttpResponseException());
-        mClient.setMaxRetriesAndTimeout(mRequest.getMaxRetry(), mRequest.getConnectionTimeout());
+        mClient.setMaxRetriesAndTimeout(mRequest.getMaxRetry(), AsyncHttpClient.DEFAULT_RETRY_SLEEP_TIME_MILLIS);
         return mClient;
     }
 
+    /**
+     * 关闭所有{@link AsyncHttpClient}中空闲的连接，并移除长时间没有使用的{@link AsyncHttpClient}，
+     * 执行请求时也会定期自动清理
+     */
+    public void evictIdleConnections() {
+        List<AsyncHttpClient> active = new ArrayList<AsyncHttpClient>();
+        synchronized (mHttpClients) {
+            removeIdleClientsLocked(SystemClock.elapsedRealtime(), active);
+        }
+        closeIdleConnectionsAsync(active);
+    }
+
+    /**
+     * 移除超过{@link #IDLE_CLIENT_TIMEOUT}没有使用的{@link AsyncHttpClient}
+     * @param now
+     * @param active 仍然在缓存中的{@link AsyncHttpClient}，关闭其中空闲超过{@link #IDLE_CONNECTION_TIMEOUT}的连接；
+     *               被移除的放入{@link #mEvictedClients}，见{@link #shutdownDrainedClients()}
+     */
+    private void removeIdleClientsLocked(long now, List<AsyncHttpClient> active) {
+        mLastEvictTime = now;
+        active.add(mHttpClient);
+        Iterator<ClientEntry> iterator = mHttpClients.values().iterator();
+        while (iterator.hasNext()) {
+            ClientEntry entry = iterator.next();
+            if (now - entry.lastUsedTime >= IDLE_CLIENT_TIMEOUT) {
+                iterator.remove();
+                mClientEvictionCount++;
+                mEvictedClients.add(entry.client);
+            } else {
+                active.add(entry.client);
+            }
+        }
+    }
+
+    /**
+     * 关闭连接会有网络操作，不能在调用线程(通常是UI线程)中执行，在{@link #mCleanupExecutor}中执行
+     */
+    private void closeIdleConnectionsAsync(final List<AsyncHttpClient> active) {
+        XRunnable<Void> task = new XRunnable<Void>() {
+            @Override
+            public void run() {
+                closeIdleConnections(active, IDLE_CONNECTION_TIMEOUT);
+                shutdownDrainedClients();
+            }
+        };
+        task.setPriority(Thread.MIN_PRIORITY);
+        //队列满时会被丢弃，被移除的AsyncHttpClient保存在mEvictedClients中，下一次清理时仍然会处理
+        mCleanupExecutor.submit(task);
+    }
+
+    /**
+     * 关闭被移除的{@link AsyncHttpClient}中所有空闲的连接，请求都已经结束的关闭连接管理器；
+     * 还有请求没有结束时等待{@link #IDLE_CONNECTION_TIMEOUT}后再检查一次
+     */
+    private void shutdownDrainedClients() {
+        List<AsyncHttpClient> evicted;
+        synchronized (mHttpClients) {
+            if (mEvictedClients.isEmpty()) {
+                return;
+            }
+            evicted = new ArrayList<AsyncHttpClient>(mEvictedClients);
+        }
+        closeIdleConnections(evicted, 0);
+        List<AsyncHttpClient> drained = new ArrayList<AsyncHttpClient>();
+        for (AsyncHttpClient client : evicted) {
+            if (client.isDrained()) {
+                drained.add(client);
+            }
+        }
+        boolean scheduleCheck;
+        synchronized (mHttpClients) {
+            mEvictedClients.removeAll(drained);
+            scheduleCheck = !mEvictedClients.isEmpty() && !mDrainCheckScheduled;
+            if (scheduleCheck) {
+                mDrainCheckScheduled = true;
+            }
+        }
+        for (AsyncHttpClient client : drained) {
+            try {
+                client.shutdown();
+            } catch (Exception e) {
+                DebugLog.d(TAG, "shutdown AsyncHttpClient failed:%s", e.toString());
+            }
+        }
+        DebugLog.d(TAG, "shutdown %d evicted AsyncHttpClient, %d still busy", drained.size(), evicted.size() - drained.size());
+        if (scheduleCheck) {
+            boolean scheduled = RetryScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mHttpClients) {
+                        mDrainCheckScheduled = false;
+                    }
+                    closeIdleConnectionsAsync(Collections.<AsyncHttpClient>emptyList());
+                }
+            }, IDLE_CONNECTION_TIMEOUT);
+            if (!scheduled) {
+                synchronized (mHttpClients) {
+                    mDrainCheckScheduled = false;
+                }
+            }
+        }
+    }
+
+    private static void closeIdleConnections(List<AsyncHttpClient> clients, long idleTimeMillis) {
+        for (AsyncHttpClient client : clients) {
+            try {
+                client.closeIdleConnections(idleTimeMillis);
+            } catch (Exception e) {
+                DebugLog.d(TAG, "closeIdleConnections failed:%s", e.toString());
+            }
+        }
+    }
+
+    /**
+     * 获取{@link AsyncHttpClient}连接池的统计信息
+     * @return
+     */
+    public String getClientPoolStats() {
+        List<AsyncHttpClient> clients = new ArrayList<AsyncHttpClient>();
+        int hits;
+        int misses;
+        int evictions;
+        synchronized (mHttpClients) {
+            clients.add(mHttpClient);
+            for (ClientEntry entry : mHttpClients.values()) {
+                clients.add(entry.client);
+            }
+            hits = mClientHitCount;
+            misses = mClientMissCount;
+            evictions = mClientEvictionCount;
+        }
+        int connections = 0;
+        for (AsyncHttpClient client : clients) {
+            connections += Math.max(client.getConnectionsInPool(), 0);
+        }
+        return String.format("ClientPool[clients=%d,connections=%d,hits=%d,misses=%d,evictions=%d]",
+                clients.size(), connections, hits, misses, evictions);
+    }
+
+    /**
+     * 判断host是否可以正常访问，host连续请求失败后会被熔断，一段时间内该host的请求直接失败(有缓存时使用缓存)，
+     * 见{@link AsyncHttpRequest.HostUnavailableException}
+     * @param host
+     * @return
+     */
+    public boolean isHostAvailable(String host) {
+        return AsyncHttpClient.getHostHealthTracker().getState(host) != HostHealthTracker.State.OPEN;
+    }
+
+    /**
+     * 清除host的熔断状态和并发数量调整，例如网络切换以后
+     * @param host
+     */
+    public void resetHostHealth(String host) {
+        AsyncHttpClient.resetHostHealth(host);
+    }
+
+    /**
+     * 获取每个host的熔断状态、并发数量等统计信息
+     * @return
+     */
+    public String getHostHealthStats() {
+        return AsyncHttpClient.getHostHealthTracker().toString();
+    }
+
     /**
      * 获取磁盘缓存对象
      * @return
      */
-    public DiskBasedCache getHttpDiskCache(){
+    public Cache getHttpDiskCache(){
         return mHttpDiskCache;
     }
 
@@ -202,10 +594,32 @@ public class HttpManager {
      * @return
      */
     public void initHttpDiskCache(final Context mContext) {
+        initHttpDiskCache(mContext, 0);
+    }
+
+    /**
+     * 初始化http请求的磁盘缓存，并在磁盘缓存前面增加一级内存缓存，频繁访问的请求直接从内存中返回
+     * 注意：在某些手机上需要：<uses-permission android:name="android.permission.WRITE_EXTERNAL_STORAGE" />
+     * @param mContext
+     * @param memoryCacheSize 内存缓存的字节数，小于等于0表示不使用内存缓存
+     */
+    public void initHttpDiskCache(final Context mContext, final int memoryCacheSize) {
+        initHttpDiskCache(mContext, memoryCacheSize, false);
+    }
+
+    /**
+     * 初始化http请求的磁盘缓存
+     * 注意：在某些手机上需要：<uses-permission android:name="android.permission.WRITE_EXTERNAL_STORAGE" />
+     * @param mContext
+     * @param memoryCacheSize 内存缓存的字节数，小于等于0表示不使用内存缓存
+     * @param segmentStorage 为true时使用{@link SegmentBasedCache}，所有缓存追加写入少量的大文件，适合大量的小响应；
+     *                       否则使用{@link DiskBasedCache}，每条缓存一个文件
+     */
+    public void initHttpDiskCache(final Context mContext, final int memoryCacheSize, final boolean segmentStorage) {
         new Thread(){
             @Override
             public void run() {
-                mHttpCacheDir = AppUtils.getDiskCacheDir(mContext, mCacheDirName);
+                mHttpCacheDir = AppUtils.getDiskCacheDir(mContext, segmentStorage ? mSegmentCacheDirName : mCacheDirName);
                 DebugLog.d(TAG, "initHttpDiskCache-->" + mHttpCacheDir.getAbsolutePath());
                 if (!mHttpCacheDir.exists()) {
                     DebugLog.d(TAG,"mHttpCacheDir is not exist, create it!!");
@@ -215,8 +629,12 @@ public class HttpManager {
                 }
                 if (AppUtils.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
                     try {
-                        mHttpDiskCache = new DiskBasedCache(mHttpCacheDir, HTTP_CACHE_SIZE);
-                        mHttpDiskCache.initialize();
+                        Cache cache = segmentStorage
+                                ? new SegmentBasedCache(mHttpCacheDir, HTTP_CACHE_SIZE, memoryCacheSize)
+                                : new DiskBasedCache(mHttpCacheDir, HTTP_CACHE_SIZE, memoryCacheSize);
+                        cache.initialize();
+                        //写缓存放到后台线程，请求线程不需要等待写文件
+                        mHttpDiskCache = new WriteBehindCache(cache);
                         mHttpDiskCacheInit = true;
                         DebugLog.d(TAG, "initHttpDiskCache cache has initialized");
                     } catch (Exception e) {
@@ -229,31 +647,6 @@ public class HttpManager {
         }.start();
     }
 
-    /**
-     * 通过制定的{@link Request}已经完成
-     * @param mRequest
-     */
-    public void notifyFinish(Request<?> mRequest){
-        if (mRequest.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = mRequest.getCacheKey();
-                Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
-                        DebugLog.d(TAG,"Releasing %d waiting requests for cacheKey=%s.",
-                                waitingRequests.size(), cacheKey);
-                    for(Request item : waitingRequests){
-                        if(!item.isCanceled()){
-                            DebugLog.d(TAG,"notifyFinish->performRequest");
-                            performRequest(mRequest, false);
-                        }else {
-                            DebugLog.d(TAG,"notifyFinish->not perfromRequest!");
-                        }
-                    }
-                }
-            }
-        }
-    }
-
     /**
      * 取消指定列表中的Http请求任务
      * @param requestList
@@ -280,16 +673,7 @@ public class HttpManager {
             }
         }
         requestMap.clear();
-        for (Queue<Request<?>> requests : mWaitingRequests.values()) {
-            if (requests != null) {
-                for (Request request : requests) {
-                    if (request != null) {
-                        request.cancel();
-                        DebugLog.d(TAG, "request.cancel");
-                    }
-                }
-            }
-        }
+        mPrefetcher.cancelAll();
     }
 
     /**
@@ -305,15 +689,83 @@ public class HttpManager {
         if (requestList != null) {
             cancelRequests(requestList, mayInterruptIfRunning);
         }
-        for (Queue<Request<?>> requests : mWaitingRequests.values()) {
-            if (requests != null) {
-                for (Request request : requests) {
-                    if (request != null && request.getTag().equals(tag)) {
-                        request.cancel();
-                        DebugLog.d(TAG, "request.cancel");
-                    }
-                }
+    }
+
+    /**
+     * 决定{@link AsyncHttpClient}行为的请求配置，配置相同的请求可以共享同一个{@link AsyncHttpClient}
+     */
+    private static final class ClientConfig {
+        final int maxRetry;
+        final boolean fixNoHttpResponseException;
+        final int connectionTimeout;
+        final int socketTimeout;
+        final String userAgent;
+        final String proxyHost;
+        final int proxyPort;
+
+        ClientConfig(Request<?> request) {
+            this(request.getMaxRetry(), request.getFixNoHttpResponseException(), request.getConnectionTimeout(),
+                    request.getSocketTimeout(), request.getUserAgent(), request.getProxyHost(), request.getProxyPort());
+        }
+
+        ClientConfig(int maxRetry, boolean fixNoHttpResponseException, int connectionTimeout, int socketTimeout,
+                     String userAgent, String proxyHost, int proxyPort) {
+            this.maxRetry = maxRetry;
+            this.fixNoHttpResponseException = fixNoHttpResponseException;
+            this.connectionTimeout = connectionTimeout;
+            this.socketTimeout = socketTimeout;
+            this.userAgent = userAgent == null ? "" : userAgent;
+            this.proxyHost = proxyHost == null ? "" : proxyHost;
+            this.proxyPort = proxyPort;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientConfig)) {
+                return false;
             }
+            ClientConfig other = (ClientConfig) o;
+            return maxRetry == other.maxRetry
+                    && fixNoHttpResponseException == other.fixNoHttpResponseException
+                    && connectionTimeout == other.connectionTimeout
+                    && socketTimeout == other.socketTimeout
+                    && proxyPort == other.proxyPort
+                    && userAgent.equals(other.userAgent)
+                    && proxyHost.equals(other.proxyHost);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = maxRetry;
+            result = 31 * result + (fixNoHttpResponseException ? 1 : 0);
+            result = 31 * result + connectionTimeout;
+            result = 31 * result + socketTimeout;
+            result = 31 * result + userAgent.hashCode();
+            result = 31 * result + proxyHost.hashCode();
+            result = 31 * result + proxyPort;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "ClientConfig[retry=" + maxRetry + ",fix=" + fixNoHttpResponseException + ",connect=" + connectionTimeout
+                    + ",socket=" + socketTimeout + ",ua=" + userAgent + ",proxy=" + proxyHost + ":" + proxyPort + "]";
+        }
+    }
+
+    /**
+     * 缓存的{@link AsyncHttpClient}
+     */
+    private static final class ClientEntry {
+        final AsyncHttpClient client;
+        /**最后一次使用的时间*/
+        long lastUsedTime;
+
+        ClientEntry(AsyncHttpClient client) {
+            this.client = client;
         }
     }
 }
@@ -173,12 +173,7 @@ public class JsonHttpResponseHandler extends TextHttpResponseHandler {
                     }
                 }
             };
-            if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
-            } else {
-                // In synchronous mode everything should be run on one thread
-                parser.run();
-            }
+            runParser(parser);
         } else {
             onSuccess(statusCode, headers, new JSONObject());
         }
@@ -221,12 +216,7 @@ public class JsonHttpResponseHandler extends TextHttpResponseHandler {
                     }
                 }
             };
-            if (!getUseSynchronousMode() && !getUsePoolThread()) {
-                new Thread(parser).start();
-            } else {
-                // In synchronous mode everything should be run on one thread
-                parser.run();
-            }
+            runParser(parser);
         } else {
             AsyncHttpClient.log.v(LOG_TAG, "response body is null, calling onFailure(Throwable, JSONObject)");
             onFailure(statusCode, headers, throwable, (JSONObject) null);
@@ -0,0 +1,96 @@
+package com.tom.basecore.http;
+
+import android.util.JsonReader;
+
+import org.apache.http.Header;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+/**
+ * Description:通过{@link JsonReader}直接从响应流解析json的Handler
+ * <pre>
+ *     1、不会把响应转换成String，也不会构造JSONObject/JSONArray，调用者在{@link #parseJson(JsonReader)}中
+ *        按需读取字段，直接构造需要的对象
+ *     2、网络请求时在请求线程中边读边解析；命中缓存时在共享的解析线程池中解析缓存的数据
+ *     3、解析失败时通过{@link #onFailure(int, Header[], byte[], Throwable)}回调
+ * </pre>
+ * 例如：
+ * <pre>
+ * client.get(url, new JsonStreamHttpResponseHandler&lt;List&lt;String&gt;&gt;() {
+ *     &#064;Override
+ *     protected List&lt;String&gt; parseJson(JsonReader reader) throws IOException {
+ *         List&lt;String&gt; names = new ArrayList&lt;String&gt;();
+ *         reader.beginArray();
+ *         while (reader.hasNext()) {
+ *             names.add(reader.nextString());
+ *         }
+ *         reader.endArray();
+ *         return names;
+ *     }
+ *     ...
+ * });
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-09 17:20
+ */
+public abstract class JsonStreamHttpResponseHandler<T> extends StreamingHttpResponseHandler<T> {
+    private boolean mLenient = false;
+
+    /**
+     * Creates new JsonStreamHttpResponseHandler, with JSON String encoding UTF-8
+     */
+    public JsonStreamHttpResponseHandler() {
+        this(DEFAULT_CHARSET);
+    }
+
+    /**
+     * @param encoding 响应的编码
+     */
+    public JsonStreamHttpResponseHandler(String encoding) {
+        super();
+        setCharset(encoding);
+    }
+
+    /**
+     * 是否使用宽松模式解析，见{@link JsonReader#setLenient(boolean)}
+     * @param lenient
+     */
+    public void setLenient(boolean lenient) {
+        this.mLenient = lenient;
+    }
+
+    public boolean isLenient() {
+        return mLenient;
+    }
+
+    /**
+     * 在后台线程中解析json，返回值通过{@link #onSuccess(int, Header[], Object)}回调
+     * @param reader 响应流的JsonReader，不需要关闭
+     * @return
+     * @throws IOException json格式不正确时抛出
+     */
+    protected abstract T parseJson(JsonReader reader) throws IOException;
+
+    @Override
+    protected final T parseResponse(InputStream stream, long contentLength) throws IOException {
+        JsonReader reader = new JsonReader(skipBom(new InputStreamReader(stream, getCharset())));
+        reader.setLenient(mLenient);
+        return parseJson(reader);
+    }
+
+    /**
+     * 跳过开头的UTF-8 BOM
+     */
+    static Reader skipBom(Reader in) throws IOException {
+        PushbackReader reader = new PushbackReader(in, 1);
+        int first = reader.read();
+        if (first != -1 && first != UTF8_BOM.charAt(0)) {
+            reader.unread(first);
+        }
+        return reader;
+    }
+}
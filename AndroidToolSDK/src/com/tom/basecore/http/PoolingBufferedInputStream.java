@@ -0,0 +1,46 @@
+package com.tom.basecore.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Description:缓冲区从{@link ByteArrayPool}获取的{@link BufferedInputStream}，{@link #close()}时归还缓冲区
+ * User： yuanzeyao.
+ * Date： 2015-09-09 15:40
+ */
+public class PoolingBufferedInputStream extends BufferedInputStream {
+    private final ByteArrayPool mPool;
+    private byte[] mPooledBuf;
+
+    public PoolingBufferedInputStream(InputStream in, ByteArrayPool pool) {
+        this(in, pool, 8 * 1024);
+    }
+
+    /**
+     * @param in
+     * @param pool 对象池
+     * @param size 缓冲区大小
+     */
+    public PoolingBufferedInputStream(InputStream in, ByteArrayPool pool, int size) {
+        // 父类分配的数组只有1个字节，随后替换为对象池中的数组
+        super(in, 1);
+        mPool = pool;
+        mPooledBuf = pool.getBuf(size);
+        buf = mPooledBuf;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            synchronized (this) {
+                if (mPooledBuf != null) {
+                    mPool.returnBuf(mPooledBuf);
+                    mPooledBuf = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.tom.basecore.http;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Description:内部数组从{@link ByteArrayPool}获取的{@link ByteArrayOutputStream}
+ * <pre>
+ *     1、扩容时从对象池获取新的数组，旧的数组归还到对象池
+ *     2、使用完毕后必须调用{@link #close()}归还数组，close以后不能再使用
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-09 15:30
+ */
+public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
+    private final ByteArrayPool mPool;
+
+    public PoolingByteArrayOutputStream(ByteArrayPool pool) {
+        this(pool, AsyncHttpResponseHandler.BUFFER_SIZE);
+    }
+
+    /**
+     * @param pool 对象池
+     * @param size 初始的容量
+     */
+    public PoolingByteArrayOutputStream(ByteArrayPool pool, int size) {
+        mPool = pool;
+        buf = mPool.getBuf(Math.max(size, 1));
+    }
+
+    @Override
+    public void close() {
+        if (buf != null) {
+            mPool.returnBuf(buf);
+            buf = null;
+        }
+    }
+
+    private void expand(int i) {
+        if (count + i <= buf.length) {
+            return;
+        }
+        byte[] newbuf = mPool.getBuf((count + i) * 2);
+        System.arraycopy(buf, 0, newbuf, 0, count);
+        mPool.returnBuf(buf);
+        buf = newbuf;
+    }
+
+    @Override
+    public synchronized void write(byte[] buffer, int offset, int len) {
+        expand(len);
+        super.write(buffer, offset, len);
+    }
+
+    @Override
+    public synchronized void write(int oneByte) {
+        expand(1);
+        super.write(oneByte);
+    }
+}
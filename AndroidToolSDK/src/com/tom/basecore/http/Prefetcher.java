@@ -0,0 +1,235 @@
+package com.tom.basecore.http;
+
+import android.os.SystemClock;
+
+import com.tom.basecore.utlis.DebugLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Description:在后台以最低优先级预取请求，把响应写入http磁盘缓存
+ * <pre>
+ *     1、同时执行的预取请求不超过{@link #MAX_CONCURRENT_PREFETCH}个，其余的按照加入的顺序排队，
+ *        缓存key相同的请求只预取一次
+ *     2、前台正在执行的请求达到{@link #FOREGROUND_BUSY_THRESHOLD}个时，取消正在执行的预取请求并放回队列头部，
+ *        每隔{@link #RESUME_CHECK_INTERVAL}检查一次，前台空闲后继续预取
+ *     3、预取请求没有回调，见{@link HttpManager#prefetch(java.util.Collection)}
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-12 10:30
+ */
+class Prefetcher {
+    public static final String TAG = "Prefetcher";
+
+    /** 同时执行的预取请求的最大数量 */
+    static final int MAX_CONCURRENT_PREFETCH = 2;
+    /** 前台请求达到这个数量时暂停预取 */
+    static final int FOREGROUND_BUSY_THRESHOLD = 4;
+    /** 预取暂停后检查前台是否空闲的间隔 */
+    static final long RESUME_CHECK_INTERVAL = 1000;
+    /** 预取请求超过这个时间没有结束(例如在线程池中被丢弃)时不再占用名额 */
+    static final long PREFETCH_TIMEOUT = 60 * 1000;
+
+    private final HttpManager mManager;
+
+    /** 等待预取的请求 */
+    private final LinkedList<Request<?>> mQueue = new LinkedList<Request<?>>();
+
+    /** 排队和正在执行的请求的缓存key，用于去重 */
+    private final Set<String> mKeys = new HashSet<String>();
+
+    /** 正在执行的预取请求，key是缓存key */
+    private final Map<String, Running> mRunning = new HashMap<String, Running>();
+
+    /** 是否已经登记了恢复检查 */
+    private boolean mResumeScheduled;
+
+    Prefetcher(HttpManager manager) {
+        this.mManager = manager;
+    }
+
+    /**
+     * 加入预取队列
+     * @param request
+     * @return 缓存key相同的请求已经在预取时返回false
+     */
+    synchronized boolean enqueue(Request<?> request) {
+        if (!mKeys.add(request.getCacheKey())) {
+            return false;
+        }
+        mQueue.add(request);
+        return true;
+    }
+
+    /**
+     * 前台空闲时启动排队中的预取请求，直到达到并发数量上限
+     */
+    void schedule() {
+        if (mManager.getForegroundRequestCount() >= FOREGROUND_BUSY_THRESHOLD) {
+            scheduleResume();
+            return;
+        }
+        List<Running> toStart = new ArrayList<Running>();
+        synchronized (this) {
+            pruneRunning();
+            while (mRunning.size() < MAX_CONCURRENT_PREFETCH && !mQueue.isEmpty()) {
+                Request<?> request = mQueue.removeFirst();
+                Running running = new Running(request);
+                mRunning.put(request.getCacheKey(), running);
+                toStart.add(running);
+            }
+        }
+        for (Running running : toStart) {
+            start(running);
+        }
+    }
+
+    private void start(final Running running) {
+        final String key = running.source.getCacheKey();
+        Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                onPrefetchDone(key, running);
+            }
+        };
+        RequestHandle handle = null;
+        try {
+            handle = mManager.performBackgroundRequest(running.source, onDone);
+        } catch (RuntimeException e) {
+            DebugLog.e(TAG, "start prefetch failed:" + e.getMessage());
+        }
+        synchronized (this) {
+            if (handle == null) {
+                if (mRunning.get(key) == running) {
+                    mRunning.remove(key);
+                    mKeys.remove(key);
+                }
+                return;
+            }
+            running.handle = handle;
+        }
+    }
+
+    private void onPrefetchDone(String key, Running running) {
+        synchronized (this) {
+            if (mRunning.get(key) != running) {
+                //已经因为前台繁忙被取消，请求已经放回队列
+                return;
+            }
+            mRunning.remove(key);
+            mKeys.remove(key);
+        }
+        schedule();
+    }
+
+    /**
+     * 有新的前台请求时调用，前台繁忙时取消正在执行的预取请求并放回队列头部
+     */
+    void onForegroundRequest() {
+        synchronized (this) {
+            if (mRunning.isEmpty()) {
+                return;
+            }
+        }
+        if (mManager.getForegroundRequestCount() < FOREGROUND_BUSY_THRESHOLD) {
+            return;
+        }
+        List<RequestHandle> toCancel = new ArrayList<RequestHandle>();
+        synchronized (this) {
+            for (Running running : mRunning.values()) {
+                if (running.handle != null) {
+                    toCancel.add(running.handle);
+                }
+                mQueue.addFirst(running.source);
+            }
+            DebugLog.d(TAG, "foreground is busy, pause %d prefetch requests", mRunning.size());
+            mRunning.clear();
+        }
+        for (RequestHandle handle : toCancel) {
+            handle.cancel(true);
+        }
+        scheduleResume();
+    }
+
+    /**
+     * 清空队列并取消所有正在执行的预取请求
+     */
+    void cancelAll() {
+        List<RequestHandle> toCancel = new ArrayList<RequestHandle>();
+        synchronized (this) {
+            for (Running running : mRunning.values()) {
+                if (running.handle != null) {
+                    toCancel.add(running.handle);
+                }
+            }
+            mRunning.clear();
+            mQueue.clear();
+            mKeys.clear();
+        }
+        for (RequestHandle handle : toCancel) {
+            handle.cancel(true);
+        }
+    }
+
+    /**
+     * 排队和正在执行的预取请求的数量
+     */
+    synchronized int size() {
+        return mQueue.size() + mRunning.size();
+    }
+
+    private synchronized void scheduleResume() {
+        if (mResumeScheduled || mQueue.isEmpty()) {
+            return;
+        }
+        mResumeScheduled = RetryScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Prefetcher.this) {
+                    mResumeScheduled = false;
+                }
+                schedule();
+            }
+        }, RESUME_CHECK_INTERVAL);
+    }
+
+    /**
+     * 移除已经结束但是没有回调(例如在线程池中被丢弃)或者超时的请求
+     */
+    private void pruneRunning() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<String, Running>> iterator = mRunning.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Running> entry = iterator.next();
+            Running running = entry.getValue();
+            if (running.handle == null) {
+                continue;
+            }
+            if (running.handle.isFinished() || now - running.startTime > PREFETCH_TIMEOUT) {
+                running.handle.cancel(false);
+                iterator.remove();
+                mKeys.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 一个正在执行的预取请求
+     */
+    private static final class Running {
+        final Request<?> source;
+        final long startTime = SystemClock.elapsedRealtime();
+        RequestHandle handle;
+
+        Running(Request<?> source) {
+            this.source = source;
+        }
+    }
+}
@@ -80,8 +80,9 @@ public abstract class RangeFileAsyncHttpResponseHandler extends FileAsyncHttpRes
             long contentLength = entity.getContentLength() + current;
             FileOutputStream buffer = new FileOutputStream(getTargetFile(), append);
             if (instream != null) {
+                ByteArrayPool pool = ByteArrayPool.getInstance();
+                byte[] tmp = pool.getBuf(BUFFER_SIZE);
                 try {
-                    byte[] tmp = new byte[BUFFER_SIZE];
                     int l;
                     while (current < contentLength && (l = instream.read(tmp)) != -1 && !Thread.currentThread().isInterrupted()) {
                         current += l;
@@ -89,6 +90,7 @@ public abstract class RangeFileAsyncHttpResponseHandler extends FileAsyncHttpRes
                         sendProgressMessage(current, contentLength);
                     }
                 } finally {
+                    pool.returnBuf(tmp);
                     instream.close();
                     buffer.flush();
                     buffer.close();
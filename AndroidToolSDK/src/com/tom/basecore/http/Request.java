@@ -2,7 +2,7 @@ package com.tom.basecore.http;
 
 import android.text.TextUtils;
 
-import com.tom.basecore.utlis.FileUtils;
+import com.tom.basecore.http.cache.CacheKeyBuilder;
 
 import org.apache.http.Header;
 
@@ -48,6 +48,16 @@ public class Request<T> {
     private String mTag=DEFAULT_TAG;
     //http请求在客户端设置过期时间
     private long mCacheTimeout=0;
+    //从第一次发送请求开始，包括重试在内的总时长上限，0表示不限制
+    private long mRetryDeadline=0;
+    //是否和同时发起的相同请求合并
+    private boolean mShouldCoalesce=true;
+    //缓存过期后先使用缓存、在后台刷新的时长，-1表示使用响应中Cache-Control的stale-while-revalidate
+    private long mStaleWhileRevalidate=-1;
+    //缓存过期后网络请求失败时还可以使用缓存的时长，-1表示使用响应中Cache-Control的stale-if-error
+    private long mStaleIfError=-1;
+    //是否是后台刷新缓存的请求
+    private boolean mRevalidation=false;
 
     public Request(Method mMethod, String mUrl,ResponseHandlerInterface mHandler) {
         this.mMethod = mMethod;
@@ -94,6 +104,22 @@ public class Request<T> {
         return this;
     }
 
+    /**
+     * 获取代理的ip或者dns，没有设置时返回空字符串
+     * @return
+     */
+    public String getProxyHost(){
+        return mProxy_ip;
+    }
+
+    /**
+     * 获取代理的端口号，没有设置时返回-1
+     * @return
+     */
+    public int getProxyPort(){
+        return mProxy_port;
+    }
+
     /**
      * 拿到当前请求的tag，用于根据tag取消http请求
      * @see Request#setTag(String)
@@ -161,7 +187,7 @@ public class Request<T> {
      * @return
      */
     public Priority getPriority(){
-        return Priority.NORMAL;
+        return mPriority;
     }
 
     /**
@@ -217,6 +243,14 @@ public class Request<T> {
         return this;
     }
 
+    /**
+     * 获取用户代理，没有设置时返回空字符串
+     * @return
+     */
+    public String getUserAgent(){
+        return mUserAgent;
+    }
+
     public String getContentType() {
         return "application/x-www-form-urlencoded; charset=UTF-8";
     }
@@ -255,6 +289,91 @@ public class Request<T> {
         return maxRetry;
     }
 
+    /**
+     * 设置包括重试在内的总时长上限，等待重试会超过此时长时不再重试，直接回调失败
+     * @param deadlineMillis 毫秒，0表示只受最大重试次数限制
+     */
+    public Request<T> setRetryDeadline(long deadlineMillis){
+        this.mRetryDeadline=deadlineMillis;
+        return this;
+    }
+
+    /**
+     * 获取包括重试在内的总时长上限
+     * @return
+     */
+    public long getRetryDeadline(){
+        return mRetryDeadline;
+    }
+
+    /**
+     * 设置是否和同时发起的相同请求合并，默认合并
+     * @param shouldCoalesce
+     * @return
+     */
+    public Request<T> setShouldCoalesce(boolean shouldCoalesce){
+        this.mShouldCoalesce=shouldCoalesce;
+        return this;
+    }
+
+    /**
+     * 是否和同时发起的相同请求合并：只合并GET请求，下载文件的请求不合并
+     * @return
+     */
+    public boolean shouldCoalesce(){
+        return mShouldCoalesce && mMethod == Method.GET && !(mHandler instanceof FileAsyncHttpResponseHandler);
+    }
+
+    /**
+     * 设置缓存过期后仍然直接使用缓存的时长：在此时间内先回调过期的缓存并结束请求，再在后台以低优先级刷新缓存，
+     * 相同的缓存同时只会刷新一次
+     * @param millis 毫秒，0表示不使用，-1表示使用响应中Cache-Control的stale-while-revalidate(默认)
+     * @return
+     */
+    public Request<T> setStaleWhileRevalidate(long millis){
+        this.mStaleWhileRevalidate=millis;
+        return this;
+    }
+
+    /**
+     * 获取缓存过期后仍然直接使用缓存的时长
+     * @return -1表示使用响应中Cache-Control的stale-while-revalidate
+     */
+    public long getStaleWhileRevalidate(){
+        return mStaleWhileRevalidate;
+    }
+
+    /**
+     * 设置缓存过期后网络请求失败时仍然使用缓存的时长：在此时间内网络错误或者服务器返回5xx时不再回调失败，
+     * 已经回调的过期缓存作为请求结果
+     * @param millis 毫秒，0表示不使用，-1表示使用响应中Cache-Control的stale-if-error(默认)
+     * @return
+     */
+    public Request<T> setStaleIfError(long millis){
+        this.mStaleIfError=millis;
+        return this;
+    }
+
+    /**
+     * 获取缓存过期后网络请求失败时仍然使用缓存的时长
+     * @return -1表示使用响应中Cache-Control的stale-if-error
+     */
+    public long getStaleIfError(){
+        return mStaleIfError;
+    }
+
+    /**
+     * 标记为后台刷新缓存的请求，这类请求不会使用过期的缓存直接结束
+     * @param revalidation
+     */
+    void setRevalidation(boolean revalidation){
+        this.mRevalidation=revalidation;
+    }
+
+    boolean isRevalidation(){
+        return mRevalidation;
+    }
+
     /**
      * 取消此http请求
      */
@@ -270,12 +389,12 @@ public class Request<T> {
     }
 
     /**
-     * 获取http请求的缓存key
+     * 获取http请求的缓存key，由请求方式、规范化的url和排序后的请求参数生成，见{@link CacheKeyBuilder}
      * @return
      */
     public String getCacheKey(){
         if(!TextUtils.isEmpty(mUrl)){
-            return FileUtils.hashKeyForDisk(mUrl);
+            return CacheKeyBuilder.buildKey(mMethod.name(), mUrl, mParams != null ? mParams.getParamString() : null);
         }
         return "";
     }
@@ -348,13 +467,27 @@ public class Request<T> {
     }
 
     /**
-     * http 请求的优先级
+     * http 请求的优先级，对应到线程池任务的优先级{@link com.tom.basecore.thread.IPriorityInterface}
      */
     public static enum Priority {
-        LOW,
-        NORMAL,
-        HIGH,
-        IMMEDIATE
+        LOW(Thread.MIN_PRIORITY),
+        NORMAL(Thread.NORM_PRIORITY),
+        HIGH(Thread.NORM_PRIORITY + 2),
+        IMMEDIATE(Thread.MAX_PRIORITY);
+
+        private final int mTaskPriority;
+
+        Priority(int taskPriority) {
+            this.mTaskPriority = taskPriority;
+        }
+
+        /**
+         * 获取在线程池中排队时使用的优先级，值越大越先执行
+         * @return
+         */
+        public int getTaskPriority() {
+            return mTaskPriority;
+        }
     }
 
     /**
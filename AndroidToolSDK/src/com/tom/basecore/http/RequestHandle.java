@@ -68,6 +68,18 @@ public class RequestHandle {
         return false;
     }
 
+    /**
+     * Changes the priority of the request. A request still waiting in the thread pool queue is
+     * re-sorted immediately.
+     *
+     * @param priority new priority of the request
+     * @return true if the request was still queued and has been re-sorted
+     */
+    public boolean setPriority(Request.Priority priority) {
+        AsyncHttpRequest _request = httpRequest.get();
+        return _request != null && priority != null && _request.updatePriority(priority);
+    }
+
     /**
      * Returns true if this task completed. Completion may be due to normal termination, an
      * exception, or cancellation -- in all of these cases, this method will return true.
@@ -23,8 +23,6 @@
 
 package com.tom.basecore.http;
 
-import android.os.SystemClock;
-
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -36,6 +34,7 @@ import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.Random;
 
 import javax.net.ssl.SSLException;
 
@@ -57,22 +56,85 @@ class RetryHandler implements HttpRequestRetryHandler {
         exceptionBlacklist.add(SSLException.class);
     }
 
+    /** 两次重试之间的最大等待时间 */
+    static final int MAX_RETRY_SLEEP_TIME_MILLIS = 30 * 1000;
+
+    private static final Random sRandom = new Random();
+
     private final int maxRetries;
     private final int retrySleepTimeMS;
 
+    /**
+     * @param maxRetries 最大重试次数
+     * @param retrySleepTimeMS 第一次重试前的等待时间，之后每次翻倍，最多{@link #MAX_RETRY_SLEEP_TIME_MILLIS}
+     */
     public RetryHandler(int maxRetries, int retrySleepTimeMS) {
         this.maxRetries = maxRetries;
         this.retrySleepTimeMS = retrySleepTimeMS;
     }
 
+    /**
+     * HttpClient内部执行请求失败时也会调用此方法，这里始终返回false，
+     * 重试统一由{@link AsyncHttpRequest}通过{@link #getRetryDelay(IOException, int, HttpContext)}
+     * 计算等待时间后重新调度，避免在请求线程中sleep
+     */
     @Override
     public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+        return false;
+    }
+
+    /**
+     * 判断请求失败后是否需要重试，不会阻塞当前线程
+     * @param exception 请求失败的原因
+     * @param executionCount 包括本次在内已经失败的次数
+     * @param context
+     * @return 需要重试时返回重试前需要等待的毫秒数，不需要重试返回-1
+     */
+    public long getRetryDelay(IOException exception, int executionCount, HttpContext context) {
+        if (!shouldRetry(exception, executionCount, context)) {
+            exception.printStackTrace();
+            return -1;
+        }
+        return computeBackoff(executionCount);
+    }
+
+    /**
+     * 是否还可以进行第executionCount次重试
+     * @param executionCount
+     * @return
+     */
+    public boolean canRetry(int executionCount) {
+        return executionCount <= maxRetries;
+    }
+
+    /**
+     * 指数退避：等待时间为retrySleepTimeMS * 2^(executionCount - 1)，最多{@link #MAX_RETRY_SLEEP_TIME_MILLIS}，
+     * 实际等待时间在[delay / 2, delay]之间随机，避免大量请求在同一时刻重试
+     * @param executionCount 包括本次在内已经失败的次数，从1开始
+     * @return
+     */
+    long computeBackoff(int executionCount) {
+        long delay = Math.max(retrySleepTimeMS, 0);
+        for (int i = 1; i < executionCount && delay < MAX_RETRY_SLEEP_TIME_MILLIS; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, MAX_RETRY_SLEEP_TIME_MILLIS);
+        if (delay <= 1) {
+            return delay;
+        }
+        long half = delay / 2;
+        synchronized (sRandom) {
+            return half + (long) (sRandom.nextDouble() * (delay - half));
+        }
+    }
+
+    private boolean shouldRetry(IOException exception, int executionCount, HttpContext context) {
         boolean retry = true;
 
         Boolean b = (Boolean) context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
         boolean sent = (b != null && b);
 
-        if (executionCount > maxRetries) {
+        if (!canRetry(executionCount)) {
             // Do not retry if over max retry count
             retry = false;
         } else if (isInList(exceptionWhitelist, exception)) {
@@ -93,13 +155,6 @@ class RetryHandler implements HttpRequestRetryHandler {
                 return false;
             }
         }
-
-        if (retry) {
-            SystemClock.sleep(retrySleepTimeMS);
-        } else {
-            exception.printStackTrace();
-        }
-
         return retry;
     }
 
@@ -0,0 +1,89 @@
+package com.tom.basecore.http;
+
+import com.tom.basecore.utlis.DebugLog;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description:等待重试的请求使用的定时器
+ * <pre>
+ *     1、请求失败需要重试时不在请求线程中sleep，而是通过{@link #schedule(AsyncHttpRequest, ExecutorService, long)}
+ *        登记，请求线程和host并发名额立即释放
+ *     2、等待时间到了以后请求会被重新提交到原来的线程池，按照请求的优先级重新排队
+ *     3、定时器只有一个线程，只负责提交任务，不执行请求；其他需要延迟执行的轻量任务也可以通过
+ *        {@link #schedule(Runnable, long)}登记
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-10 10:20
+ */
+class RetryScheduler {
+    public static final String TAG = "RetryScheduler";
+
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    private static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    /**
+     * 等待delayMillis后在定时器线程中执行task，task不能执行耗时的操作
+     * @param task
+     * @param delayMillis 等待的毫秒数
+     * @return 登记成功返回true
+     */
+    static boolean schedule(Runnable task, long delayMillis) {
+        try {
+            getTimer().schedule(task, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            DebugLog.e(TAG, "schedule task failed:" + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 等待delayMillis后把请求重新提交到线程池
+     * @param request 需要重试的请求
+     * @param executor 执行请求的线程池
+     * @param delayMillis 等待的毫秒数
+     * @return 登记成功返回true
+     */
+    static boolean schedule(final AsyncHttpRequest request, final ExecutorService executor, long delayMillis) {
+        Runnable resubmit = new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled()) {
+                    request.abandon();
+                    return;
+                }
+                try {
+                    request.setFuture(executor.submit(request));
+                } catch (RejectedExecutionException e) {
+                    DebugLog.e(TAG, "resubmit retry request failed:" + e.getMessage());
+                    request.onResubmitRejected(e);
+                }
+            }
+        };
+        try {
+            getTimer().schedule(resubmit, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            DebugLog.e(TAG, "schedule retry request failed:" + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.tom.basecore.http;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description:合并同时发起的相同请求，只有一个请求访问缓存和网络，结果回调给所有相同的请求
+ * <pre>
+ *     1、请求开始执行时调用{@link #join(String, AsyncHttpRequest)}，没有相同的请求正在执行时成为leader，
+ *        否则加入该请求的等待列表并立即返回，不占用线程池中的线程
+ *     2、leader拿到结果后调用{@link #seal(Flight)}取出所有等待的请求，此后相同的请求会重新发起
+ *     3、请求是否相同由{@link #keyOf(HttpUriRequest, Request)}决定：请求方式、url、所有请求头以及缓存策略都相同，
+ *        后台请求(刷新缓存、预取)只和后台请求合并，不会成为前台请求的leader
+ *     4、优先级更高的请求加入等待时，leader的优先级随之提高，避免前台请求等待低优先级的leader
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-10 19:40
+ */
+class SingleFlight {
+    public static final String TAG = "SingleFlight";
+
+    /**正在执行的请求，key是{@link #keyOf(HttpUriRequest, Request)}*/
+    private final Map<String, Flight> mFlights = new HashMap<String, Flight>();
+
+    private static final Comparator<Header> HEADER_COMPARATOR = new Comparator<Header>() {
+        @Override
+        public int compare(Header lhs, Header rhs) {
+            int result = lhs.getName().compareToIgnoreCase(rhs.getName());
+            if (result != 0) {
+                return result;
+            }
+            return String.valueOf(lhs.getValue()).compareTo(String.valueOf(rhs.getValue()));
+        }
+    };
+
+    /**
+     * 生成请求的标识：请求方式、url、按照名字排序后的请求头以及缓存策略
+     * <pre>
+     *     缓存策略不同的请求使用缓存的方式不同(是否读写缓存、过期缓存能否直接使用、是否只做条件请求)，不能共享结果
+     * </pre>
+     * @param request
+     * @param policy 请求的配置，提供缓存策略
+     * @return
+     */
+    static String keyOf(HttpUriRequest request, Request<?> policy) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(request.getMethod()).append(' ').append(request.getURI());
+        sb.append("\ncache:").append(policy.shouldCache())
+                .append(',').append(policy.getCacheTimeOut())
+                .append(',').append(policy.getStaleWhileRevalidate())
+                .append(',').append(policy.getStaleIfError())
+                .append(',').append(policy.isRevalidation())
+                .append(',').append(HttpManager.BACKGROUND_TAG.equals(policy.getTag()));
+        Header[] headers = request.getAllHeaders();
+        if (headers != null && headers.length > 0) {
+            headers = headers.clone();
+            Arrays.sort(headers, HEADER_COMPARATOR);
+            for (Header header : headers) {
+                sb.append('\n').append(header.getName().toLowerCase()).append(':').append(header.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 加入key对应的请求
+     * @param key
+     * @param request
+     * @return 没有相同的请求正在执行时返回新的{@link Flight}，request成为leader；否则request进入等待列表，返回null
+     */
+    Flight join(String key, AsyncHttpRequest request) {
+        AsyncHttpRequest leader;
+        synchronized (this) {
+            Flight flight = mFlights.get(key);
+            if (flight == null) {
+                flight = new Flight(key, request);
+                mFlights.put(key, flight);
+                return flight;
+            }
+            flight.followers.add(request);
+            leader = flight.leader;
+        }
+        //在锁外调整leader的优先级，leader可能正在线程池或者host等待队列中排队
+        if (request.getPriority() > leader.getPriority()) {
+            leader.raiseTaskPriority(request.getPriority());
+        }
+        return null;
+    }
+
+    /**
+     * 结束flight，之后相同的请求不会再加入此flight
+     * @param flight
+     * @return 等待中的请求，flight已经结束时返回空列表
+     */
+    synchronized List<AsyncHttpRequest> seal(Flight flight) {
+        if (flight.sealed) {
+            return Collections.emptyList();
+        }
+        flight.sealed = true;
+        if (mFlights.get(flight.key) == flight) {
+            mFlights.remove(flight.key);
+        }
+        List<AsyncHttpRequest> followers = new ArrayList<AsyncHttpRequest>(flight.followers);
+        flight.followers.clear();
+        return followers;
+    }
+
+    /**
+     * 正在执行的不同请求的数量
+     */
+    synchronized int size() {
+        return mFlights.size();
+    }
+
+    /**
+     * 一组相同的请求
+     */
+    static final class Flight {
+        final String key;
+        final AsyncHttpRequest leader;
+        final List<AsyncHttpRequest> followers = new ArrayList<AsyncHttpRequest>();
+        boolean sealed;
+
+        Flight(String key, AsyncHttpRequest leader) {
+            this.key = key;
+            this.leader = leader;
+        }
+    }
+}
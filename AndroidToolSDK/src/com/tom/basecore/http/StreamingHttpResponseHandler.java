@@ -0,0 +1,359 @@
+package com.tom.basecore.http;
+
+import android.os.Message;
+
+import com.tom.basecore.utlis.DebugLog;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Description:流式处理响应数据的Handler，不会把整个响应体读入一个byte[]
+ * <pre>
+ *     1、{@link #parseResponse(InputStream, long)}在请求线程中直接读取响应流，可以边读边解析或者边读边写文件，
+ *        解析的结果通过{@link #onSuccess(int, Header[], Object)}回调
+ *     2、每读取一段数据都会在请求线程中回调{@link #onChunk(byte[], int, int)}，回调中的buffer会被重复使用，
+ *        不要保存它的引用；默认的解析实现使用{@link ByteArrayPool}中的数组读取
+ *     3、如果请求需要缓存，读取的数据会同时复制一份用于写入磁盘缓存，响应体超过{@link #setMaxCacheBodySize(int)}
+ *        时不再缓存；命中缓存时，缓存的数据同样通过{@link #parseResponse(InputStream, long)}解析
+ *     4、状态码大于等于300的响应仍然读入byte[]，通过{@link #onFailure(int, Header[], byte[], Throwable)}回调
+ *     5、{@link #parseResponse(InputStream, long)}抛出的异常(读取网络数据失败除外)通过
+ *        {@link #onFailure(int, Header[], byte[], Throwable)}回调，此时responseBody为null，也不会写入缓存
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-09 10:30
+ */
+public abstract class StreamingHttpResponseHandler<T> extends AsyncHttpResponseHandler {
+    private static final String LOG_TAG = "StreamingHttpRH";
+
+    protected static final int STREAM_SUCCESS_MESSAGE = 8;
+
+    /** 默认可以写入缓存的最大响应体 */
+    public static final int DEFAULT_MAX_CACHE_BODY_SIZE = 1024 * 1024;
+
+    private volatile int mMaxCacheBodySize = DEFAULT_MAX_CACHE_BODY_SIZE;
+
+    public StreamingHttpResponseHandler() {
+        super();
+    }
+
+    /**
+     * @param usePoolThread 是否在请求线程中回调
+     */
+    public StreamingHttpResponseHandler(boolean usePoolThread) {
+        super(usePoolThread);
+    }
+
+    /**
+     * 设置可以写入磁盘缓存的最大响应体，超过此大小的响应不会缓存，也不会为缓存额外占用内存
+     * @param maxCacheBodySize
+     */
+    public void setMaxCacheBodySize(int maxCacheBodySize) {
+        this.mMaxCacheBodySize = maxCacheBodySize;
+    }
+
+    public int getMaxCacheBodySize() {
+        return mMaxCacheBodySize;
+    }
+
+    /**
+     * 在请求线程中每读取一段数据回调一次
+     * @param buffer 本次读取数据所在的数组，回调返回后会被重复使用
+     * @param offset 数据在数组中的起始位置
+     * @param length 数据长度
+     */
+    protected void onChunk(byte[] buffer, int offset, int length) {
+        // default action is to do nothing...
+    }
+
+    /**
+     * 在请求线程中解析响应流，默认实现只读取整个响应流并返回null，数据通过{@link #onChunk(byte[], int, int)}获取
+     * @param stream 响应流，方法返回后会被关闭
+     * @param contentLength 响应的长度，未知时小于等于0
+     * @return 解析的结果，通过{@link #onSuccess(int, Header[], Object)}回调
+     * @throws IOException
+     */
+    protected T parseResponse(InputStream stream, long contentLength) throws IOException {
+        ByteArrayPool pool = ByteArrayPool.getInstance();
+        byte[] tmp = pool.getBuf(BUFFER_SIZE);
+        try {
+            while (stream.read(tmp) != -1) {
+                // 数据已经通过onChunk回调
+            }
+        } finally {
+            pool.returnBuf(tmp);
+        }
+        return null;
+    }
+
+    /**
+     * 请求成功，包括命中缓存
+     * @param statusCode 状态码
+     * @param headers 响应头
+     * @param response {@link #parseResponse(InputStream, long)}的返回值
+     */
+    public abstract void onSuccess(int statusCode, Header[] headers, T response);
+
+    @Override
+    public void sendResponseMessage(HttpResponse response) throws IOException {
+        // do not process if request has been cancelled
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        StatusLine status = response.getStatusLine();
+        if (status.getStatusCode() >= 300) {
+            super.sendResponseMessage(response);
+            return;
+        }
+        HttpEntity entity = response.getEntity();
+        InputStream instream = entity != null ? entity.getContent() : null;
+        T result = null;
+        Throwable parseError = null;
+        byte[] cachedBody = null;
+        if (instream != null) {
+            long contentLength = entity.getContentLength();
+            PoolingByteArrayOutputStream cacheBuffer = null;
+            if (shouldSaveToCache() && contentLength <= mMaxCacheBodySize) {
+                cacheBuffer = new PoolingByteArrayOutputStream(ByteArrayPool.getInstance(),
+                        contentLength > 0 ? (int) contentLength : BUFFER_SIZE);
+            }
+            ChunkInputStream stream = new ChunkInputStream(instream, contentLength, cacheBuffer, true);
+            try {
+                result = parseResponse(stream, contentLength);
+                // 解析器可能没有读取到流的末尾，剩余的数据也需要写入缓存
+                if (stream.isCaching()) {
+                    stream.drain();
+                }
+                cachedBody = stream.getCachedBody();
+            } catch (IOException e) {
+                // 读取网络数据失败时交给请求重试，解析失败则直接回调失败
+                if (stream.isReadFailed()) {
+                    throw e;
+                }
+                parseError = e;
+            } catch (RuntimeException e) {
+                parseError = e;
+            } finally {
+                AsyncHttpClient.silentCloseInputStream(stream);
+                AsyncHttpClient.endEntityViaReflection(entity);
+            }
+        } else {
+            try {
+                result = parseResponse(new ByteArrayInputStream(new byte[0]), 0);
+            } catch (IOException e) {
+                parseError = e;
+            } catch (RuntimeException e) {
+                parseError = e;
+            }
+        }
+        // additional cancellation check as parseResponse() can take non-zero time to process
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        if (parseError != null) {
+            AsyncHttpClient.log.e(LOG_TAG, "parseResponse failed", parseError);
+            sendFailureMessage(status.getStatusCode(), response.getAllHeaders(), null, parseError);
+            return;
+        }
+        sendMessage(obtainMessage(STREAM_SUCCESS_MESSAGE, new Object[]{status.getStatusCode(), response.getAllHeaders(), result}));
+        if (cachedBody != null) {
+            saveResponseToCache(response, cachedBody);
+        }
+    }
+
+    /**
+     * 命中缓存时回调，缓存的数据同样交给{@link #parseResponse(InputStream, long)}解析
+     */
+    @Override
+    public final void onSuccess(final int statusCode, final Header[] headers, final byte[] responseBody) {
+        Runnable parser = new Runnable() {
+            @Override
+            public void run() {
+                final byte[] body = responseBody != null ? responseBody : new byte[0];
+                try {
+                    ChunkInputStream stream = new ChunkInputStream(new ByteArrayInputStream(body), body.length, null, false);
+                    final T result = parseResponse(stream, body.length);
+                    postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSuccess(statusCode, headers, result);
+                        }
+                    });
+                } catch (final Exception e) {
+                    postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFailure(statusCode, headers, responseBody, e);
+                        }
+                    });
+                }
+            }
+        };
+        runParser(parser);
+    }
+
+    @Override
+    protected void handleMessage(Message message) {
+        super.handleMessage(message);
+        Object[] response;
+
+        switch (message.what) {
+            case STREAM_SUCCESS_MESSAGE:
+                response = (Object[]) message.obj;
+                if (response != null && response.length >= 3) {
+                    try {
+                        onSuccess((Integer) response[0], (Header[]) response[1], (T) response[2]);
+                    } catch (Throwable error) {
+                        onUserException(error);
+                    }
+                } else {
+                    AsyncHttpClient.log.e(LOG_TAG, "STREAM_SUCCESS_MESSAGE didn't got enough params");
+                }
+                break;
+        }
+    }
+
+    /**
+     * 读取响应流时回调{@link StreamingHttpResponseHandler#onChunk(byte[], int, int)}、发送进度，
+     * 并且按需复制一份数据用于写入缓存
+     */
+    private class ChunkInputStream extends FilterInputStream {
+        private final long mContentLength;
+        private final boolean mSendProgress;
+        /** 用于写入缓存的数据，为null表示不缓存 */
+        private PoolingByteArrayOutputStream mCacheBuffer;
+        private final byte[] mSingle = new byte[1];
+        private long mCount;
+        private boolean mEof;
+        private boolean mReadFailed;
+
+        ChunkInputStream(InputStream in, long contentLength, PoolingByteArrayOutputStream cacheBuffer, boolean sendProgress) {
+            super(in);
+            this.mContentLength = contentLength;
+            this.mCacheBuffer = cacheBuffer;
+            this.mSendProgress = sendProgress;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int l = read(mSingle, 0, 1);
+            return l == -1 ? -1 : mSingle[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            // do not read any more if request has been cancelled
+            if (mEof || Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+            int l;
+            try {
+                l = in.read(buffer, offset, length);
+            } catch (IOException e) {
+                mReadFailed = true;
+                throw e;
+            }
+            if (l == -1) {
+                mEof = true;
+                return -1;
+            }
+            if (l > 0) {
+                mCount += l;
+                if (mCacheBuffer != null) {
+                    if (mCount > mMaxCacheBodySize) {
+                        DebugLog.d(LOG_TAG, "response is larger than %d bytes, not cache", mMaxCacheBodySize);
+                        releaseCacheBuffer();
+                    } else {
+                        mCacheBuffer.write(buffer, offset, l);
+                    }
+                }
+                onChunk(buffer, offset, l);
+                if (mSendProgress) {
+                    sendProgressMessage(mCount, (mContentLength <= 0 ? 1 : mContentLength));
+                }
+            }
+            return l;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // 跳过的数据也需要回调和缓存，这里按读取处理
+            ByteArrayPool pool = ByteArrayPool.getInstance();
+            byte[] tmp = pool.getBuf(BUFFER_SIZE);
+            long skipped = 0;
+            try {
+                while (skipped < n) {
+                    int l = read(tmp, 0, (int) Math.min(n - skipped, tmp.length));
+                    if (l == -1) {
+                        break;
+                    }
+                    skipped += l;
+                }
+            } finally {
+                pool.returnBuf(tmp);
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * 读取剩余的数据
+         */
+        void drain() throws IOException {
+            ByteArrayPool pool = ByteArrayPool.getInstance();
+            byte[] tmp = pool.getBuf(BUFFER_SIZE);
+            try {
+                while (read(tmp, 0, tmp.length) != -1) {
+                    // 数据已经写入缓存
+                }
+            } finally {
+                pool.returnBuf(tmp);
+            }
+        }
+
+        /**
+         * 读取响应流时是否发生过IO异常，用于区分网络异常和解析异常
+         */
+        boolean isReadFailed() {
+            return mReadFailed;
+        }
+
+        /**
+         * 是否仍然在复制数据用于写入缓存
+         */
+        boolean isCaching() {
+            return mCacheBuffer != null;
+        }
+
+        /**
+         * @return 完整读取到流的末尾时返回复制的数据，否则返回null
+         */
+        byte[] getCachedBody() {
+            return mEof && mCacheBuffer != null ? mCacheBuffer.toByteArray() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseCacheBuffer();
+            super.close();
+        }
+
+        private void releaseCacheBuffer() {
+            if (mCacheBuffer != null) {
+                mCacheBuffer.close();
+                mCacheBuffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.tom.basecore.http.cache;
+
+/**
+ * Description:http响应缓存的接口
+ * <pre>
+ *     1、{@link DiskBasedCache} 每条缓存一个文件
+ *     2、{@link SegmentBasedCache} 所有缓存追加写入少量的大文件(segment)，适合大量的小响应
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-08 16:00
+ */
+public interface Cache {
+
+    /**
+     * 初始化缓存，此方法需要在异步线程中执行
+     */
+    public void initialize();
+
+    /**
+     * 通过键值获取缓存内容，如果不存在指定键值，那么返回null.
+     * 注意：返回的{@link CacheEntry#data}可能和内存缓存共享，不要修改其内容
+     */
+    public CacheEntry get(String key);
+
+    /**
+     * 将{@link CacheEntry}放入缓存
+     */
+    public void put(String key, CacheEntry entry);
+
+    /**
+     * 只更新缓存的头信息(过期时间、ETag、响应头)，用于304响应后刷新缓存
+     * @param key
+     * @param entry 新的缓存信息，其中data必须是原来缓存的数据
+     * @return 更新成功返回true，如果缓存不存在或者更新失败返回false
+     */
+    public boolean updateHeader(String key, CacheEntry entry);
+
+    /**
+     * 让指定的缓存过期
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    public void invalidate(String key, boolean fullExpire);
+
+    /**
+     * 将指定的缓存移除.
+     */
+    public void remove(String key);
+
+    /**
+     * 删除所有的缓存内容.
+     */
+    public void clear();
+
+    /**
+     * 内存缓存命中次数
+     */
+    public int memoryHitCount();
+
+    /**
+     * 内存缓存没有命中次数
+     */
+    public int memoryMissCount();
+
+    /**
+     * 磁盘缓存命中次数(不包括内存缓存已经命中的请求)
+     */
+    public int diskHitCount();
+
+    /**
+     * 磁盘缓存没有命中次数
+     */
+    public int diskMissCount();
+}
@@ -30,9 +30,25 @@ public class CacheEntry {
     /** 服务端响应的头信息 */
     public Map<String, String> responseHeaders = Collections.emptyMap();
 
+    /** 不为空时表示这是一条Vary索引：保存响应的Vary头中的请求头名称(小写、排序后以逗号分隔)，
+     * 实际的响应按照这些请求头的值保存在二级key下，见{@link CacheKeyBuilder} */
+    public String vary = "";
+
     /** 判断是缓存是否过期 */
     public boolean isExpired() {
         return this.ttl < System.currentTimeMillis() && this.softTtl<System.currentTimeMillis();
     }
 
+    /**
+     * 判断过期的缓存是否还在允许使用的时间窗口内(stale-while-revalidate/stale-if-error)
+     * @param windowMillis 过期后还可以使用的毫秒数
+     * @return 没有过期或者过期时间不超过windowMillis时返回true
+     */
+    public boolean isUsableWhenStale(long windowMillis) {
+        if (!isExpired()) {
+            return true;
+        }
+        return windowMillis > 0 && Math.max(ttl, softTtl) + windowMillis >= System.currentTimeMillis();
+    }
+
 }
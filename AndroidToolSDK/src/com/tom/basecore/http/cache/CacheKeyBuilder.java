@@ -0,0 +1,159 @@
+package com.tom.basecore.http.cache;
+
+import android.text.TextUtils;
+
+import com.tom.basecore.utlis.FileUtils;
+
+import org.apache.http.Header;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Description:生成http缓存的key
+ * <pre>
+ *     1、一级key由请求方式、规范化的url和排序后的请求参数生成：scheme和host转换为小写，去掉默认端口和#后面的部分，
+ *        url中的参数和{@link com.tom.basecore.http.RequestParams}中的参数合并后排序，参数顺序不同的请求使用相同的缓存
+ *     2、响应带有Vary头时，一级key下只保存一条Vary索引(见{@link CacheEntry#vary})，实际的响应保存在二级key下，
+ *        二级key由一级key和Vary中列出的请求头的值生成，见{@link #secondaryKey(String, String, Header[])}
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-11 10:10
+ */
+public class CacheKeyBuilder {
+
+    /** Vary: *，响应因为无法确定的因素变化，不能缓存 */
+    public static final String VARY_ALL = "*";
+
+    private CacheKeyBuilder() {
+    }
+
+    /**
+     * 生成一级key
+     * @param method 请求方式，例如GET、POST
+     * @param url 请求的url，可以带有参数
+     * @param paramString 编码后的请求参数(a=1&b=2)，可以为null
+     * @return
+     */
+    public static String buildKey(String method, String url, String paramString) {
+        return FileUtils.hashKeyForDisk(method.toUpperCase(Locale.US) + ' ' + canonicalUrl(url, paramString));
+    }
+
+    /**
+     * 规范化url，并把paramString合并到url的参数中
+     * @param url
+     * @param paramString
+     * @return
+     */
+    static String canonicalUrl(String url, String paramString) {
+        String base = url;
+        int fragment = base.indexOf('#');
+        if (fragment >= 0) {
+            base = base.substring(0, fragment);
+        }
+        String query = null;
+        int question = base.indexOf('?');
+        if (question >= 0) {
+            query = base.substring(question + 1);
+            base = base.substring(0, question);
+        }
+        base = canonicalAuthority(base);
+
+        List<String> params = new ArrayList<String>();
+        splitParams(query, params);
+        splitParams(paramString, params);
+        if (params.isEmpty()) {
+            return base;
+        }
+        Collections.sort(params);
+        StringBuilder sb = new StringBuilder(base).append('?');
+        for (int i = 0; i < params.size(); i++) {
+            if (i > 0) {
+                sb.append('&');
+            }
+            sb.append(params.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * scheme和host转换为小写，去掉默认端口
+     */
+    private static String canonicalAuthority(String base) {
+        int schemeEnd = base.indexOf("://");
+        if (schemeEnd <= 0) {
+            return base;
+        }
+        String scheme = base.substring(0, schemeEnd).toLowerCase(Locale.US);
+        int authorityStart = schemeEnd + 3;
+        int pathStart = base.indexOf('/', authorityStart);
+        String authority = pathStart >= 0 ? base.substring(authorityStart, pathStart) : base.substring(authorityStart);
+        String path = pathStart >= 0 ? base.substring(pathStart) : "/";
+        // user-info保持原样，只处理host和端口
+        int at = authority.lastIndexOf('@');
+        String userInfo = at >= 0 ? authority.substring(0, at + 1) : "";
+        String hostPort = authority.substring(at + 1).toLowerCase(Locale.US);
+        if (("http".equals(scheme) && hostPort.endsWith(":80"))
+                || ("https".equals(scheme) && hostPort.endsWith(":443"))) {
+            hostPort = hostPort.substring(0, hostPort.lastIndexOf(':'));
+        }
+        return scheme + "://" + userInfo + hostPort + path;
+    }
+
+    private static void splitParams(String query, List<String> out) {
+        if (TextUtils.isEmpty(query)) {
+            return;
+        }
+        for (String param : query.split("&")) {
+            if (param.length() > 0) {
+                out.add(param);
+            }
+        }
+    }
+
+    /**
+     * 生成二级key
+     * @param primaryKey 一级key
+     * @param vary Vary索引中的请求头名称，见{@link CacheEntry#vary}
+     * @param requestHeaders 当前请求的请求头
+     * @return
+     */
+    public static String secondaryKey(String primaryKey, String vary, Header[] requestHeaders) {
+        StringBuilder sb = new StringBuilder(primaryKey);
+        for (String name : vary.split(",")) {
+            sb.append('\n').append(name).append(':');
+            if (requestHeaders == null) {
+                continue;
+            }
+            boolean first = true;
+            for (Header header : requestHeaders) {
+                if (name.equalsIgnoreCase(header.getName())) {
+                    if (!first) {
+                        sb.append(',');
+                    }
+                    first = false;
+                    sb.append(header.getValue() == null ? "" : header.getValue().trim());
+                }
+            }
+        }
+        return FileUtils.hashKeyForDisk(sb.toString());
+    }
+
+    /**
+     * 生成保存在一级key下的Vary索引
+     * @param vary 规范化的Vary，见{@link HttpHeaderParser#parseVary(org.apache.http.HttpResponse)}
+     * @param entry 实际的响应
+     * @return
+     */
+    public static CacheEntry newVaryIndex(String vary, CacheEntry entry) {
+        CacheEntry index = new CacheEntry();
+        index.data = new byte[0];
+        index.vary = vary;
+        index.serverDate = entry.serverDate;
+        index.ttl = entry.ttl;
+        index.softTtl = entry.softTtl;
+        return index;
+    }
+}
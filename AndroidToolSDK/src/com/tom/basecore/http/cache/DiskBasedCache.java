@@ -2,8 +2,12 @@ package com.tom.basecore.http.cache;
 
 import android.os.SystemClock;
 
+import com.tom.basecore.http.ByteArrayPool;
+import com.tom.basecore.http.PoolingBufferedInputStream;
 import com.tom.basecore.utlis.DebugLog;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,22 +16,32 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Description:磁盘缓存工具(主要用户缓存http请求数据)
  * <pre>
  *     1、使用磁盘缓存前调用{@link #initialize()}初始化磁盘，此方法需要在异步线程中执行
  *     2、默认磁盘缓存大小是10M，可以通过构造函数{@link #DiskBasedCache(File, int)}进行配置
+ *     3、可以通过构造函数{@link #DiskBasedCache(File, int, int)}在磁盘缓存前面增加一级按字节数限制的内存缓存，
+ *        内存缓存命中时不需要加锁和读文件，put时同时写入两级缓存，remove/invalidate时同时失效
+ *     4、通过{@link #memoryHitCount()}、{@link #diskHitCount()}等方法统计每一级缓存的命中情况
+ *     5、所有的写入和删除都会追加到二进制索引日志{@link #JOURNAL_FILE}中，{@link #initialize()}只需读取这一个文件，
+ *        冗余记录过多时会重写(压缩)日志，日志损坏时扫描所有缓存文件重建
  * </pre>
  * User： yuanzeyao.
  * Date： 2015-08-19 10:11
  */
-public class DiskBasedCache{
+public class DiskBasedCache implements Cache {
     public static final String TAG="DiskBasedCache";
 
     /** 初始化磁盘缓存时，将CacheHeader信息加入到内存中，便于快速判断是否存在缓存并且是否过期*/
@@ -49,8 +63,50 @@ public class DiskBasedCache{
     /** 预警值 */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
-    /** 当前磁盘缓存版本的魔数值 */
-    private static final int CACHE_MAGIC = 0x20120504;
+    /** 旧版本缓存文件的魔数值，头信息中没有Vary */
+    private static final int CACHE_MAGIC_V1 = 0x20120504;
+
+    /** 当前磁盘缓存版本的魔数值，头信息末尾保存Vary */
+    private static final int CACHE_MAGIC = 0x20150911;
+
+    /** 头信息和索引日志中单个字符串的最大字节数，防止读取损坏的文件时分配过大的数组 */
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+
+    /** 索引日志文件名 */
+    static final String JOURNAL_FILE = "journal";
+
+    /** 重写索引日志时使用的临时文件 */
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /** 索引日志的魔数值 */
+    private static final int JOURNAL_MAGIC = 0x20150907;
+
+    /** 索引日志格式版本 */
+    private static final int JOURNAL_VERSION = 1;
+
+    /** 索引日志记录：写入一条缓存 */
+    private static final int OP_PUT = 1;
+
+    /** 索引日志记录：删除一条缓存 */
+    private static final int OP_REMOVE = 2;
+
+    /** 冗余记录超过此值并且超过缓存条数时重写索引日志 */
+    private static final int JOURNAL_REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    /** 索引日志的写入流，为null时不写日志，下次初始化时会扫描文件重建 */
+    private OutputStream mJournalWriter;
+
+    /** 索引日志中已经失效(被覆盖或删除)的记录数 */
+    private int mJournalRedundantOpCount;
+
+    /** 内存缓存，为null表示没有启用 */
+    private final EntryMemoryCache mMemoryCache;
+
+    /** 磁盘缓存命中次数 */
+    private int mDiskHitCount;
+
+    /** 磁盘缓存没有命中次数 */
+    private int mDiskMissCount;
 
     /**
      * 在指定的目录创建一个磁盘缓存实例
@@ -58,8 +114,19 @@ public class DiskBasedCache{
      * @param maxCacheSizeInBytes 磁盘缓存大小.
      */
     public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, 0);
+    }
+
+    /**
+     * 在指定的目录创建一个磁盘缓存实例，并在磁盘缓存前面增加一级内存缓存
+     * @param rootDirectory 磁盘缓存目录.
+     * @param maxCacheSizeInBytes 磁盘缓存大小.
+     * @param maxMemoryCacheSizeInBytes 内存缓存大小，小于等于0表示不使用内存缓存.
+     */
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes, int maxMemoryCacheSizeInBytes) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mMemoryCache = maxMemoryCacheSizeInBytes > 0 ? new EntryMemoryCache(maxMemoryCacheSizeInBytes) : null;
     }
 
     /**
@@ -74,6 +141,7 @@ public class DiskBasedCache{
      * 删除所有的磁盘缓存内容.
      */
     public synchronized void clear() {
+        closeJournalWriter();
         File[] files = mRootDirectory.listFiles();
         if (files != null) {
             for (File file : files) {
@@ -82,28 +150,54 @@ public class DiskBasedCache{
         }
         mEntries.clear();
         mTotalSize = 0;
+        if (mMemoryCache != null) {
+            mMemoryCache.evictAll();
+        }
+        rebuildJournal();
         DebugLog.d(TAG, "Cache cleared.");
     }
 
     /**
      * 通过键值获取缓存内容，如果不存在指定键值，那么返回null.
+     * 注意：返回的{@link CacheEntry#data}可能和内存缓存共享，不要修改其内容
+     */
+    public CacheEntry get(String key) {
+        if (mMemoryCache != null) {
+            CacheEntry cached = mMemoryCache.get(key);
+            if (cached != null) {
+                return EntryMemoryCache.copyOf(cached);
+            }
+        }
+        return getFromDisk(key);
+    }
+
+    /**
+     * 从磁盘读取缓存，读取成功后放入内存缓存
      */
-    public synchronized CacheEntry get(String key) {
+    private synchronized CacheEntry getFromDisk(String key) {
         CacheHeader entry = mEntries.get(key);
         // if the entry does not exist, return.
         if (entry == null) {
+            mDiskMissCount++;
             return null;
         }
 
         File file = getFileForKey(key);
         CountingInputStream cis = null;
         try {
-            cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
+            cis = new CountingInputStream(new PoolingBufferedInputStream(new FileInputStream(file), ByteArrayPool.getInstance()));
+            // 索引中不保存响应头，使用缓存文件中完整的头信息
+            CacheHeader header = CacheHeader.readHeader(cis);
             byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            mDiskHitCount++;
+            CacheEntry result = header.toCacheEntry(data);
+            if (mMemoryCache != null) {
+                mMemoryCache.put(key, EntryMemoryCache.copyOf(result));
+            }
+            return result;
         } catch (IOException e) {
             DebugLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            mDiskMissCount++;
             remove(key);
             return null;
         } finally {
@@ -118,27 +212,72 @@ public class DiskBasedCache{
     }
 
     /**
-     * 在指定的目录初始化磁盘缓存，扫描磁盘中所有的文件，将{@link com.tom.basecore.http.cache.DiskBasedCache.CacheHeader}
-     * 写入内存
+     * 在指定的目录初始化磁盘缓存
+     * <pre>
+     *     1、优先读取索引日志{@link #JOURNAL_FILE}，只需要读取一个文件就可以恢复所有的
+     *        {@link com.tom.basecore.http.cache.DiskBasedCache.CacheHeader}，响应头在读取缓存时再从缓存文件中加载
+     *     2、索引日志不存在或者已经损坏时，扫描磁盘中所有的文件重建索引
+     * </pre>
      */
     public synchronized void initialize() {
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 DebugLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                return;
             }
+            rebuildJournal();
             return;
         }
 
+        File journal = new File(mRootDirectory, JOURNAL_FILE);
+        boolean journalRead = false;
+        boolean journalComplete = false;
+        if (journal.exists()) {
+            try {
+                journalComplete = readJournal(journal);
+                journalRead = true;
+            } catch (IOException e) {
+                DebugLog.d(TAG, "journal is corrupt, rebuild it:%s", e.toString());
+                mEntries.clear();
+                mTotalSize = 0;
+            }
+        }
+        if (journalRead) {
+            boolean changed = removeOrphans();
+            if (journalComplete && !changed && !journalRebuildRequired()) {
+                openJournalWriter();
+                return;
+            }
+        } else {
+            rebuildFromFiles();
+        }
+        rebuildJournal();
+    }
+
+    /**
+     * 扫描所有的缓存文件重建内存中的索引，只在索引日志不可用时调用
+     */
+    private void rebuildFromFiles() {
         File[] files = mRootDirectory.listFiles();
         if (files == null) {
             return;
         }
         for (File file : files) {
-            FileInputStream fis = null;
+            if (isJournalFile(file.getName())) {
+                continue;
+            }
+            // 上次没有完成的重写留下的临时文件
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            CountingInputStream cis = null;
             try {
-                fis = new FileInputStream(file);
-                CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
+                cis = new CountingInputStream(new PoolingBufferedInputStream(new FileInputStream(file), ByteArrayPool.getInstance()));
+                CacheHeader entry = CacheHeader.readHeader(cis);
+                entry.size = file.length() - cis.bytesRead;
+                //响应头在读取缓存时从文件中加载，这里不需要保存
+                entry.responseHeaders = null;
                 putEntry(entry.key, entry);
             } catch (IOException e) {
                 if (file != null) {
@@ -146,14 +285,98 @@ public class DiskBasedCache{
                 }
             } finally {
                 try {
-                    if (fis != null) {
-                        fis.close();
+                    if (cis != null) {
+                        cis.close();
                     }
                 } catch (IOException ignored) { }
             }
         }
     }
 
+    /**
+     * 读取索引日志
+     * @return 索引日志完整返回true；日志末尾有不完整的记录(例如写入时进程被杀)返回false，此时已经读取的记录仍然有效
+     * @throws IOException 索引日志已经损坏
+     */
+    private boolean readJournal(File journal) throws IOException {
+        InputStream in = new PoolingBufferedInputStream(new FileInputStream(journal), ByteArrayPool.getInstance());
+        try {
+            if (readInt(in) != JOURNAL_MAGIC || readInt(in) != JOURNAL_VERSION) {
+                throw new IOException("unexpected journal header");
+            }
+            mJournalRedundantOpCount = 0;
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    return true;
+                }
+                try {
+                    if (op == OP_PUT) {
+                        CacheHeader entry = new CacheHeader();
+                        entry.key = readString(in);
+                        entry.size = readLong(in);
+                        entry.etag = readString(in);
+                        if (entry.etag.equals("")) {
+                            entry.etag = null;
+                        }
+                        entry.serverDate = readLong(in);
+                        entry.ttl = readLong(in);
+                        entry.softTtl = readLong(in);
+                        if (mEntries.containsKey(entry.key)) {
+                            mJournalRedundantOpCount++;
+                        }
+                        putEntry(entry.key, entry);
+                    } else if (op == OP_REMOVE) {
+                        removeEntry(readString(in));
+                        mJournalRedundantOpCount++;
+                    } else {
+                        throw new IOException("unexpected journal op " + op);
+                    }
+                } catch (EOFException e) {
+                    DebugLog.d(TAG, "journal is truncated");
+                    return false;
+                }
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * 索引日志和磁盘上的文件对比：删除日志中存在但文件已经丢失的记录，删除不在日志中的文件(包括临时文件)
+     * 只比较文件名，不会打开任何缓存文件
+     * @return 有记录被删除时返回true，此时需要重写索引日志
+     */
+    private boolean removeOrphans() {
+        String[] names = mRootDirectory.list();
+        if (names == null) {
+            return false;
+        }
+        Set<String> existing = new HashSet<String>(Arrays.asList(names));
+        Set<String> expected = new HashSet<String>(mEntries.size() * 2);
+        boolean changed = false;
+        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            CacheHeader entry = iterator.next().getValue();
+            String name = getFilenameForKey(entry.key);
+            if (existing.contains(name)) {
+                expected.add(name);
+            } else {
+                mTotalSize -= entry.size;
+                iterator.remove();
+                changed = true;
+            }
+        }
+        for (String name : names) {
+            if (!expected.contains(name) && !isJournalFile(name)) {
+                new File(mRootDirectory, name).delete();
+            }
+        }
+        return changed;
+    }
+
     /**
      * 让指定的缓存过期
      * @param key Cache key
@@ -183,22 +406,145 @@ public class DiskBasedCache{
             e.writeHeader(fos);
             fos.write(entry.data);
             fos.close();
+            boolean replaced = mEntries.containsKey(key);
             putEntry(key, e);
+            journalPut(e, replaced);
+            if (mMemoryCache != null) {
+                mMemoryCache.put(key, EntryMemoryCache.copyOf(entry));
+            }
             return;
         } catch (IOException e) {
         }
+        if (mMemoryCache != null) {
+            mMemoryCache.remove(key);
+        }
         boolean deleted = file.delete();
         if (!deleted) {
             DebugLog.d("Could not clean up file %s", file.getAbsolutePath());
         }
     }
 
+    /**
+     * 只更新缓存的头信息(过期时间、ETag、响应头)，不重写缓存的数据，用于304响应后刷新缓存
+     * <pre>
+     *     1、新的头信息长度和原来一致时(通常只有日期发生变化)，直接覆盖文件开头的头信息
+     *     2、长度不一致时写入新的头信息，再通过{@link FileChannel}把原来的数据拷贝到新文件
+     * </pre>
+     * @param key
+     * @param entry 新的缓存信息，其中data必须是原来缓存的数据
+     * @return 更新成功返回true，如果缓存不存在或者更新失败返回false
+     */
+    public synchronized boolean updateHeader(String key, CacheEntry entry) {
+        CacheHeader old = mEntries.get(key);
+        if (old == null || entry.data == null) {
+            return false;
+        }
+        File file = getFileForKey(key);
+        CacheHeader header = new CacheHeader(key, entry);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (!header.writeHeader(bytes)) {
+            return false;
+        }
+        try {
+            //数据长度按照文件中实际的头信息长度计算，和get()一致，不依赖索引中记录的size
+            long oldHeaderLength = readHeaderLength(file);
+            long dataLength = file.length() - oldHeaderLength;
+            if (entry.data.length != dataLength) {
+                return false;
+            }
+            if (bytes.size() == oldHeaderLength) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.write(bytes.toByteArray());
+                } finally {
+                    raf.close();
+                }
+            } else {
+                rewriteWithHeader(file, bytes.toByteArray(), oldHeaderLength, dataLength);
+            }
+            putEntry(key, header);
+            journalPut(header, true);
+            if (mMemoryCache != null) {
+                mMemoryCache.put(key, EntryMemoryCache.copyOf(entry));
+            }
+            return true;
+        } catch (IOException e) {
+            DebugLog.d(TAG, "updateHeader failed:%s", e.toString());
+            remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * 读取缓存文件的头信息，返回头信息占用的字节数
+     */
+    private static long readHeaderLength(File file) throws IOException {
+        CountingInputStream cis = new CountingInputStream(new PoolingBufferedInputStream(new FileInputStream(file), ByteArrayPool.getInstance()));
+        try {
+            CacheHeader.readHeader(cis);
+            return cis.bytesRead;
+        } finally {
+            cis.close();
+        }
+    }
+
+    /**
+     * 用新的头信息替换缓存文件原来的头信息，数据部分通过{@link FileChannel#transferTo}直接拷贝
+     */
+    private void rewriteWithHeader(File file, byte[] header, long dataOffset, long dataLength) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        boolean success = false;
+        try {
+            in = new FileInputStream(file);
+            out = new FileOutputStream(tmp);
+            out.write(header);
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+            long position = dataOffset;
+            long end = dataOffset + dataLength;
+            while (position < end) {
+                long transferred = source.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of cache file " + file.getAbsolutePath());
+                }
+                position += transferred;
+            }
+            success = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) { }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) { }
+            }
+            if (!success) {
+                tmp.delete();
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp.getAbsolutePath());
+        }
+    }
+
     /**
      * 将指定的缓存从磁盘中移除.
      */
     public synchronized void remove(String key) {
         boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
+        if (mEntries.containsKey(key)) {
+            removeEntry(key);
+            journalRemove(key);
+        }
+        if (mMemoryCache != null) {
+            mMemoryCache.remove(key);
+        }
         if (!deleted) {
             DebugLog.d("Could not delete cache entry for key=%s, filename=%s",
                     key, getFilenameForKey(key));
@@ -250,6 +596,10 @@ public class DiskBasedCache{
                        e.key, getFilenameForKey(e.key));
             }
             iterator.remove();
+            journalRemove(e.key);
+            if (mMemoryCache != null) {
+                mMemoryCache.remove(e.key);
+            }
             prunedFiles++;
 
             if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
@@ -287,8 +637,178 @@ public class DiskBasedCache{
         }
     }
 
+    /**
+     * 是否是索引日志文件
+     */
+    private static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name);
+    }
+
+    /**
+     * 冗余记录是否已经多到需要重写索引日志
+     */
+    private boolean journalRebuildRequired() {
+        return mJournalRedundantOpCount >= JOURNAL_REDUNDANT_OP_COMPACT_THRESHOLD
+                && mJournalRedundantOpCount >= mEntries.size();
+    }
+
+    /**
+     * 以追加的方式打开索引日志
+     */
+    private void openJournalWriter() {
+        try {
+            mJournalWriter = new BufferedOutputStream(
+                    new FileOutputStream(new File(mRootDirectory, JOURNAL_FILE), true));
+        } catch (IOException e) {
+            DebugLog.d(TAG, "open journal failed:%s", e.toString());
+            mJournalWriter = null;
+        }
+    }
+
+    private void closeJournalWriter() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException ignored) { }
+            mJournalWriter = null;
+        }
+    }
+
+    /**
+     * 根据内存中的索引重写索引日志，先写临时文件再重命名，保证任何时候磁盘上的日志都是完整的
+     */
+    private void rebuildJournal() {
+        closeJournalWriter();
+        File journal = new File(mRootDirectory, JOURNAL_FILE);
+        File tmp = new File(mRootDirectory, JOURNAL_FILE_TMP);
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tmp));
+            writeInt(os, JOURNAL_MAGIC);
+            writeInt(os, JOURNAL_VERSION);
+            for (CacheHeader entry : mEntries.values()) {
+                writePutRecord(os, entry);
+            }
+            os.close();
+            os = null;
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            mJournalRedundantOpCount = 0;
+            openJournalWriter();
+        } catch (IOException e) {
+            DebugLog.d(TAG, "rebuild journal failed:%s", e.toString());
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+            }
+            tmp.delete();
+            journal.delete();
+        }
+    }
+
+    private static void writePutRecord(OutputStream os, CacheHeader entry) throws IOException {
+        os.write(OP_PUT);
+        writeString(os, entry.key);
+        writeLong(os, entry.size);
+        writeString(os, entry.etag == null ? "" : entry.etag);
+        writeLong(os, entry.serverDate);
+        writeLong(os, entry.ttl);
+        writeLong(os, entry.softTtl);
+    }
+
+    /**
+     * 在索引日志中追加一条写入记录，调用前已经通过{@link #putEntry(String, CacheHeader)}更新了内存中的索引
+     * @param entry
+     * @param replaced 是否覆盖了已有的缓存，此时日志中之前的记录变成冗余
+     */
+    private void journalPut(CacheHeader entry, boolean replaced) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            writePutRecord(mJournalWriter, entry);
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            onJournalWriteFailed(e);
+            return;
+        }
+        if (replaced) {
+            mJournalRedundantOpCount++;
+            if (journalRebuildRequired()) {
+                rebuildJournal();
+            }
+        }
+    }
+
+    /**
+     * 在索引日志中追加一条删除记录
+     */
+    private void journalRemove(String key) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(OP_REMOVE);
+            writeString(mJournalWriter, key);
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            onJournalWriteFailed(e);
+            return;
+        }
+        mJournalRedundantOpCount += 2;
+        if (journalRebuildRequired()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * 写索引日志失败时删除日志，下次初始化时扫描缓存文件重建，避免使用和磁盘不一致的索引
+     */
+    private void onJournalWriteFailed(IOException e) {
+        DebugLog.d(TAG, "write journal failed:%s", e.toString());
+        closeJournalWriter();
+        new File(mRootDirectory, JOURNAL_FILE).delete();
+    }
+
+    /**
+     * 内存缓存命中次数
+     */
+    public int memoryHitCount() {
+        return mMemoryCache != null ? mMemoryCache.hitCount() : 0;
+    }
+
+    /**
+     * 内存缓存没有命中次数
+     */
+    public int memoryMissCount() {
+        return mMemoryCache != null ? mMemoryCache.missCount() : 0;
+    }
+
+    /**
+     * 磁盘缓存命中次数(不包括内存缓存已经命中的请求)
+     */
+    public synchronized int diskHitCount() {
+        return mDiskHitCount;
+    }
+
+    /**
+     * 磁盘缓存没有命中次数
+     */
+    public synchronized int diskMissCount() {
+        return mDiskMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DiskBasedCache[memory=%s,diskSize=%d,diskMaxSize=%d,diskHits=%d,diskMisses=%d]",
+                mMemoryCache, mTotalSize, mMaxCacheSizeInBytes, mDiskHitCount, mDiskMissCount);
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
+     * 返回的数组会作为{@link CacheEntry#data}交给调用者，所以不从{@link ByteArrayPool}获取
      * */
     private static byte[] streamToBytes(InputStream in, int length) throws IOException {
         byte[] bytes = new byte[length];
@@ -330,6 +850,9 @@ public class DiskBasedCache{
         /** Headers from the response resulting in this cache entry. */
         public Map<String, String> responseHeaders;
 
+        /** Vary索引中的请求头名称，见{@link CacheEntry#vary} */
+        public String vary = "";
+
         private CacheHeader() { }
 
         /**
@@ -345,6 +868,7 @@ public class DiskBasedCache{
             this.ttl = entry.ttl;
             this.softTtl = entry.softTtl;
             this.responseHeaders = entry.responseHeaders;
+            this.vary = entry.vary == null ? "" : entry.vary;
         }
 
         /**
@@ -355,7 +879,7 @@ public class DiskBasedCache{
         public static CacheHeader readHeader(InputStream is) throws IOException {
             CacheHeader entry = new CacheHeader();
             int magic = readInt(is);
-            if (magic != CACHE_MAGIC) {
+            if (magic != CACHE_MAGIC && magic != CACHE_MAGIC_V1) {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
             }
@@ -368,6 +892,9 @@ public class DiskBasedCache{
             entry.ttl = readLong(is);
             entry.softTtl = readLong(is);
             entry.responseHeaders = readStringStringMap(is);
+            if (magic == CACHE_MAGIC) {
+                entry.vary = readString(is);
+            }
             return entry;
         }
 
@@ -382,6 +909,7 @@ public class DiskBasedCache{
             e.ttl = ttl;
             e.softTtl = softTtl;
             e.responseHeaders = responseHeaders;
+            e.vary = vary;
             return e;
         }
 
@@ -398,6 +926,7 @@ public class DiskBasedCache{
                 writeLong(os, ttl);
                 writeLong(os, softTtl);
                 writeStringStringMap(responseHeaders, os);
+                writeString(os, vary == null ? "" : vary);
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -500,7 +1029,11 @@ public class DiskBasedCache{
     }
 
     static String readString(InputStream is) throws IOException {
-        int n = (int) readLong(is);
+        long length = readLong(is);
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Unexpected string length " + length);
+        }
+        int n = (int) length;
         byte[] b = streamToBytes(is, n);
         return new String(b, "UTF-8");
     }
@@ -0,0 +1,37 @@
+package com.tom.basecore.http.cache;
+
+import com.tom.basecore.image.LruCache;
+
+/**
+ * Description:http缓存的内存层，按照数据的字节数限制大小，放在磁盘缓存前面使用
+ * User： yuanzeyao.
+ * Date： 2015-09-08 16:05
+ */
+class EntryMemoryCache extends LruCache<String, CacheEntry> {
+    /** 每条缓存除数据以外的大致开销 */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    EntryMemoryCache(int maxSizeInBytes) {
+        super(maxSizeInBytes);
+    }
+
+    @Override
+    protected int sizeOf(String key, CacheEntry value) {
+        return (value.data != null ? value.data.length : 0) + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * 复制缓存的元信息，data和responseHeaders是共享的，避免调用方修改过期时间影响内存缓存
+     */
+    static CacheEntry copyOf(CacheEntry entry) {
+        CacheEntry copy = new CacheEntry();
+        copy.data = entry.data;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = entry.responseHeaders;
+        copy.vary = entry.vary;
+        return copy;
+    }
+}
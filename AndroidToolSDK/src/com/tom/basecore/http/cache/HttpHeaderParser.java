@@ -1,13 +1,18 @@
 package com.tom.basecore.http.cache;
 
+import android.text.TextUtils;
+
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.impl.cookie.DateParseException;
 import org.apache.http.impl.cookie.DateUtils;
 
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Description:用于解析http响应头信息
@@ -22,15 +27,52 @@ public class HttpHeaderParser {
      * @return
      */
     public static final CacheEntry parseCacheHeaders(HttpResponse response){
-        long now=System.currentTimeMillis();
-        Map<String, String> headers= Collections.emptyMap();
-        Header[] tmp_headers = response.getAllHeaders();
-        if(tmp_headers!=null){
-            headers=new HashMap<String,String>();
-            for(Header header : tmp_headers){
-                headers.put(header.getName(),header.getValue());
-            }
+        return parseCacheHeaders(toHeaderMap(response));
+    }
+
+    /**
+     * 解析304(Not Modified)响应，304响应中的头信息覆盖缓存中的头信息，缓存的数据保持不变
+     * @param response 服务器返回的304响应
+     * @param cached 发起条件请求时使用的缓存
+     * @return 刷新了过期时间和头信息的缓存
+     */
+    public static final CacheEntry parseNotModified(HttpResponse response, CacheEntry cached){
+        Map<String, String> headers = new HashMap<String, String>(cached.responseHeaders);
+        headers.putAll(toHeaderMap(response));
+        CacheEntry entry = parseCacheHeaders(headers);
+        entry.data = cached.data;
+        if (entry.etag == null) {
+            entry.etag = cached.etag;
+        }
+        return entry;
+    }
+
+    /**
+     * 获取缓存过期后重新验证时需要的条件请求头(If-None-Match和If-Modified-Since)
+     * @param cached 过期的缓存
+     * @return 条件请求头，没有可以用于验证的信息时返回空的Map
+     */
+    public static final Map<String, String> getConditionalHeaders(CacheEntry cached){
+        Map<String, String> headers = new HashMap<String, String>();
+        if (cached.etag != null) {
+            headers.put("If-None-Match", cached.etag);
+        }
+        String lastModified = cached.responseHeaders.get("Last-Modified");
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        } else if (cached.serverDate > 0) {
+            headers.put("If-Modified-Since", DateUtils.formatDate(new Date(cached.serverDate)));
         }
+        return headers;
+    }
+
+    /**
+     * 解析头信息中和缓存相关的字段
+     * @param headers
+     * @return
+     */
+    public static final CacheEntry parseCacheHeaders(Map<String, String> headers){
+        long now=System.currentTimeMillis();
 
         long serverDate = 0;
         long serverExpires = 0;
@@ -88,6 +130,43 @@ public class HttpHeaderParser {
 
     }
 
+    /**
+     * 解析Cache-Control中带秒数的指令，例如stale-while-revalidate=60、stale-if-error=86400
+     * @param headers 响应的头信息
+     * @param directive 指令名称
+     * @return 秒数，没有该指令或者格式错误时返回-1
+     */
+    public static long parseCacheControlSeconds(Map<String, String> headers, String directive) {
+        String headerValue = headers != null ? headers.get("Cache-Control") : null;
+        if (headerValue == null) {
+            return -1;
+        }
+        String prefix = directive + "=";
+        for (String token : headerValue.split(",")) {
+            token = token.trim();
+            if (token.startsWith(prefix)) {
+                try {
+                    return Math.max(0, Long.parseLong(token.substring(prefix.length()).trim()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, String> toHeaderMap(HttpResponse response){
+        Map<String, String> headers= Collections.emptyMap();
+        Header[] tmp_headers = response.getAllHeaders();
+        if(tmp_headers!=null){
+            headers=new HashMap<String,String>();
+            for(Header header : tmp_headers){
+                headers.put(header.getName(),header.getValue());
+            }
+        }
+        return headers;
+    }
+
     public static long parseDateAsEpoch(String dateStr) {
         try {
             // Parse date in RFC1123 format if this header contains one
@@ -97,4 +176,56 @@ public class HttpHeaderParser {
             return 0;
         }
     }
+
+    /**
+     * 解析响应的Vary头
+     * @param response
+     * @return 小写、排序、去重后以逗号分隔的请求头名称；没有Vary时返回空字符串，包含*时返回{@link CacheKeyBuilder#VARY_ALL}
+     */
+    public static String parseVary(HttpResponse response) {
+        Header[] headers = response.getHeaders("Vary");
+        if (headers == null || headers.length == 0) {
+            return "";
+        }
+        TreeSet<String> names = new TreeSet<String>();
+        for (Header header : headers) {
+            if (header.getValue() == null) {
+                continue;
+            }
+            for (String name : header.getValue().split(",")) {
+                name = name.trim().toLowerCase(Locale.US);
+                if (CacheKeyBuilder.VARY_ALL.equals(name)) {
+                    return CacheKeyBuilder.VARY_ALL;
+                }
+                if (name.length() > 0) {
+                    names.add(name);
+                }
+            }
+        }
+        return TextUtils.join(",", names);
+    }
+
+    /**
+     * 解析Retry-After响应头，支持秒数和HTTP日期两种格式
+     * @param response
+     * @return 需要等待的毫秒数，没有此响应头或者格式不正确时返回-1
+     */
+    public static long parseRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // not delta-seconds, try HTTP-date
+        }
+        long date = parseDateAsEpoch(value);
+        if (date <= 0) {
+            return -1;
+        }
+        return Math.max(date - System.currentTimeMillis(), 0);
+    }
 }
@@ -0,0 +1,808 @@
+package com.tom.basecore.http.cache;
+
+import com.tom.basecore.thread.ThreadPoolManager;
+import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
+import com.tom.basecore.utlis.DebugLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Description:基于日志结构的磁盘缓存，和{@link DiskBasedCache}提供相同的接口
+ * <pre>
+ *     1、所有的缓存按顺序追加写入少量的大文件(segment)，写满{@link #DEFAULT_SEGMENT_SIZE}后切换到新的segment，
+ *        不会为每条缓存创建一个文件，适合大量的小响应(例如json)
+ *     2、写满的segment通过{@link MappedByteBuffer}只读映射，正在写入的segment通过{@link FileChannel}按位置读取
+ *     3、覆盖和删除只在内存索引中生效，删除会追加一条删除记录；当某个segment中失效的数据超过
+ *        {@link #COMPACT_DEAD_RATIO}时，在后台线程把其中仍然有效的记录复制到当前segment，然后删除该segment
+ *     4、{@link #initialize()}顺序读取所有的segment重建内存索引，末尾不完整的记录会被截掉
+ *     5、磁盘上所有segment的实际大小(包括失效数据和删除记录)不超过设置的总大小：写入前超出时先同步压缩
+ *        所有含有失效数据的segment，仍然超出时按照LRU淘汰缓存后再压缩
+ *     6、和{@link DiskBasedCache}一样可以在前面增加一级内存缓存
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-08 16:20
+ */
+public class SegmentBasedCache implements Cache {
+    public static final String TAG = "SegmentBasedCache";
+
+    /** segment文件名前缀，后面是segment的序号 */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /** 默认的磁盘缓存总大小 */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 10 * 1024 * 1024;
+
+    /** 默认的segment大小 */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    /** 预警值 */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** segment中失效数据超过此比例时进行压缩 */
+    private static final float COMPACT_DEAD_RATIO = 0.5f;
+
+    /** 每条记录开头的魔数值 */
+    private static final int RECORD_MAGIC = 0x20150908;
+
+    /** 记录类型：写入一条缓存 */
+    private static final byte TYPE_PUT = 1;
+
+    /** 记录类型：删除一条缓存 */
+    private static final byte TYPE_REMOVE = 2;
+
+    /** 写入记录的固定头部：magic、type、头信息长度、数据长度 */
+    private static final int PUT_PREFIX = 4 + 1 + 4 + 4;
+
+    /** 删除记录的固定头部：magic、type、key长度 */
+    private static final int REMOVE_PREFIX = 4 + 1 + 4;
+
+    /** 内存中的索引，按照访问顺序排列，用于LRU淘汰 */
+    private final Map<String, Location> mEntries = new LinkedHashMap<String, Location>(16, .75f, true);
+
+    /** 已经删除的key和最后一条删除记录所在的segment，压缩时用来判断删除记录是否还需要保留 */
+    private final Map<String, Segment> mTombstones = new HashMap<String, Segment>();
+
+    /** 所有的segment，按照序号排列，序号越大越新 */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /** 当前正在写入的segment */
+    private Segment mActiveSegment;
+
+    /** 有效缓存数据的总大小 */
+    private long mTotalSize = 0;
+
+    /** 磁盘缓存根目录 */
+    private final File mRootDirectory;
+
+    /** 磁盘缓存总大小 */
+    private final int mMaxCacheSizeInBytes;
+
+    /** 单个segment的大小 */
+    private final int mSegmentSize;
+
+    /** 内存缓存，为null表示没有启用 */
+    private final EntryMemoryCache mMemoryCache;
+
+    /** 压缩segment的后台线程 */
+    private final XThreadPoolExecutor mCompactExecutor = ThreadPoolManager.createSingleThreadPool(1);
+
+    /** 是否已经提交了压缩任务 */
+    private boolean mCompactionScheduled;
+
+    /** 磁盘缓存命中次数 */
+    private int mDiskHitCount;
+
+    /** 磁盘缓存没有命中次数 */
+    private int mDiskMissCount;
+
+    /**
+     * 在指定目录下创建一个默认大小的磁盘缓存
+     * @param rootDirectory 磁盘缓存的路径.
+     */
+    public SegmentBasedCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES, 0);
+    }
+
+    /**
+     * 在指定的目录创建一个磁盘缓存实例
+     * @param rootDirectory 磁盘缓存目录.
+     * @param maxCacheSizeInBytes 磁盘缓存大小.
+     * @param maxMemoryCacheSizeInBytes 内存缓存大小，小于等于0表示不使用内存缓存.
+     */
+    public SegmentBasedCache(File rootDirectory, int maxCacheSizeInBytes, int maxMemoryCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, maxMemoryCacheSizeInBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 在指定的目录创建一个磁盘缓存实例
+     * @param rootDirectory 磁盘缓存目录.
+     * @param maxCacheSizeInBytes 磁盘缓存大小.
+     * @param maxMemoryCacheSizeInBytes 内存缓存大小，小于等于0表示不使用内存缓存.
+     * @param segmentSize 单个segment的大小.
+     */
+    public SegmentBasedCache(File rootDirectory, int maxCacheSizeInBytes, int maxMemoryCacheSizeInBytes, int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize <= 0");
+        }
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mSegmentSize = segmentSize;
+        mMemoryCache = maxMemoryCacheSizeInBytes > 0 ? new EntryMemoryCache(maxMemoryCacheSizeInBytes) : null;
+    }
+
+    /**
+     * 顺序读取所有的segment重建内存索引，此方法需要在异步线程中执行
+     */
+    public synchronized void initialize() {
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+            DebugLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            return;
+        }
+        // 必须按照写入顺序读取，后面的记录覆盖前面的记录
+        TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+        String[] names = mRootDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                int id = parseSegmentId(name);
+                if (id >= 0) {
+                    files.put(id, new File(mRootDirectory, name));
+                }
+            }
+        }
+        for (Map.Entry<Integer, File> file : files.entrySet()) {
+            try {
+                Segment segment = new Segment(file.getKey(), file.getValue());
+                scanSegment(segment);
+                mSegments.put(segment.id, segment);
+            } catch (IOException e) {
+                DebugLog.d(TAG, "drop unreadable segment %s:%s", file.getValue().getName(), e.toString());
+                file.getValue().delete();
+            }
+        }
+        try {
+            if (mSegments.isEmpty() || mSegments.lastEntry().getValue().size >= mSegmentSize) {
+                newActiveSegment();
+            } else {
+                mActiveSegment = mSegments.lastEntry().getValue();
+            }
+            for (Segment segment : mSegments.values()) {
+                if (segment != mActiveSegment) {
+                    segment.seal();
+                }
+            }
+        } catch (IOException e) {
+            DebugLog.e(TAG, "initialize failed:%s", e.toString());
+        }
+        DebugLog.d(TAG, "initialized %d entries in %d segments", mEntries.size(), mSegments.size());
+        pruneIfNeeded(0);
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * 读取一个segment中的所有记录，遇到损坏或者不完整的记录时从该位置截断
+     */
+    private void scanSegment(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        long position = 0;
+        while (position < segment.size) {
+            int recordLength = scanRecord(segment, buffer, (int) position);
+            if (recordLength <= 0) {
+                DebugLog.d(TAG, "truncate %s at %d", segment.file.getName(), position);
+                segment.channel.truncate(position);
+                segment.size = position;
+                break;
+            }
+            position += recordLength;
+        }
+    }
+
+    /**
+     * 读取一条记录并更新内存索引
+     * @return 记录的长度，记录损坏或者不完整时返回-1
+     */
+    private int scanRecord(Segment segment, ByteBuffer buffer, int position) {
+        int remaining = (int) segment.size - position;
+        if (remaining < REMOVE_PREFIX) {
+            return -1;
+        }
+        buffer.position(position);
+        if (buffer.getInt() != RECORD_MAGIC) {
+            return -1;
+        }
+        byte type = buffer.get();
+        if (type == TYPE_PUT) {
+            if (remaining < PUT_PREFIX) {
+                return -1;
+            }
+            int headerLength = buffer.getInt();
+            int dataLength = buffer.getInt();
+            if (headerLength <= 0 || dataLength < 0 || (long) PUT_PREFIX + headerLength + dataLength > remaining) {
+                return -1;
+            }
+            byte[] headerBytes = new byte[headerLength];
+            buffer.get(headerBytes);
+            DiskBasedCache.CacheHeader header;
+            try {
+                header = DiskBasedCache.CacheHeader.readHeader(new ByteArrayInputStream(headerBytes));
+            } catch (IOException e) {
+                return -1;
+            }
+            header.size = dataLength;
+            //响应头在读取缓存时再加载，这里不需要保存
+            header.responseHeaders = null;
+            Location location = new Location(header, segment, position, headerLength, dataLength);
+            indexPut(header.key, location);
+            return location.recordLength;
+        } else if (type == TYPE_REMOVE) {
+            int keyLength = buffer.getInt();
+            if (keyLength < 0 || REMOVE_PREFIX + keyLength > remaining) {
+                return -1;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            String key;
+            try {
+                key = new String(keyBytes, "UTF-8");
+            } catch (IOException e) {
+                return -1;
+            }
+            indexRemove(key);
+            mTombstones.put(key, segment);
+            return REMOVE_PREFIX + keyLength;
+        }
+        return -1;
+    }
+
+    @Override
+    public CacheEntry get(String key) {
+        if (mMemoryCache != null) {
+            CacheEntry cached = mMemoryCache.get(key);
+            if (cached != null) {
+                return EntryMemoryCache.copyOf(cached);
+            }
+        }
+        return getFromDisk(key);
+    }
+
+    /**
+     * 从segment读取缓存，读取成功后放入内存缓存
+     */
+    private synchronized CacheEntry getFromDisk(String key) {
+        Location location = mEntries.get(key);
+        if (location == null) {
+            mDiskMissCount++;
+            return null;
+        }
+        try {
+            byte[] headerBytes = new byte[location.headerLength];
+            location.segment.read(location.offset + PUT_PREFIX, headerBytes);
+            DiskBasedCache.CacheHeader header =
+                    DiskBasedCache.CacheHeader.readHeader(new ByteArrayInputStream(headerBytes));
+            byte[] data = new byte[location.dataLength];
+            location.segment.read(location.offset + PUT_PREFIX + location.headerLength, data);
+            mDiskHitCount++;
+            CacheEntry result = header.toCacheEntry(data);
+            if (mMemoryCache != null) {
+                mMemoryCache.put(key, EntryMemoryCache.copyOf(result));
+            }
+            return result;
+        } catch (IOException e) {
+            DebugLog.d(TAG, "read %s failed:%s", key, e.toString());
+            mDiskMissCount++;
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, CacheEntry entry) {
+        DiskBasedCache.CacheHeader header = new DiskBasedCache.CacheHeader(key, entry);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        if (!header.writeHeader(headerBytes)) {
+            return;
+        }
+        int headerLength = headerBytes.size();
+        ByteBuffer record = ByteBuffer.allocate(PUT_PREFIX + headerLength + entry.data.length);
+        record.order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(RECORD_MAGIC);
+        record.put(TYPE_PUT);
+        record.putInt(headerLength);
+        record.putInt(entry.data.length);
+        record.put(headerBytes.toByteArray());
+        record.put(entry.data);
+        pruneIfNeeded(record.capacity());
+        try {
+            Segment segment = segmentForAppend(record.capacity());
+            long offset = segment.append(record.array());
+            header.responseHeaders = null;
+            indexPut(key, new Location(header, segment, offset, headerLength, entry.data.length));
+            if (mMemoryCache != null) {
+                mMemoryCache.put(key, EntryMemoryCache.copyOf(entry));
+            }
+        } catch (IOException e) {
+            DebugLog.d(TAG, "put %s failed:%s", key, e.toString());
+            remove(key);
+        }
+    }
+
+    /**
+     * 在日志结构中数据不能原地修改，这里追加一条完整的新记录，旧记录在压缩时回收
+     */
+    @Override
+    public synchronized boolean updateHeader(String key, CacheEntry entry) {
+        Location location = mEntries.get(key);
+        if (location == null || entry.data == null || entry.data.length != location.dataLength) {
+            return false;
+        }
+        put(key, entry);
+        return mEntries.containsKey(key);
+    }
+
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        CacheEntry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (mMemoryCache != null) {
+            mMemoryCache.remove(key);
+        }
+        if (mEntries.containsKey(key)) {
+            // 删除记录也占用磁盘空间
+            pruneIfNeeded(REMOVE_PREFIX + key.length() * 3);
+        }
+        if (indexRemove(key)) {
+            appendTombstone(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Segment segment : mSegments.values()) {
+            segment.close();
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mEntries.clear();
+        mTombstones.clear();
+        mTotalSize = 0;
+        mActiveSegment = null;
+        if (mMemoryCache != null) {
+            mMemoryCache.evictAll();
+        }
+        try {
+            newActiveSegment();
+        } catch (IOException e) {
+            DebugLog.e(TAG, "clear failed:%s", e.toString());
+        }
+        DebugLog.d(TAG, "Cache cleared.");
+    }
+
+    /**
+     * 是否有必须要清除不常用的缓存，按照磁盘上segment的实际大小计算，失效数据和删除记录也占用空间
+     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     */
+    private void pruneIfNeeded(int neededSpace) {
+        if ((diskSize() + neededSpace) < mMaxCacheSizeInBytes) {
+            return;
+        }
+        // 先回收失效数据，空间足够时不需要淘汰缓存
+        compactAll();
+        if ((diskSize() + neededSpace) < mMaxCacheSizeInBytes) {
+            return;
+        }
+        int prunedEntries = 0;
+        long before = mTotalSize;
+        long liveBytes = liveBytes();
+        List<String> pruned = new ArrayList<String>();
+        Iterator<Map.Entry<String, Location>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Location> entry = iterator.next();
+            Location location = entry.getValue();
+            iterator.remove();
+            markDead(location);
+            mTotalSize -= location.dataLength;
+            liveBytes -= location.recordLength;
+            pruned.add(entry.getKey());
+            prunedEntries++;
+            if ((liveBytes + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+        for (String key : pruned) {
+            if (mMemoryCache != null) {
+                mMemoryCache.remove(key);
+            }
+            appendTombstone(key);
+        }
+        compactAll();
+        DebugLog.d(TAG, "pruned %d entries, %d bytes, disk size %d", prunedEntries, (mTotalSize - before), diskSize());
+    }
+
+    /**
+     * 所有segment在磁盘上的总大小
+     */
+    private long diskSize() {
+        long size = 0;
+        for (Segment segment : mSegments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * 所有仍然有效的记录的总长度
+     */
+    private long liveBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments.values()) {
+            bytes += segment.liveBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * 在当前线程中压缩所有含有失效数据的segment，不考虑{@link #COMPACT_DEAD_RATIO}，调用时持有this。
+     * 当前segment中有失效数据时先切换到新的segment，使它也可以被压缩
+     */
+    private void compactAll() {
+        try {
+            if (mActiveSegment != null && mActiveSegment.size > mActiveSegment.liveBytes) {
+                mActiveSegment.seal();
+                newActiveSegment();
+            }
+        } catch (IOException e) {
+            DebugLog.d(TAG, "switch segment failed:%s", e.toString());
+        }
+        List<Segment> targets = new ArrayList<Segment>();
+        for (Segment segment : mSegments.values()) {
+            if (segment != mActiveSegment && segment.size > segment.liveBytes) {
+                targets.add(segment);
+            }
+        }
+        // 从旧到新压缩，最旧的segment被删除后它之后的删除记录可以不再保留
+        for (Segment segment : targets) {
+            if (mSegments.get(segment.id) == segment) {
+                compact(segment);
+            }
+        }
+    }
+
+    /**
+     * 更新内存索引，被覆盖的旧记录变为失效数据
+     */
+    private void indexPut(String key, Location location) {
+        Location old = mEntries.put(key, location);
+        if (old != null) {
+            markDead(old);
+            mTotalSize -= old.dataLength;
+        }
+        location.segment.liveBytes += location.recordLength;
+        mTotalSize += location.dataLength;
+        // 重新写入后之前的删除记录不再需要保留
+        mTombstones.remove(key);
+    }
+
+    /**
+     * 从内存索引中删除
+     * @return 索引中存在此key时返回true
+     */
+    private boolean indexRemove(String key) {
+        Location old = mEntries.remove(key);
+        if (old == null) {
+            return false;
+        }
+        markDead(old);
+        mTotalSize -= old.dataLength;
+        return true;
+    }
+
+    private void markDead(Location location) {
+        location.segment.liveBytes -= location.recordLength;
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * 追加一条删除记录，保证重启后已经删除的缓存不会从旧的segment中恢复
+     */
+    private void appendTombstone(String key) {
+        try {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            ByteBuffer record = ByteBuffer.allocate(REMOVE_PREFIX + keyBytes.length);
+            record.order(ByteOrder.LITTLE_ENDIAN);
+            record.putInt(RECORD_MAGIC);
+            record.put(TYPE_REMOVE);
+            record.putInt(keyBytes.length);
+            record.put(keyBytes);
+            Segment segment = segmentForAppend(record.capacity());
+            segment.append(record.array());
+            mTombstones.put(key, segment);
+        } catch (IOException e) {
+            DebugLog.d(TAG, "remove %s failed:%s", key, e.toString());
+        }
+    }
+
+    /**
+     * 获取可以写入指定长度记录的segment，当前segment写满时切换到新的segment
+     */
+    private Segment segmentForAppend(int recordLength) throws IOException {
+        if (mActiveSegment == null) {
+            newActiveSegment();
+        } else if (mActiveSegment.size > 0 && mActiveSegment.size + recordLength > mSegmentSize) {
+            mActiveSegment.seal();
+            newActiveSegment();
+        }
+        return mActiveSegment;
+    }
+
+    private void newActiveSegment() throws IOException {
+        int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+        Segment segment = new Segment(id, new File(mRootDirectory, SEGMENT_PREFIX + id));
+        mSegments.put(id, segment);
+        mActiveSegment = segment;
+    }
+
+    private static int parseSegmentId(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 找到失效数据最多并且超过{@link #COMPACT_DEAD_RATIO}的segment，当前正在写入的segment不参与压缩
+     */
+    private Segment findCompactionCandidate() {
+        Segment candidate = null;
+        long candidateDead = 0;
+        for (Segment segment : mSegments.values()) {
+            if (segment == mActiveSegment || segment.size == 0) {
+                continue;
+            }
+            long dead = segment.size - segment.liveBytes;
+            if (dead > segment.size * COMPACT_DEAD_RATIO && dead > candidateDead) {
+                candidate = segment;
+                candidateDead = dead;
+            }
+        }
+        return candidate;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (mCompactionScheduled || findCompactionCandidate() == null) {
+            return;
+        }
+        mCompactionScheduled = true;
+        mCompactExecutor.submit(mCompactTask);
+    }
+
+    private final XRunnable<Void> mCompactTask = new XRunnable<Void>() {
+        @Override
+        public void run() {
+            while (true) {
+                Segment target;
+                synchronized (SegmentBasedCache.this) {
+                    target = findCompactionCandidate();
+                    if (target == null) {
+                        mCompactionScheduled = false;
+                        return;
+                    }
+                }
+                compact(target);
+            }
+        }
+    };
+
+    /**
+     * 把segment中仍然有效的记录逐条复制到当前segment，然后删除该segment。
+     * 每条记录单独加锁，压缩过程中读写请求不会被长时间阻塞
+     */
+    private void compact(Segment target) {
+        List<Location> live = new ArrayList<Location>();
+        List<String> tombstones = new ArrayList<String>();
+        synchronized (this) {
+            // 遍历不会改变LinkedHashMap的访问顺序
+            for (Location location : mEntries.values()) {
+                if (location.segment == target) {
+                    live.add(location);
+                }
+            }
+            for (Map.Entry<String, Segment> entry : mTombstones.entrySet()) {
+                if (entry.getValue() == target) {
+                    tombstones.add(entry.getKey());
+                }
+            }
+        }
+        for (Location location : live) {
+            synchronized (this) {
+                // 记录可能已经被覆盖或者删除
+                if (location.segment != target || mEntries.get(location.header.key) != location) {
+                    continue;
+                }
+                try {
+                    byte[] record = new byte[location.recordLength];
+                    target.read(location.offset, record);
+                    Segment segment = segmentForAppend(record.length);
+                    long offset = segment.append(record);
+                    // 原地修改位置，不改变索引中的LRU顺序
+                    target.liveBytes -= location.recordLength;
+                    location.segment = segment;
+                    location.offset = offset;
+                    segment.liveBytes += location.recordLength;
+                } catch (IOException e) {
+                    DebugLog.d(TAG, "compact %s failed:%s", location.header.key, e.toString());
+                    remove(location.header.key);
+                }
+            }
+        }
+        synchronized (this) {
+            for (String key : tombstones) {
+                if (mTombstones.get(key) != target) {
+                    continue;
+                }
+                // 只有更旧的segment中可能还有该key的写入记录时才需要保留删除记录
+                if (mSegments.firstKey() < target.id) {
+                    appendTombstone(key);
+                } else {
+                    mTombstones.remove(key);
+                }
+            }
+            if (target.liveBytes <= 0) {
+                mSegments.remove(target.id);
+                target.close();
+                target.file.delete();
+                DebugLog.d(TAG, "compacted %s, %d segments left", target.file.getName(), mSegments.size());
+            } else {
+                target.liveBytes = Math.max(target.liveBytes, 0);
+            }
+        }
+    }
+
+    @Override
+    public int memoryHitCount() {
+        return mMemoryCache != null ? mMemoryCache.hitCount() : 0;
+    }
+
+    @Override
+    public int memoryMissCount() {
+        return mMemoryCache != null ? mMemoryCache.missCount() : 0;
+    }
+
+    @Override
+    public synchronized int diskHitCount() {
+        return mDiskHitCount;
+    }
+
+    @Override
+    public synchronized int diskMissCount() {
+        return mDiskMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SegmentBasedCache[memory=%s,entries=%d,segments=%d,diskSize=%d,diskMaxSize=%d,diskHits=%d,diskMisses=%d]",
+                mMemoryCache, mEntries.size(), mSegments.size(), mTotalSize, mMaxCacheSizeInBytes, mDiskHitCount, mDiskMissCount);
+    }
+
+    /**
+     * 一条缓存在segment中的位置
+     */
+    private static final class Location {
+        /** 缓存的元信息，不包含响应头 */
+        final DiskBasedCache.CacheHeader header;
+        final int headerLength;
+        final int dataLength;
+        final int recordLength;
+        /** 压缩时会移动到新的segment */
+        Segment segment;
+        long offset;
+
+        Location(DiskBasedCache.CacheHeader header, Segment segment, long offset, int headerLength, int dataLength) {
+            this.header = header;
+            this.segment = segment;
+            this.offset = offset;
+            this.headerLength = headerLength;
+            this.dataLength = dataLength;
+            this.recordLength = PUT_PREFIX + headerLength + dataLength;
+        }
+    }
+
+    /**
+     * 一个segment文件
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        /** 文件已经写入的长度 */
+        long size;
+        /** 仍然有效的记录的总长度 */
+        long liveBytes;
+        /** 写满后的只读映射 */
+        MappedByteBuffer mapped;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * 不再写入，映射为只读内存
+         */
+        void seal() throws IOException {
+            if (mapped == null && size > 0) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        long append(byte[] record) throws IOException {
+            if (mapped != null) {
+                throw new IOException("segment " + id + " is sealed");
+            }
+            long position = size;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+            size += record.length;
+            return position;
+        }
+
+        void read(long position, byte[] dst) throws IOException {
+            if (position + dst.length > size) {
+                throw new EOFException();
+            }
+            if (mapped != null) {
+                ByteBuffer buffer = mapped.duplicate();
+                buffer.position((int) position);
+                buffer.get(dst);
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(dst);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
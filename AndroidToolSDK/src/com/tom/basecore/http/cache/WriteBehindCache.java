@@ -0,0 +1,308 @@
+package com.tom.basecore.http.cache;
+
+import com.tom.basecore.thread.ThreadPoolManager;
+import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
+import com.tom.basecore.utlis.DebugLog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Description:在后台线程写入磁盘缓存的{@link Cache}，包装{@link DiskBasedCache}或者{@link SegmentBasedCache}
+ * <pre>
+ *     1、{@link #put(String, CacheEntry)}和{@link #updateHeader(String, CacheEntry)}只把缓存放入等待队列后立即返回，
+ *        由一个后台线程按照放入的顺序写入磁盘，请求线程不需要等待写文件、清理缓存，也不会和读缓存的线程竞争锁
+ *     2、同一个key在写入之前再次put时直接替换队列中的数据，只写一次
+ *     3、队列中的数据总大小不超过{@link #getMaxPendingBytes()}，条数不超过{@link #MAX_PENDING_ENTRIES}，
+ *        超过时丢弃新的写入，通过{@link #droppedWriteCount()}统计。队列中和磁盘中已有的同一个key的数据比丢弃的旧，
+ *        丢弃时把它们标记为完全过期({@link #invalidate(String, boolean)})，之后的请求会重新验证而不是当作新鲜的缓存
+ *     4、{@link #get(String)}优先返回队列中还没有写入的数据；remove和clear同时清除队列中的数据
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-11 15:20
+ */
+public class WriteBehindCache implements Cache {
+    public static final String TAG = "WriteBehindCache";
+
+    /** 默认等待写入的最大字节数 */
+    public static final int DEFAULT_MAX_PENDING_BYTES = 2 * 1024 * 1024;
+
+    /** 等待写入的最大条数 */
+    public static final int MAX_PENDING_ENTRIES = 128;
+
+    private final Cache mDelegate;
+
+    private final int mMaxPendingBytes;
+
+    /** 等待写入的缓存，按照第一次放入的顺序写入 */
+    private final LinkedHashMap<String, PendingWrite> mPending = new LinkedHashMap<String, PendingWrite>();
+
+    /** 等待写入的数据总大小 */
+    private int mPendingBytes;
+
+    /** 写入磁盘时持有，保证remove/clear不会被正在写入的旧数据覆盖 */
+    private final Object mWriteLock = new Object();
+
+    private final XThreadPoolExecutor mWriteExecutor = ThreadPoolManager.createSingleThreadPool(1);
+
+    /** 后台写入任务是否已经提交 */
+    private boolean mWriterScheduled;
+
+    private int mPendingHitCount;
+    private int mDroppedWriteCount;
+
+    public WriteBehindCache(Cache delegate) {
+        this(delegate, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param delegate 实际读写磁盘的缓存
+     * @param maxPendingBytes 等待写入的最大字节数
+     */
+    public WriteBehindCache(Cache delegate, int maxPendingBytes) {
+        this.mDelegate = delegate;
+        this.mMaxPendingBytes = maxPendingBytes;
+    }
+
+    @Override
+    public void initialize() {
+        mDelegate.initialize();
+    }
+
+    @Override
+    public CacheEntry get(String key) {
+        synchronized (mPending) {
+            PendingWrite pending = mPending.get(key);
+            if (pending != null) {
+                mPendingHitCount++;
+                return EntryMemoryCache.copyOf(pending.entry);
+            }
+        }
+        return mDelegate.get(key);
+    }
+
+    @Override
+    public void put(String key, CacheEntry entry) {
+        enqueue(key, EntryMemoryCache.copyOf(entry), false);
+    }
+
+    /**
+     * 放入等待队列后返回，返回true只表示已经放入队列；磁盘中没有该缓存时后台写入会失败
+     */
+    @Override
+    public boolean updateHeader(String key, CacheEntry entry) {
+        synchronized (mPending) {
+            PendingWrite pending = mPending.get(key);
+            if (pending != null) {
+                // 还没有写入，直接用新的头信息替换队列中的缓存，数据保持不变
+                CacheEntry updated = EntryMemoryCache.copyOf(entry);
+                updated.data = pending.entry.data;
+                mPending.put(key, new PendingWrite(updated, pending.headerOnly));
+                return true;
+            }
+        }
+        if (entry.data == null) {
+            return false;
+        }
+        return enqueue(key, EntryMemoryCache.copyOf(entry), true);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (mPending) {
+            PendingWrite pending = mPending.get(key);
+            if (pending != null) {
+                // 后台线程可能正在写入原来的对象，这里替换为修改后的副本
+                CacheEntry updated = EntryMemoryCache.copyOf(pending.entry);
+                updated.softTtl = 0;
+                if (fullExpire) {
+                    updated.ttl = 0;
+                }
+                mPending.put(key, new PendingWrite(updated, pending.headerOnly));
+                return;
+            }
+        }
+        mDelegate.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (mPending) {
+            removePending(key);
+        }
+        synchronized (mWriteLock) {
+            mDelegate.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mPending) {
+            mPending.clear();
+            mPendingBytes = 0;
+        }
+        synchronized (mWriteLock) {
+            mDelegate.clear();
+        }
+    }
+
+    /**
+     * @return 放入队列返回true，队列已满丢弃时返回false，此时key已有的缓存被标记为完全过期
+     */
+    private boolean enqueue(String key, CacheEntry entry, boolean headerOnly) {
+        if (!tryEnqueue(key, entry, headerOnly)) {
+            // 在mPending外调用，没有等待写入的数据时会直接修改磁盘缓存
+            invalidate(key, true);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean tryEnqueue(String key, CacheEntry entry, boolean headerOnly) {
+        int size = entry.data != null ? entry.data.length : 0;
+        synchronized (mPending) {
+            PendingWrite old = mPending.get(key);
+            int oldSize = old != null && old.entry.data != null ? old.entry.data.length : 0;
+            if (mPendingBytes - oldSize + size > mMaxPendingBytes
+                    || (old == null && mPending.size() >= MAX_PENDING_ENTRIES)) {
+                mDroppedWriteCount++;
+                DebugLog.d(TAG, "write queue is full, drop %s(%d bytes) and expire the older copy", key, size);
+                return false;
+            }
+            // 覆盖时LinkedHashMap保持原来的顺序，数据只写入一次
+            mPending.put(key, new PendingWrite(entry, headerOnly && (old == null || old.headerOnly)));
+            mPendingBytes += size - oldSize;
+            if (!mWriterScheduled) {
+                mWriterScheduled = true;
+                mWriteExecutor.submit(mWriteTask);
+            }
+            return true;
+        }
+    }
+
+    private void removePending(String key) {
+        PendingWrite pending = mPending.remove(key);
+        if (pending != null && pending.entry.data != null) {
+            mPendingBytes -= pending.entry.data.length;
+        }
+    }
+
+    private final XRunnable<Void> mWriteTask = new XRunnable<Void>() {
+        @Override
+        public void run() {
+            while (true) {
+                String key;
+                PendingWrite pending;
+                synchronized (mPending) {
+                    Iterator<Map.Entry<String, PendingWrite>> iterator = mPending.entrySet().iterator();
+                    if (!iterator.hasNext()) {
+                        mWriterScheduled = false;
+                        return;
+                    }
+                    Map.Entry<String, PendingWrite> first = iterator.next();
+                    key = first.getKey();
+                    pending = first.getValue();
+                }
+                write(key, pending);
+            }
+        }
+    };
+
+    private void write(String key, PendingWrite pending) {
+        synchronized (mWriteLock) {
+            synchronized (mPending) {
+                // 已经被remove或clear
+                if (mPending.get(key) != pending) {
+                    return;
+                }
+            }
+            try {
+                if (pending.headerOnly) {
+                    mDelegate.updateHeader(key, pending.entry);
+                } else {
+                    mDelegate.put(key, pending.entry);
+                }
+            } catch (RuntimeException e) {
+                DebugLog.e(TAG, "write cache %s failed:%s", key, e.toString());
+            } finally {
+                synchronized (mPending) {
+                    // 写入过程中被再次put时保留新的数据，稍后再写一次
+                    if (mPending.get(key) == pending) {
+                        removePending(key);
+                    } else if (mPending.containsKey(key)) {
+                        // 移动到队尾，避免同一个key一直被覆盖时阻塞其他key
+                        PendingWrite newer = mPending.remove(key);
+                        mPending.put(key, newer);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待写入的最大字节数
+     */
+    public int getMaxPendingBytes() {
+        return mMaxPendingBytes;
+    }
+
+    /**
+     * 当前等待写入的条数
+     */
+    public int pendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * 从等待队列中读取到缓存的次数
+     */
+    public int pendingHitCount() {
+        synchronized (mPending) {
+            return mPendingHitCount;
+        }
+    }
+
+    /**
+     * 队列已满被丢弃的写入次数
+     */
+    public int droppedWriteCount() {
+        synchronized (mPending) {
+            return mDroppedWriteCount;
+        }
+    }
+
+    @Override
+    public int memoryHitCount() {
+        return mDelegate.memoryHitCount();
+    }
+
+    @Override
+    public int memoryMissCount() {
+        return mDelegate.memoryMissCount();
+    }
+
+    @Override
+    public int diskHitCount() {
+        return mDelegate.diskHitCount();
+    }
+
+    @Override
+    public int diskMissCount() {
+        return mDelegate.diskMissCount();
+    }
+
+    private static final class PendingWrite {
+        final CacheEntry entry;
+        /** 为true时只更新头信息，见{@link Cache#updateHeader(String, CacheEntry)} */
+        final boolean headerOnly;
+
+        PendingWrite(CacheEntry entry, boolean headerOnly) {
+            this.entry = entry;
+            this.headerOnly = headerOnly;
+        }
+    }
+}
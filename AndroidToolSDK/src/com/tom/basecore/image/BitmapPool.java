@@ -0,0 +1,295 @@
+package com.tom.basecore.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.tom.basecore.utlis.DebugLog;
+import com.tom.basecore.utlis.OSVersionUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Description:可复用Bitmap的对象池，用于解码时设置{@link BitmapFactory.Options#inBitmap}
+ * <pre>
+ *     1、Bitmap按照Bitmap.Config分组，组内按照字节数排序分桶存放，查找可复用的Bitmap是O(log n)操作
+ *     2、只能放入已经不再显示、也不在内存缓存中的Bitmap，通常由{@link RecyclingBitmapDrawable}在引用计数归零时放入，
+ *        放入后Bitmap的像素会被之后的解码覆盖
+ *     3、对象池有固定的字节上限，超过上限时按照LRU顺序淘汰。被淘汰的Bitmap只是不再被引用，不会recycle，由GC回收
+ *     4、KitKat之前inBitmap要求inSampleSize为1并且宽高完全一致；KitKat及以后只要求占用的内存
+ *        ({@link Bitmap#getAllocationByteCount()})不小于解码需要的字节数，选择满足条件的最小的Bitmap
+ *     5、通过{@link #hitCount()}、{@link #missCount()}、{@link #evictionCount()}统计命中情况
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-02 10:20
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /**按照config分组，组内按照字节数分桶，桶中最后放入的Bitmap在队尾*/
+    private final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mBuckets =
+            new HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+    /**池中所有的Bitmap，按照放入的先后顺序排列，用于LRU淘汰*/
+    private final LinkedHashMap<Bitmap, Key> mLruBitmaps = new LinkedHashMap<Bitmap, Key>(16, 0.75f, false);
+    /**对象池的字节上限*/
+    private final int mMaxSize;
+    /**对象池当前占用的字节数*/
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSizeInBytes 对象池最多持有的字节数
+     */
+    public BitmapPool(int maxSizeInBytes) {
+        if (maxSizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxSizeInBytes <= 0");
+        }
+        mMaxSize = maxSizeInBytes;
+    }
+
+    /**
+     * 将一个不再使用的Bitmap放入对象池，调用者必须保证该Bitmap已经不再显示，也不在内存缓存中
+     * @param bitmap
+     * @return 如果对象池接收了该Bitmap返回true，否则返回false，此时调用者负责处理该Bitmap
+     */
+    public boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || !OSVersionUtils.hasHoneycomb()) {
+            return false;
+        }
+        final int size = getBitmapSize(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+        final Key key = new Key(bitmap.getConfig(), size);
+        synchronized (this) {
+            if (mLruBitmaps.containsKey(bitmap)) {
+                return true;
+            }
+            TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(key.config);
+            if (sizes == null) {
+                sizes = new TreeMap<Integer, LinkedList<Bitmap>>();
+                mBuckets.put(key.config, sizes);
+            }
+            LinkedList<Bitmap> bucket = sizes.get(key.size);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                sizes.put(key.size, bucket);
+            }
+            bucket.addLast(bitmap);
+            mLruBitmaps.put(bitmap, key);
+            mSize += size;
+            mPutCount++;
+            trimToSize(mMaxSize);
+        }
+        return true;
+    }
+
+    /**
+     * 根据解码参数查找一个可以用于inBitmap的Bitmap，找到后将其从对象池中移除
+     * @param options 已经填充了out*和inSampleSize的解码参数
+     * @return 可复用的Bitmap，没有找到返回null
+     */
+    public Bitmap get(BitmapFactory.Options options) {
+        final int sampleSize = options.inSampleSize <= 0 ? 1 : options.inSampleSize;
+        final boolean kitKat = OSVersionUtils.hasKitKat();
+        if (!kitKat && sampleSize != 1) {
+            // KitKat之前inBitmap不支持缩放解码，设置了会抛出IllegalArgumentException
+            synchronized (this) {
+                mMissCount++;
+            }
+            return null;
+        }
+        // 解码器可能向上取整，按照向上取整的宽高计算需要的字节数
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        final Bitmap.Config config =
+                options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+        final int needed = width * height * getBytesPerPixel(config);
+
+        synchronized (this) {
+            final TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+            if (sizes != null) {
+                // KitKat之前只有宽高完全一致的Bitmap才能用于inBitmap，之后从不小于needed的最小的桶开始查找
+                Integer size = kitKat ? sizes.ceilingKey(needed) : (sizes.containsKey(needed) ? needed : null);
+                while (size != null) {
+                    Bitmap candidate = takeFromBucket(sizes, new Key(config, size), width, height, kitKat);
+                    if (candidate != null) {
+                        mHitCount++;
+                        return candidate;
+                    }
+                    size = kitKat ? sizes.higherKey(size) : null;
+                }
+                if (sizes.isEmpty()) {
+                    mBuckets.remove(config);
+                }
+            }
+            mMissCount++;
+        }
+        return null;
+    }
+
+    /**
+     * 从桶中取出一个可以复用的Bitmap，同时清理已经被回收的Bitmap，调用时持有this
+     */
+    private Bitmap takeFromBucket(TreeMap<Integer, LinkedList<Bitmap>> sizes, Key key,
+                                  int width, int height, boolean kitKat) {
+        final LinkedList<Bitmap> bucket = sizes.get(key.size);
+        Bitmap result = null;
+        Iterator<Bitmap> iterator = bucket.descendingIterator();
+        while (iterator.hasNext()) {
+            Bitmap candidate = iterator.next();
+            if (candidate.isRecycled()) {
+                iterator.remove();
+                removeFromLru(candidate, key);
+                continue;
+            }
+            if (kitKat || (candidate.getWidth() == width && candidate.getHeight() == height)) {
+                iterator.remove();
+                removeFromLru(candidate, key);
+                result = candidate;
+                break;
+            }
+        }
+        if (bucket.isEmpty()) {
+            sizes.remove(key.size);
+        }
+        return result;
+    }
+
+    /**
+     * 淘汰最早放入的Bitmap，直到对象池占用的字节数不超过maxSize。被淘汰的Bitmap可能还在显示，这里不能recycle
+     * @param maxSize
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Bitmap, Key>> iterator = mLruBitmaps.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Map.Entry<Bitmap, Key> eldest = iterator.next();
+            Bitmap bitmap = eldest.getKey();
+            Key key = eldest.getValue();
+            iterator.remove();
+            mSize -= key.size;
+            TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(key.config);
+            LinkedList<Bitmap> bucket = sizes != null ? sizes.get(key.size) : null;
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    sizes.remove(key.size);
+                    if (sizes.isEmpty()) {
+                        mBuckets.remove(key.config);
+                    }
+                }
+            }
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * 清空对象池，池中的Bitmap交给GC回收
+     */
+    public void evictAll() {
+        trimToSize(-1);
+        DebugLog.d(TAG, "Bitmap pool cleared");
+    }
+
+    private void removeFromLru(Bitmap bitmap, Key key) {
+        if (mLruBitmaps.remove(bitmap) != null) {
+            mSize -= key.size;
+        }
+    }
+
+    public synchronized final int size() {
+        return mSize;
+    }
+
+    public synchronized final int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized final int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized final int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized final int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized final int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[maxSize=%d,size=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mMaxSize, mSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getBitmapSize(Bitmap bitmap) {
+        if (OSVersionUtils.hasKitKat()) {
+            // 复用时可以使用的是实际分配的内存，可能比当前宽高需要的更大
+            return bitmap.getAllocationByteCount();
+        }
+        if (OSVersionUtils.hasHoneycombMR1()) {
+            return bitmap.getByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+    /**
+     * 对象池中桶的key
+     */
+    private static final class Key {
+        final Bitmap.Config config;
+        final int size;
+
+        Key(Bitmap.Config config, int size) {
+            this.config = config;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return size == other.size && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * size + (config != null ? config.hashCode() : 0);
+        }
+    }
+}
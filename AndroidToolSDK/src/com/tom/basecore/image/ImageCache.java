@@ -24,27 +24,43 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 
+import com.tom.basecore.thread.ThreadPoolManager;
+import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
 import com.tom.basecore.utlis.AppUtils;
 import com.tom.basecore.utlis.DebugLog;
 import com.tom.basecore.utlis.FileUtils;
 import com.tom.basecore.utlis.OSVersionUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * 图片缓存器
+ * <pre>
+ *     1、缩放到指定尺寸的图片使用{@link #createKey(String, int, int)}生成的key，同一张图片的不同尺寸分别缓存
+ *     2、内存缓存中没有指定尺寸的图片时，可以通过{@link #getScaledBitmapFromMemCache(String, int, int)}
+ *        从内存中更大尺寸的同一张图片缩小得到，不需要重新读取磁盘和解码
+ *     3、图片在后台的编码线程中压缩后写入磁盘缓存，压缩时不持有任何锁，不会阻塞读取磁盘缓存的线程；
+ *        同一个key还在等待写入时不会重复写入，等待写入的图片最多{@link #MAX_PENDING_ENCODES}个
+ * </pre>
  */
 public class ImageCache {
     private static final String TAG = "ImageCache";
     private static final int DISK_CACHE_INDEX = 0;
+    //等待编码写入磁盘的最大图片数，等待期间图片不会被放入对象池复用
+    private static final int MAX_PENDING_ENCODES = 32;
     //磁盘缓存类
     private DiskLruCache mDiskLruCache;
     //内存缓存类
@@ -55,7 +71,16 @@ public class ImageCache {
     private final Object mDiskCacheLock = new Object();
     //标识磁盘缓存是否正在启动
     private boolean mDiskCacheStarting = true;
-    private HashSet<SoftReference<Bitmap>> mReusableBitmaps;
+    //可复用Bitmap的对象池，用于解码时的inBitmap
+    private BitmapPool mBitmapPool;
+    //内存缓存中同一张图片的所有尺寸，key是{@link #createKey(String, int, int)}的base。
+    //图片移出内存缓存和从其他尺寸缩小时都持有此锁，保证缩小过程中原图不会被放入对象池或者回收
+    private final Map<String, Set<String>> mMemoryVariants = new HashMap<String, Set<String>>();
+    //等待编码写入磁盘缓存的图片，按照放入的顺序写入
+    private final LinkedHashMap<String, PendingEncode> mPendingEncodes = new LinkedHashMap<String, PendingEncode>();
+    //后台编码任务是否已经提交，由mPendingEncodes保护
+    private boolean mEncoderScheduled;
+    private final XThreadPoolExecutor mEncodeExecutor = ThreadPoolManager.createSingleThreadPool(1);
 
     /**
      * 根据指定的缓存参数，创建图片缓存
@@ -76,8 +101,8 @@ public class ImageCache {
         if (mCacheParams.memoryCacheEnabled) {
             DebugLog.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             // If we're running on Honeycomb or newer, then
-            if (OSVersionUtils.hasHoneycomb()) {
-                mReusableBitmaps = new HashSet<SoftReference<Bitmap>>();
+            if (OSVersionUtils.hasHoneycomb() && mCacheParams.bitmapPoolSize > 0) {
+                mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize * 1024);
             }
             mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
                 /**
@@ -86,11 +111,14 @@ public class ImageCache {
                 @Override
                 protected void entryRemoved(boolean evicted, String key,
                                             BitmapDrawable oldValue, BitmapDrawable newValue) {
-                    if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
-                        ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-                    } else {
-                        if (OSVersionUtils.hasHoneycomb()) {
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+                    synchronized (mMemoryVariants) {
+                        if (newValue == null) {
+                            removeVariant(key);
+                        }
+                        //图片可能还显示在ImageView上，只有RecyclingBitmapDrawable在显示和缓存的引用计数都归零后才会
+                        //放入对象池，其他的BitmapDrawable不知道是否还在显示，交给GC回收
+                        if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
+                            ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
                         }
                     }
                 }
@@ -136,13 +164,25 @@ public class ImageCache {
     }
 
     /**
-     * 添加图片到内存缓存和磁盘缓存
+     * 添加图片到内存缓存和磁盘缓存，使用配置的压缩格式
      * @param data
      *          图片存储唯一标识符
      * @param value
      *          需要存储的BitmapDrawable
      */
     public void addBitmapToCache(String data, BitmapDrawable value) {
+        addBitmapToMemCache(data, value);
+        addBitmapToDiskCache(data, value, null);
+    }
+
+    /**
+     * 添加图片到内存缓存
+     * @param data
+     *          图片存储唯一标识符
+     * @param value
+     *          需要存储的BitmapDrawable
+     */
+    public void addBitmapToMemCache(String data, BitmapDrawable value) {
         if (data == null || value == null) {
             return;
         }
@@ -152,40 +192,185 @@ public class ImageCache {
             if (RecyclingBitmapDrawable.class.isInstance(value)) {
                 ((RecyclingBitmapDrawable) value).setIsCached(true);
             }
+            synchronized (mMemoryVariants) {
+                addVariant(data);
+            }
             mMemoryCache.put(data, value);
         }
+    }
 
+    /**
+     * 把图片放入编码队列后立即返回，由后台线程压缩后写入磁盘缓存。data还在等待写入或者队列已满时直接返回
+     * @param data
+     *          图片存储唯一标识符
+     * @param value
+     *          需要存储的BitmapDrawable
+     * @param format
+     *          压缩格式，为null时使用{@link ImageCacheBuilder#compressFormat}
+     */
+    public void addBitmapToDiskCache(String data, BitmapDrawable value, CompressFormat format) {
+        if (data == null || value == null || value.getBitmap() == null || !mCacheParams.diskCacheEnabled) {
+            return;
+        }
+        final PendingEncode pending = new PendingEncode(value,
+                format != null ? format : mCacheParams.compressFormat);
+        synchronized (mPendingEncodes) {
+            if (mPendingEncodes.containsKey(data)) {
+                return;
+            }
+            if (mPendingEncodes.size() >= MAX_PENDING_ENCODES) {
+                DebugLog.d(TAG, "encode queue is full, drop %s", data);
+                return;
+            }
+            pending.pin();
+            mPendingEncodes.put(data, pending);
+            if (!mEncoderScheduled) {
+                mEncoderScheduled = true;
+                mEncodeExecutor.submit(mEncodeTask);
+            }
+        }
+    }
+
+    private final XRunnable<Void> mEncodeTask = new XRunnable<Void>() {
+        @Override
+        public void run() {
+            while (encodeNext(true)) {
+            }
+        }
+    };
+
+    /**
+     * 取出最早放入的图片编码并写入磁盘缓存
+     * @param fromEncoder 是否在后台编码线程中调用，队列为空时需要重置mEncoderScheduled
+     * @return 队列为空时返回false
+     */
+    private boolean encodeNext(boolean fromEncoder) {
+        final String key;
+        final PendingEncode pending;
+        synchronized (mPendingEncodes) {
+            final Iterator<Map.Entry<String, PendingEncode>> iterator = mPendingEncodes.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                if (fromEncoder) {
+                    mEncoderScheduled = false;
+                }
+                return false;
+            }
+            final Map.Entry<String, PendingEncode> first = iterator.next();
+            iterator.remove();
+            key = first.getKey();
+            pending = first.getValue();
+        }
+        try {
+            writeToDisk(key, pending);
+        } finally {
+            pending.unpin();
+        }
+        return true;
+    }
+
+    /**
+     * 压缩图片并写入磁盘缓存，只在读取Snapshot和获取{@link DiskLruCache.Editor}时持有mDiskCacheLock
+     */
+    private void writeToDisk(String data, PendingEncode pending) {
+        final String key = FileUtils.hashKeyForDisk(data);
         synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = FileUtils.hashKeyForDisk(data);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
-                    }
-                } catch (final IOException e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {
-                    }
+            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+                return;
+            }
+            try {
+                final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                if (snapshot != null) {
+                    snapshot.close();
+                    return;
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+                return;
+            }
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Bitmap bitmap = pending.drawable.getBitmap();
+        if (bitmap == null || bitmap.isRecycled()
+                || !bitmap.compress(pending.format, mCacheParams.compressQuality, bytes)) {
+            return;
+        }
+
+        OutputStream out = null;
+        try {
+            final DiskLruCache.Editor editor;
+            synchronized (mDiskCacheLock) {
+                if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+                    return;
+                }
+                editor = mDiskLruCache.edit(key);
+            }
+            if (editor != null) {
+                out = editor.newOutputStream(DISK_CACHE_INDEX);
+                bytes.writeTo(out);
+                out.close();
+                out = null;
+                editor.commit();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "addBitmapToCache - " + e);
+        } catch (IllegalStateException e) {
+            // 磁盘缓存在写入过程中被关闭或者清空，编辑已经被终止
+            Log.e(TAG, "addBitmapToCache - " + e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 在当前线程中写入所有等待编码的图片，flush和close之前调用
+     */
+    private void drainPendingEncodes() {
+        while (encodeNext(false)) {
+        }
+    }
+
+    /**
+     * 丢弃所有等待编码的图片
+     */
+    private void discardPendingEncodes() {
+        synchronized (mPendingEncodes) {
+            for (PendingEncode pending : mPendingEncodes.values()) {
+                pending.unpin();
+            }
+            mPendingEncodes.clear();
+        }
+    }
+
+    /**
+     * 等待编码写入磁盘的图片
+     */
+    private final class PendingEncode {
+        final BitmapDrawable drawable;
+        final CompressFormat format;
+
+        PendingEncode(BitmapDrawable drawable, CompressFormat format) {
+            this.drawable = drawable;
+            this.format = format;
+        }
+
+        /**
+         * 编码完成前不允许图片被回收或者放入对象池
+         */
+        void pin() {
+            if (RecyclingBitmapDrawable.class.isInstance(drawable)) {
+                ((RecyclingBitmapDrawable) drawable).setIsCached(true);
+            }
+        }
+
+        void unpin() {
+            if (RecyclingBitmapDrawable.class.isInstance(drawable)) {
+                ((RecyclingBitmapDrawable) drawable).setIsCached(false);
             }
         }
     }
@@ -212,6 +397,128 @@ public class ImageCache {
         return memValue;
     }
 
+    /**
+     * 生成缩放到指定尺寸的图片的缓存key，内存缓存和磁盘缓存都使用此key
+     * @param base
+     *          图片的唯一标识符，图片除了缩放还有其他处理时需要包含处理的标识
+     * @param width
+     *          目标宽度，小于等于0表示不缩放
+     * @param height
+     *          目标高度，小于等于0表示不缩放
+     * @return
+     */
+    public static String createKey(String base, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return base;
+        }
+        return base + "@" + width + "x" + height;
+    }
+
+    /**
+     * 从内存缓存中同一张图片的更大尺寸缩小得到指定尺寸的图片，不会放入缓存
+     * <pre>
+     *     1、只使用目标尺寸不小于reqWidth*reqHeight的缓存，其中尺寸最小的一个
+     *     2、缩小后的图片宽高都不小于目标尺寸，和按照目标尺寸解码的图片一样清晰
+     * </pre>
+     * @param base
+     *          传给{@link #createKey(String, int, int)}的base
+     * @param reqWidth
+     * @param reqHeight
+     * @return
+     *          返回新的Bitmap，内存缓存中没有可用的尺寸时返回null
+     */
+    public Bitmap getScaledBitmapFromMemCache(String base, int reqWidth, int reqHeight) {
+        if (mMemoryCache == null || reqWidth <= 0 || reqHeight <= 0) {
+            return null;
+        }
+        synchronized (mMemoryVariants) {
+            final Set<String> keys = mMemoryVariants.get(base);
+            if (keys == null) {
+                return null;
+            }
+            String bestKey = null;
+            long bestArea = Long.MAX_VALUE;
+            for (String key : keys) {
+                final int[] size = parseSize(key);
+                if (size == null || size[0] < reqWidth || size[1] < reqHeight) {
+                    continue;
+                }
+                final long area = (long) size[0] * size[1];
+                if (area < bestArea) {
+                    bestArea = area;
+                    bestKey = key;
+                }
+            }
+            if (bestKey == null) {
+                return null;
+            }
+            final BitmapDrawable variant = mMemoryCache.get(bestKey);
+            final Bitmap source = variant != null ? variant.getBitmap() : null;
+            if (source == null || source.isRecycled()) {
+                return null;
+            }
+            final float scale = Math.max((float) reqWidth / source.getWidth(),
+                    (float) reqHeight / source.getHeight());
+            DebugLog.d(TAG, "Memory cache scale " + bestKey + " to " + reqWidth + "x" + reqHeight);
+            if (scale >= 1) {
+                //原图已经不大于目标尺寸，复制一份，两个缓存不能共用一个Bitmap
+                return source.copy(source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888, false);
+            }
+            return Bitmap.createScaledBitmap(source, Math.max(1, Math.round(source.getWidth() * scale)),
+                    Math.max(1, Math.round(source.getHeight() * scale)), true);
+        }
+    }
+
+    /**
+     * 记录内存缓存中的一个尺寸，调用时持有mMemoryVariants
+     */
+    private void addVariant(String key) {
+        final int at = key.lastIndexOf('@');
+        if (at <= 0 || parseSize(key) == null) {
+            return;
+        }
+        final String base = key.substring(0, at);
+        Set<String> keys = mMemoryVariants.get(base);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            mMemoryVariants.put(base, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * 移除内存缓存中的一个尺寸，调用时持有mMemoryVariants
+     */
+    private void removeVariant(String key) {
+        final int at = key.lastIndexOf('@');
+        if (at <= 0) {
+            return;
+        }
+        final String base = key.substring(0, at);
+        final Set<String> keys = mMemoryVariants.get(base);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            mMemoryVariants.remove(base);
+        }
+    }
+
+    /**
+     * 解析{@link #createKey(String, int, int)}生成的key中的尺寸
+     * @return {宽, 高}，不是带尺寸的key时返回null
+     */
+    private static int[] parseSize(String key) {
+        final int at = key.lastIndexOf('@');
+        final int x = key.lastIndexOf('x');
+        if (at <= 0 || x <= at + 1 || x == key.length() - 1) {
+            return null;
+        }
+        try {
+            return new int[] {Integer.parseInt(key.substring(at + 1, x)),
+                    Integer.parseInt(key.substring(x + 1))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * 从磁盘缓存中拿图片
      *
@@ -265,42 +572,32 @@ public class ImageCache {
      * @return Bitmap that case be used for inBitmap
      */
     protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-            Bitmap item;
-
-            while (iterator.hasNext()) {
-                item = iterator.next().get();
-
-                if (null != item && item.isMutable()) {
-                    // Check to see it the item can be used for inBitmap
-                    if (canUseForInBitmap(item, options)) {
-                        bitmap = item;
-
-                        // Remove from reusable set so it can't be used again
-                        iterator.remove();
-                        break;
-                    }
-                } else {
-                    // Remove from the set if the reference has been cleared.
-                    iterator.remove();
-                }
-            }
+        if (mBitmapPool == null) {
+            return null;
         }
+        return mBitmapPool.get(options);
+    }
 
-        return bitmap;
+    /**
+     * 拿到可复用Bitmap的对象池
+     * @return 如果没有启用对象池则返回null
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
     }
 
     /**
      * 清空内存缓存和磁盘缓存，由于此方法包含磁盘访问操作，所以不要在UI线程中调用
      */
     public void clearCache() {
+        discardPendingEncodes();
         if (mMemoryCache != null) {
             mMemoryCache.evictAll();
                 DebugLog.d(TAG, "Memory cache cleared");
         }
+        if (mBitmapPool != null) {
+            mBitmapPool.evictAll();
+        }
 
         synchronized (mDiskCacheLock) {
             mDiskCacheStarting = true;
@@ -321,6 +618,7 @@ public class ImageCache {
      * 将内存中没有写入磁盘的数据写入磁盘，此方法包含访问磁盘操作，所以不要在UI线程中调用
      */
     public void flush() {
+        drainPendingEncodes();
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
                 try {
@@ -337,6 +635,7 @@ public class ImageCache {
         关闭磁盘操作，由于包含访问磁盘操作，所以不要在UI线程中调用此方法
      */
     public void close() {
+        drainPendingEncodes();
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
                 try {
@@ -361,6 +660,7 @@ public class ImageCache {
      * 5、是否启动内存缓存
      * 6、是否启用磁盘缓存
      * 7、是否在创建缓存时初始化磁盘缓存
+     * 8、可复用Bitmap对象池的大小
      */
     public static class ImageCacheBuilder {
         //默认的内存缓存大小
@@ -377,6 +677,8 @@ public class ImageCache {
         private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
         //磁盘缓存是否在创建就初始化
         private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+        //默认的Bitmap对象池大小
+        private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 4; // 4MB
 
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
@@ -386,6 +688,7 @@ public class ImageCache {
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
 
         public ImageCache build() {
             return new ImageCache(this);
@@ -435,6 +738,15 @@ public class ImageCache {
             return this;
         }
 
+        /**
+         * 设置可复用Bitmap对象池的大小，单位KB，设置为0表示不使用对象池
+         * @param bitmapPoolSize
+         */
+        public ImageCacheBuilder setBitmapPoolSize(int bitmapPoolSize) {
+            this.bitmapPoolSize = bitmapPoolSize;
+            return this;
+        }
+
         /**
          * @param context
          *          上下文环境
@@ -447,20 +759,6 @@ public class ImageCache {
 
     }
 
-    /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
-     */
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-
-        return candidate.getWidth() == width && candidate.getHeight() == height;
-    }
-
     /**
      * 计算图片大小
      * @param value
@@ -36,6 +36,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * 主要用于从网络获取图片，使用方法如下：
@@ -62,6 +65,9 @@ public class ImageFetcher extends ImageResizer {
     private boolean mHttpDiskCacheStarting = true;
     private final Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
+    /**正在进行的下载，key是http缓存中的key*/
+    private final Map<String, InFlightDownload> mDownloadsInFlight =
+            new HashMap<String, InFlightDownload>();
 
     /**
      * Initialize providing a target image width and height for the processing images.
@@ -191,6 +197,11 @@ public class ImageFetcher extends ImageResizer {
     /**
      * The main process method, which will be called by the ImageWorker in the AsyncTask background
      * thread.
+     * <pre>
+     *     1、{@link #mHttpDiskCacheLock}只在读取Snapshot和获取{@link DiskLruCache.Editor}时持有，
+     *     下载过程不持有锁，所以不同url的图片可以并行下载
+     *     2、相同url的并发请求只会触发一次下载，其余线程等待这次下载完成后直接读取http缓存
+     * </pre>
      *
      * @param data The data to load the bitmap, in this case, a regular http URL
      * @return The downloaded and resized bitmap
@@ -203,49 +214,30 @@ public class ImageFetcher extends ImageResizer {
         final String key = FileUtils.hashKeyForDisk(data);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
-        synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
+        try {
+            DiskLruCache.Snapshot snapshot = getHttpCacheSnapshot(key);
+            if (snapshot == null) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "processBitmap, not found in http cache, downloading...");
+                }
+                if (downloadToHttpCache(data, key)) {
+                    snapshot = getHttpCacheSnapshot(key);
+                }
             }
-
-            if (mHttpDiskCache != null) {
+            if (snapshot != null) {
+                fileInputStream =
+                        (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                fileDescriptor = fileInputStream.getFD();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "processBitmap - " + e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "processBitmap - " + e);
+        } finally {
+            if (fileDescriptor == null && fileInputStream != null) {
                 try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (downloadUrlToStream(data,
-                                    editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
-                        }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if (snapshot != null) {
-                        fileInputStream =
-                                (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {}
-                    }
-                }
+                    fileInputStream.close();
+                } catch (IOException e) {}
             }
         }
 
@@ -262,11 +254,129 @@ public class ImageFetcher extends ImageResizer {
         return bitmap;
     }
 
+    /**
+     * 等待http缓存初始化完成后，读取指定key的Snapshot
+     * @param key
+     * @return 缓存不存在或者http缓存不可用时返回null
+     * @throws IOException
+     */
+    private DiskLruCache.Snapshot getHttpCacheSnapshot(String key) throws IOException {
+        synchronized (mHttpDiskCacheLock) {
+            // Wait for disk cache to initialize
+            while (mHttpDiskCacheStarting) {
+                try {
+                    mHttpDiskCacheLock.wait();
+                } catch (InterruptedException e) {}
+            }
+            if (mHttpDiskCache == null || mHttpDiskCache.isClosed()) {
+                return null;
+            }
+            return mHttpDiskCache.get(key);
+        }
+    }
+
+    /**
+     * 将url对应的图片下载到http缓存中，相同key的下载同一时间只会有一个在进行，
+     * 其余调用者等待正在进行的下载完成并共享它的结果
+     * @param data
+     *          图片url
+     * @param key
+     *          http缓存中的key
+     * @return 下载并提交成功返回true
+     */
+    private boolean downloadToHttpCache(String data, String key) {
+        InFlightDownload download;
+        InFlightDownload existing;
+        synchronized (mDownloadsInFlight) {
+            existing = mDownloadsInFlight.get(key);
+            download = existing;
+            if (existing == null) {
+                download = new InFlightDownload();
+                mDownloadsInFlight.put(key, download);
+            }
+        }
+        if (existing != null) {
+            //等待时不能持有mDownloadsInFlight，发起下载的线程结束时需要它来移除key
+            DebugLog.d(TAG, "downloadToHttpCache - join in-flight download for " + data);
+            return existing.await();
+        }
+
+        boolean success = false;
+        try {
+            DiskLruCache.Editor editor;
+            synchronized (mHttpDiskCacheLock) {
+                if (mHttpDiskCache == null || mHttpDiskCache.isClosed()) {
+                    return false;
+                }
+                editor = mHttpDiskCache.edit(key);
+            }
+            if (editor != null) {
+                if (downloadUrlToStream(data, editor.newOutputStream(DISK_CACHE_INDEX))) {
+                    editor.commit();
+                    success = true;
+                } else {
+                    editor.abort();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "downloadToHttpCache - " + e);
+        } catch (IllegalStateException e) {
+            // http缓存在下载过程中被关闭或者清空，编辑已经被终止
+            Log.e(TAG, "downloadToHttpCache - " + e);
+        } finally {
+            synchronized (mDownloadsInFlight) {
+                mDownloadsInFlight.remove(key);
+            }
+            download.finish(success);
+        }
+        return success;
+    }
+
     @Override
     protected Bitmap processBitmap(Object data) {
         return processBitmap(String.valueOf(data));
     }
 
+    @Override
+    protected boolean needsFetch(Object data) {
+        return true;
+    }
+
+    /**
+     * 解码后的图片不大于目标尺寸时，原图本身就很小，从http缓存中重新解码和读取磁盘缓存的开销相当，不需要再压缩一份
+     */
+    @Override
+    protected boolean shouldWriteToDiskCache(Object data, Bitmap bitmap) {
+        final String transformation = getTransformationKey();
+        if (transformation != null && transformation.length() > 0) {
+            return true;
+        }
+        return bitmap.getWidth() > mImageWidth || bitmap.getHeight() > mImageHeight;
+    }
+
+    /**
+     * 把图片下载到http缓存，已经在http缓存中时直接返回
+     */
+    @Override
+    protected boolean fetchToDisk(Object data) {
+        final String url = String.valueOf(data);
+        final String key = FileUtils.hashKeyForDisk(url);
+        try {
+            DiskLruCache.Snapshot snapshot = getHttpCacheSnapshot(key);
+            if (snapshot != null) {
+                snapshot.close();
+                return true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "fetchToDisk - " + e);
+            return false;
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "fetchToDisk - downloading " + url);
+        }
+        return downloadToHttpCache(url, key);
+    }
+
     /**
      * Download a bitmap from a URL and write the content to an output stream.
      *
@@ -288,9 +398,10 @@ public class ImageFetcher extends ImageResizer {
             in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
             out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
 
-            int b=-1;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
             }
             return true;
         } catch (final IOException e) {
@@ -310,4 +421,27 @@ public class ImageFetcher extends ImageResizer {
         }
         return false;
     }
+
+    /**
+     * 一次正在进行的下载，相同key的其他请求通过{@link #await()}等待下载结果
+     */
+    private static class InFlightDownload {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mSuccess;
+
+        void finish(boolean success) {
+            mSuccess = success;
+            mDone.countDown();
+        }
+
+        boolean await() {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return mSuccess;
+        }
+    }
 }
@@ -0,0 +1,369 @@
+package com.tom.basecore.image;
+
+import com.tom.basecore.thread.ThreadPoolManager;
+import com.tom.basecore.thread.XRunnable;
+import com.tom.basecore.thread.XThreadPoolExecutor;
+import com.tom.basecore.utlis.AppUtils;
+import com.tom.basecore.utlis.DebugLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Description:所有{@link ImageWorker}共享的图片加载流水线
+ * <pre>
+ *     1、加载过程分为几个阶段，每个阶段有独立的、线程数固定的线程池：
+ *        {@link #STAGE_CACHE}：初始化、清空、关闭缓存，1个线程，按照提交的顺序执行
+ *        {@link #STAGE_DISK}：读取磁盘缓存，{@link #DISK_THREADS}个线程
+ *        {@link #STAGE_NETWORK}：从网络下载，{@link #NETWORK_THREADS}个线程
+ *        {@link #STAGE_DECODE}：解码和缩放，按照处理器核数决定线程数
+ *        无论同时加载多少张图片，线程总数都不会超过各阶段线程数之和，即1+2+4+min(核数-1, 4)，
+ *        最多{@link #MAX_THREADS}个
+ *     2、每个阶段自己保存等待的任务，有空闲线程时才提交到线程池：优先级高的先执行，
+ *        优先级相同时最后创建的任务先执行(LIFO)，快速滑动时最新绑定的ImageView先显示
+ *     3、任务在执行前会检查{@link Job#isStale()}，ImageView已经绑定到其他图片的任务直接丢弃，不占用线程
+ *     4、每个阶段最多等待{@link #MAX_PENDING}个任务，超过时先丢弃过期的任务，再丢弃优先级不高于
+ *        {@link ImageWorker#PRIORITY_INVISIBLE}的任务中最后执行的一个；可见ImageView的任务不会被丢弃，
+ *        此时队列可以暂时超过上限。{@link #STAGE_CACHE}的任务不能丢弃，不受此限制
+ *     5、{@link Job#isPaused()}返回true的任务留在队列中不提交，不占用线程，恢复后调用{@link #dispatchAll()}，
+ *        按照优先级和LIFO的顺序执行，期间已经过期的任务直接丢弃
+ * </pre>
+ * User： yuanzeyao.
+ * Date： 2015-09-12 15:10
+ */
+class ImagePipeline {
+    private static final String TAG = "ImagePipeline";
+
+    static final int STAGE_CACHE = 0;
+    static final int STAGE_DISK = 1;
+    static final int STAGE_NETWORK = 2;
+    static final int STAGE_DECODE = 3;
+
+    /** 读取磁盘缓存的线程数 */
+    static final int DISK_THREADS = 2;
+    /** 下载的线程数，下载主要在等待网络，不受处理器核数限制 */
+    static final int NETWORK_THREADS = 4;
+    /** 解码线程数的上限 */
+    static final int MAX_DECODE_THREADS = 4;
+    /** 所有阶段的线程总数的上限 */
+    static final int MAX_THREADS = 1 + DISK_THREADS + NETWORK_THREADS + MAX_DECODE_THREADS;
+    /** 每个阶段最多等待的任务数 */
+    static final int MAX_PENDING = 64;
+    /** 线程空闲多少秒后退出 */
+    private static final int KEEP_ALIVE = 30;
+
+    private final Stage[] mStages;
+
+    private static class SingtonHolder {
+        private static ImagePipeline mInstance = new ImagePipeline();
+    }
+
+    static ImagePipeline getInstance() {
+        return SingtonHolder.mInstance;
+    }
+
+    private ImagePipeline() {
+        //给主线程留一个核
+        int decodeThreads = Math.max(1, Math.min(AppUtils.getNumCores() - 1, MAX_DECODE_THREADS));
+        mStages = new Stage[] {
+                //缓存的初始化、刷新、关闭必须按照提交的顺序执行
+                new Stage("ImageCache", STAGE_CACHE, 1, false, false),
+                new Stage("ImageDisk", STAGE_DISK, DISK_THREADS, true, true),
+                new Stage("ImageNetwork", STAGE_NETWORK, NETWORK_THREADS, true, true),
+                new Stage("ImageDecode", STAGE_DECODE, decodeThreads, true, true)
+        };
+    }
+
+    /**
+     * 把任务提交到指定的阶段，在该阶段的线程中调用{@link Job#run(int)}
+     * @param stage {@link #STAGE_CACHE}、{@link #STAGE_DISK}、{@link #STAGE_NETWORK}或{@link #STAGE_DECODE}
+     * @param job
+     */
+    void submit(int stage, Job job) {
+        mStages[stage].submit(job);
+    }
+
+    /**
+     * 重新检查所有阶段是否有可以执行的任务，暂停的任务恢复后调用
+     */
+    void dispatchAll() {
+        for (Stage stage : mStages) {
+            stage.dispatch();
+        }
+    }
+
+    /**
+     * 所有阶段正在执行的任务数
+     */
+    int runningCount() {
+        int count = 0;
+        for (Stage stage : mStages) {
+            count += stage.runningCount();
+        }
+        return count;
+    }
+
+    /**
+     * 所有阶段等待的任务数
+     */
+    int pendingCount() {
+        int count = 0;
+        for (Stage stage : mStages) {
+            count += stage.pendingCount();
+        }
+        return count;
+    }
+
+    /**
+     * 流水线中的任务，一个任务可以依次提交到多个阶段
+     */
+    abstract static class Job {
+        private static final AtomicLong sSequence = new AtomicLong();
+        /** 创建顺序，越大越新 */
+        private final long mSequence = sSequence.incrementAndGet();
+        private volatile int mPriority = Thread.NORM_PRIORITY;
+        /** 是否在某个阶段等待 */
+        private volatile boolean mPending;
+
+        /**
+         * 修改任务的优先级，等待中的任务下一次调度时生效
+         * @param priority 值越大越先执行
+         * @return 任务正在等待返回true
+         */
+        boolean setPriority(int priority) {
+            mPriority = priority;
+            return mPending;
+        }
+
+        int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * 任务是否已经不需要执行，例如已经取消或者ImageView已经绑定到其他图片
+         */
+        abstract boolean isStale();
+
+        /**
+         * 任务是否暂停，暂停的任务留在队列中，直到恢复后再次调度
+         */
+        boolean isPaused() {
+            return false;
+        }
+
+        /**
+         * 在stage对应的线程中执行
+         * @param stage
+         */
+        abstract void run(int stage);
+
+        /**
+         * 队列已满时任务是否可以丢弃，默认优先级不高于{@link ImageWorker#PRIORITY_INVISIBLE}的任务可以丢弃
+         */
+        boolean isDroppable() {
+            return mPriority <= ImageWorker.PRIORITY_INVISIBLE;
+        }
+
+        /**
+         * 任务没有执行就被丢弃时调用，在提交任务或者调度的线程中执行
+         */
+        void onDropped() {
+        }
+
+        /**
+         * this是否比other更应该先执行：优先级高的先执行，优先级相同时lifo为true新的先执行，否则旧的先执行
+         */
+        boolean runsBefore(Job other, boolean lifo) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority;
+            }
+            return lifo ? mSequence > other.mSequence : mSequence < other.mSequence;
+        }
+    }
+
+    /**
+     * 流水线的一个阶段
+     */
+    private static final class Stage {
+        private final String mName;
+        private final int mIndex;
+        private final int mMaxRunning;
+        /** 优先级相同时是否后提交的先执行 */
+        private final boolean mLifo;
+        /** 是否限制等待的任务数，见{@link #MAX_PENDING} */
+        private final boolean mBounded;
+        private final XThreadPoolExecutor mExecutor;
+        private final List<Job> mPending = new ArrayList<Job>();
+        private int mRunning;
+
+        Stage(String name, int index, int threads, boolean lifo, boolean bounded) {
+            this.mName = name;
+            this.mIndex = index;
+            this.mMaxRunning = threads;
+            this.mLifo = lifo;
+            this.mBounded = bounded;
+            this.mExecutor = ThreadPoolManager.createBoundedThreadPool(name, threads, threads, KEEP_ALIVE);
+        }
+
+        void submit(Job job) {
+            List<Job> dropped = new ArrayList<Job>();
+            synchronized (this) {
+                job.mPending = true;
+                mPending.add(job);
+                if (mBounded && mPending.size() > MAX_PENDING) {
+                    //暂停期间队列中可能积累了很多过期的任务，先丢弃它们
+                    removeStale(dropped);
+                    if (mPending.size() > MAX_PENDING) {
+                        Job worst = removeLastDroppable();
+                        if (worst != null) {
+                            DebugLog.d(TAG, "%s queue is full, drop a task", mName);
+                            dropped.add(worst);
+                        } else {
+                            DebugLog.d(TAG, "%s queue is full of visible tasks, size:%d", mName, mPending.size());
+                        }
+                    }
+                }
+            }
+            for (Job stale : dropped) {
+                stale.onDropped();
+            }
+            dispatch();
+        }
+
+        /**
+         * 有空闲线程时提交等待的任务，丢弃已经不需要执行的任务
+         */
+        void dispatch() {
+            List<Job> stale = new ArrayList<Job>();
+            try {
+                while (true) {
+                    Job next;
+                    synchronized (this) {
+                        if (mRunning >= mMaxRunning) {
+                            return;
+                        }
+                        next = pollFirst(stale);
+                        if (next == null) {
+                            return;
+                        }
+                        mRunning++;
+                    }
+                    if (!execute(next)) {
+                        return;
+                    }
+                }
+            } finally {
+                for (Job job : stale) {
+                    job.onDropped();
+                }
+            }
+        }
+
+        private boolean execute(final Job job) {
+            XRunnable<Void> runnable = new XRunnable<Void>() {
+                @Override
+                public void run() {
+                    try {
+                        if (job.isStale()) {
+                            job.onDropped();
+                        } else {
+                            job.run(mIndex);
+                        }
+                    } catch (RuntimeException e) {
+                        DebugLog.e(TAG, "%s task failed:%s", mName, e.toString());
+                    } finally {
+                        synchronized (Stage.this) {
+                            mRunning--;
+                        }
+                        dispatch();
+                    }
+                }
+            };
+            runnable.setPriority(job.getPriority());
+            try {
+                mExecutor.submit(runnable);
+                return true;
+            } catch (RejectedExecutionException e) {
+                DebugLog.e(TAG, "%s rejected task:%s", mName, e.toString());
+                synchronized (this) {
+                    mRunning--;
+                }
+                job.onDropped();
+                return false;
+            }
+        }
+
+        /**
+         * 取出最先执行的任务，跳过暂停的任务，顺便把不需要执行的任务移到stale中
+         */
+        private Job pollFirst(List<Job> stale) {
+            Job best = null;
+            int bestIndex = -1;
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                Job job = mPending.get(i);
+                if (job.isStale()) {
+                    mPending.remove(i);
+                    job.mPending = false;
+                    stale.add(job);
+                    if (bestIndex > i) {
+                        bestIndex--;
+                    }
+                    continue;
+                }
+                if (job.isPaused()) {
+                    continue;
+                }
+                if (best == null || job.runsBefore(best, mLifo)) {
+                    best = job;
+                    bestIndex = i;
+                }
+            }
+            if (best != null) {
+                mPending.remove(bestIndex);
+                best.mPending = false;
+            }
+            return best;
+        }
+
+        private void removeStale(List<Job> stale) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                Job job = mPending.get(i);
+                if (job.isStale()) {
+                    mPending.remove(i);
+                    job.mPending = false;
+                    stale.add(job);
+                }
+            }
+        }
+
+        /**
+         * 移除可以丢弃的任务中最后执行的一个
+         * @return 没有可以丢弃的任务时返回null
+         */
+        private Job removeLastDroppable() {
+            int worstIndex = -1;
+            for (int i = 0; i < mPending.size(); i++) {
+                Job job = mPending.get(i);
+                if (job.isDroppable() && (worstIndex < 0 || mPending.get(worstIndex).runsBefore(job, mLifo))) {
+                    worstIndex = i;
+                }
+            }
+            if (worstIndex < 0) {
+                return null;
+            }
+            Job worst = mPending.remove(worstIndex);
+            worst.mPending = false;
+            return worst;
+        }
+
+        synchronized int runningCount() {
+            return mRunning;
+        }
+
+        synchronized int pendingCount() {
+            return mPending.size();
+        }
+    }
+}
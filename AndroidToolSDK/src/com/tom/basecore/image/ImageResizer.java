@@ -101,6 +101,16 @@ public class ImageResizer extends ImageWorker {
         return processBitmap(Integer.parseInt(String.valueOf(data)));
     }
 
+    @Override
+    protected int getTargetWidth() {
+        return mImageWidth;
+    }
+
+    @Override
+    protected int getTargetHeight() {
+        return mImageHeight;
+    }
+
     /**
      * Decode and sample down a bitmap from resources to the requested width and height.
      *
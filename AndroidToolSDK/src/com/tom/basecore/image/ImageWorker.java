@@ -24,16 +24,23 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.ImageView;
 
 import com.tom.basecore.BuildConfig;
-import com.tom.basecore.thread.BaseAsyncTask;
-import com.tom.basecore.thread.ThreadPoolManager;
-import com.tom.basecore.thread.XThreadPoolExecutor;
 import com.tom.basecore.utlis.OSVersionUtils;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -43,13 +50,27 @@ import java.lang.ref.WeakReference;
 public abstract class ImageWorker {
     private static final String TAG = "ImageWorker";
     private static final int FADE_IN_TIME = 200;
-    private XThreadPoolExecutor mExecutor= ThreadPoolManager.createCacheThreadPool();
+    //可见ImageView对应的加载任务的优先级
+    public static final int PRIORITY_VISIBLE = Thread.MAX_PRIORITY;
+    //不可见ImageView对应的加载任务的优先级
+    public static final int PRIORITY_INVISIBLE = Thread.MIN_PRIORITY;
+    //预取任务的优先级，低于所有显示图片的任务，队列满时最先被丢弃
+    public static final int PRIORITY_PREFETCH = Thread.MIN_PRIORITY - 1;
+    //排队和执行中的预取任务的最大数量
+    private static final int MAX_PREFETCH_TASKS = 8;
+    //排队和执行中的预取任务的data
+    private final Set<String> mPrefetching = new HashSet<String>();
+    //所有ImageWorker共享的加载流水线，任务按照优先级排序，见{@link #setWorkVisible(ImageView, boolean)}
+    private final ImagePipeline mPipeline = ImagePipeline.getInstance();
+    //正在加载的图片，key是{@link #getRequestKey(Object)}，多个ImageView显示同一张图片时共享一次加载
+    private final Map<String, LoadJob> mInFlightLoads = new HashMap<String, LoadJob>();
+    //加载结果在主线程中显示
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
     private ImageCache mImageCache;
     private Bitmap mLoadingBitmap;
     private boolean mFadeInBitmap = true;
     private boolean mExitTasksEarly = false;
-    protected boolean mPauseWork = false;
-    private final Object mPauseWorkLock = new Object();
+    protected volatile boolean mPauseWork = false;
     protected Resources mResources;
     private static final int MESSAGE_CLEAR = 0;
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
@@ -63,7 +84,7 @@ public abstract class ImageWorker {
     /**
      *加载一个有data指定的图片到ImageView,通过{@link ImageWorker#processBitmap(Object)}去定义具体的处理逻辑
      * 可以通过{@link ImageWorker#addImageCache(ImageCache)}添加内存缓存和磁盘缓存，如果指定的图片在缓存中
-     * 发现，那么直接通过指定的imageView显示，否则通过{@link BaseAsyncTask}创建一个异步任务去加载图片
+     * 发现，那么直接通过指定的imageView显示，否则创建一个加载任务交给{@link ImagePipeline}去加载图片
      * @param data
      *          需要下载图片的url
      * @param imageView
@@ -87,21 +108,170 @@ public abstract class ImageWorker {
         BitmapDrawable value = null;
 
         if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            value = mImageCache.getBitmapFromMemCache(getRequestKey(data));
         }
 
         if (value != null) {
             // Bitmap found in memory cache
             imageView.setImageDrawable(value);
         } else if (cancelPotentialWork(data, imageView)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
+            final BitmapWorkerTask task = new BitmapWorkerTask(data, imageView);
             final AsyncDrawable asyncDrawable =
                     new AsyncDrawable(mResources, mDefaultBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
-            task.executeOnExecutor(mExecutor, data);
+            attachToLoad(task);
         }
     }
 
+    /**
+     * 把task加入相同图片正在进行的加载，没有时创建新的加载并提交到{@link ImagePipeline}
+     * @param task
+     */
+    private void attachToLoad(BitmapWorkerTask task) {
+        final String key = getRequestKey(task.data);
+        LoadJob load;
+        boolean created = false;
+        synchronized (mInFlightLoads) {
+            load = mInFlightLoads.get(key);
+            if (load == null || !load.addListener(task)) {
+                load = new LoadJob(key, getBaseKey(task.data), task.data);
+                load.addListener(task);
+                mInFlightLoads.put(key, load);
+                created = true;
+            }
+        }
+        if (created) {
+            load.updatePriority();
+            mPipeline.submit(ImagePipeline.STAGE_DISK, load);
+        } else {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "attachToLoad - join in-flight load for " + task.data);
+            }
+            load.updatePriority();
+        }
+    }
+
+    /**
+     * 标识一次加载，相同标识的图片同时只加载一次，结果显示到所有等待它的ImageView上，同时也是内存缓存和磁盘缓存的key
+     * @param data
+     * @return 包含data、{@link #getTransformationKey()}和目标尺寸，见{@link ImageCache#createKey(String, int, int)}
+     */
+    protected String getRequestKey(Object data) {
+        return ImageCache.createKey(getBaseKey(data), getTargetWidth(), getTargetHeight());
+    }
+
+    /**
+     * 不包含尺寸的key，同一张图片的不同尺寸之间可以互相缩放
+     */
+    private String getBaseKey(Object data) {
+        final String transformation = getTransformationKey();
+        if (transformation == null || transformation.length() == 0) {
+            return String.valueOf(data);
+        }
+        return String.valueOf(data) + "#" + transformation;
+    }
+
+    /**
+     * {@link #processBitmap(Object)}输出图片的目标宽度
+     * @return 默认返回0，表示不缩放，不同尺寸之间不会互相缩放
+     */
+    protected int getTargetWidth() {
+        return 0;
+    }
+
+    /**
+     * {@link #processBitmap(Object)}输出图片的目标高度
+     * @return 默认返回0，表示不缩放，不同尺寸之间不会互相缩放
+     */
+    protected int getTargetHeight() {
+        return 0;
+    }
+
+    /**
+     * {@link #processBitmap(Object)}除了缩放以外对图片的处理，例如圆角、模糊，处理不同的图片不能共用缓存
+     * @return 默认返回null，表示只缩放
+     */
+    protected String getTransformationKey() {
+        return null;
+    }
+
+
+    /**
+     * 以最低优先级把下一个页面需要的图片预取到磁盘缓存，不解码、不显示
+     * <pre>
+     *     1、不需要下载的图片({@link #needsFetch(Object)})、内存缓存中已有的图片和正在预取的图片会被跳过，
+     *        排队和执行中的预取任务不超过{@link #MAX_PREFETCH_TASKS}个
+     *     2、预取任务在下载阶段排在所有显示图片的任务后面，暂停加载({@link #setPauseWork(boolean)})时直接放弃
+     *     3、具体的下载逻辑由{@link #fetchToDisk(Object)}实现
+     * </pre>
+     * @param datas 图片的data，通常是url
+     */
+    public void prefetch(Collection<?> datas) {
+        if (datas == null) {
+            return;
+        }
+        for (Object data : datas) {
+            if (data == null || !needsFetch(data)) {
+                continue;
+            }
+            final String key = String.valueOf(data);
+            if (mImageCache != null && mImageCache.getBitmapFromMemCache(getRequestKey(data)) != null) {
+                continue;
+            }
+            synchronized (mPrefetching) {
+                if (mPrefetching.contains(key)) {
+                    continue;
+                }
+                if (mPrefetching.size() >= MAX_PREFETCH_TASKS) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "prefetch - too many prefetch tasks, skip the rest");
+                    }
+                    return;
+                }
+                mPrefetching.add(key);
+            }
+            mPipeline.submit(ImagePipeline.STAGE_NETWORK, new PrefetchTask(data));
+        }
+    }
+
+    /**
+     * data对应的图片是否需要先下载到本地，返回true时加载任务会经过{@link ImagePipeline#STAGE_NETWORK}阶段，
+     * 调用{@link #fetchToDisk(Object)}下载后再交给{@link #processBitmap(Object)}解码
+     * @param data
+     * @return 默认返回false，需要从网络获取图片的子类返回true
+     */
+    protected boolean needsFetch(Object data) {
+        return false;
+    }
+
+    /**
+     * {@link #processBitmap(Object)}返回的图片是否需要写入{@link ImageCache}的磁盘缓存
+     * @param data
+     * @param bitmap 处理好的图片
+     * @return 默认返回true；可以从原始数据直接解码得到相同的图片时返回false，避免重复编码和占用磁盘
+     */
+    protected boolean shouldWriteToDiskCache(Object data, Bitmap bitmap) {
+        return true;
+    }
+
+    /**
+     * 图片写入磁盘缓存时使用的压缩格式
+     * @param data
+     * @param bitmap 处理好的图片
+     * @return 默认返回null，使用{@link ImageCache.ImageCacheBuilder#compressFormat}
+     */
+    protected Bitmap.CompressFormat getCompressFormat(Object data, Bitmap bitmap) {
+        return null;
+    }
+
+    /**
+     * 把data对应的图片下载到本地缓存，在下载线程中运行，{@link #needsFetch(Object)}返回true时才会调用
+     * @param data
+     * @return 下载成功或者已经在本地缓存中返回true
+     */
+    protected boolean fetchToDisk(Object data) {
+        return false;
+    }
 
     /**
      * 设置在加载图片的过程中的默认图片
@@ -125,7 +295,7 @@ public abstract class ImageWorker {
      */
     public void addImageCache(ImageCache mImageCache) {
         this.mImageCache=mImageCache;
-        new CacheAsyncTask().executeOnExecutor(mExecutor,MESSAGE_INIT_DISK_CACHE);
+        mPipeline.submit(ImagePipeline.STAGE_CACHE, new CacheTask(MESSAGE_INIT_DISK_CACHE));
     }
 
     /**
@@ -170,7 +340,7 @@ public abstract class ImageWorker {
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.cancel();
             if (BuildConfig.DEBUG) {
                 final Object bitmapData = bitmapWorkerTask.data;
                 Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
@@ -178,6 +348,31 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * 修改指定imageView上图片加载任务的优先级，还在排队的任务会立即重新排序，
+     * 通常在列表滚动时调用，让滚动到屏幕内的ImageView先加载
+     * @param imageView
+     * @param visible imageView是否在屏幕内
+     * @return 任务还在排队并且已经重新排序返回true，否则返回false
+     */
+    public static boolean setWorkVisible(ImageView imageView, boolean visible) {
+        return setWorkPriority(imageView, visible ? PRIORITY_VISIBLE : PRIORITY_INVISIBLE);
+    }
+
+    /**
+     * 修改指定imageView上图片加载任务的优先级
+     * @param imageView
+     * @param priority 值越大越先执行
+     * @return 任务还在排队并且已经重新排序返回true，否则返回false
+     */
+    public static boolean setWorkPriority(ImageView imageView, int priority) {
+        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+        if (bitmapWorkerTask != null) {
+            return bitmapWorkerTask.setPriority(priority);
+        }
+        return false;
+    }
+
     /**
      * 试图在如下情况取消下载任务：
      * 1、指定imageView上对应的task的data字段为null
@@ -196,8 +391,8 @@ public abstract class ImageWorker {
 
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.data;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+            if (bitmapData == null || !bitmapData.equals(data) || !bitmapWorkerTask.isActive()) {
+                bitmapWorkerTask.cancel();
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
                 }
@@ -227,93 +422,85 @@ public abstract class ImageWorker {
     }
 
     /**
-     * 图片下载的异步任务
+     * 一个ImageView上的加载请求，加入相同图片的{@link LoadJob}，加载完成后在主线程中收到结果
      */
-    private class BitmapWorkerTask extends BaseAsyncTask<Object, Void, BitmapDrawable> {
-        private Object data;
+    private class BitmapWorkerTask {
+        private final Object data;
         private final WeakReference<ImageView> imageViewReference;
-
-        public BitmapWorkerTask(ImageView imageView) {
+        private final AtomicBoolean mCancelled = new AtomicBoolean();
+        //加载在队列满时被{@link ImagePipeline}丢弃，ImageView重新可见时重新加载
+        private final AtomicBoolean mDropped = new AtomicBoolean();
+        private volatile int mPriority = Thread.NORM_PRIORITY;
+        private volatile LoadJob mLoad;
+
+        public BitmapWorkerTask(Object data, ImageView imageView) {
+            this.data = data;
             imageViewReference = new WeakReference<ImageView>(imageView);
         }
 
-
-        @Override
-        protected BitmapDrawable doInBackground(Object... params) {
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - starting work");
-            }
-
-            data = params[0];
-            final String dataString = String.valueOf(data);
-            Bitmap bitmap = null;
-            BitmapDrawable drawable = null;
-
-            // Wait here if work is paused and the task is not cancelled
-            synchronized (mPauseWorkLock) {
-                while (mPauseWork && !isCancelled()) {
-                    try {
-                        mPauseWorkLock.wait();
-                    } catch (InterruptedException e) {}
+        /**
+         * 取消此ImageView的请求，共享的加载在最后一个请求取消后才会取消
+         */
+        public void cancel() {
+            if (mCancelled.compareAndSet(false, true)) {
+                final LoadJob load = mLoad;
+                if (load != null) {
+                    load.removeListener(this);
                 }
             }
+        }
 
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and the ImageView that was originally bound to this task is still bound back
-            // to this task and our "exit early" flag is not set then try and fetch the bitmap from
-            // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
-            }
-
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and the ImageView that was originally bound to this task is still
-            // bound back to this task and our "exit early" flag is not set, then call the main
-            // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = processBitmap(params[0]);
-            }
+        public boolean isCancelled() {
+            return mCancelled.get();
+        }
 
-            // If the bitmap was processed and the image cache is available, then add the processed
-            // bitmap to the cache for future use. Note we don't check if the task was cancelled
-            // here, if it was, and the thread is still running, we may as well add the processed
-            // bitmap to our cache as it might be used again in the future
-            if (bitmap != null) {
-                if (OSVersionUtils.hasHoneycomb()) {
-                    // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
-                    drawable = new BitmapDrawable(mResources, bitmap);
-                } else {
-                    // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
-                    // which will recycle automagically
-                    drawable = new RecyclingBitmapDrawable(mResources, bitmap);
-                }
+        /**
+         * 请求没有取消并且加载还没有结束
+         */
+        boolean isActive() {
+            final LoadJob load = mLoad;
+            return !isCancelled() && (load == null || !load.isFinished());
+        }
 
-                if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(dataString, drawable);
-                }
+        /**
+         * 修改请求的优先级，共享的加载使用所有请求中最高的优先级。加载已经被丢弃并且优先级高于
+         * {@link #PRIORITY_INVISIBLE}时重新加载，ImageView不会一直停留在占位图上
+         * @return 加载还在排队或者已经重新提交返回true
+         */
+        public boolean setPriority(int priority) {
+            mPriority = priority;
+            final LoadJob load = mLoad;
+            if (load != null && load.updatePriority()) {
+                return true;
             }
-
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - finished work");
+            if (priority > PRIORITY_INVISIBLE && isWaiting() && mDropped.compareAndSet(true, false)) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "setPriority - reload dropped work for " + data);
+                }
+                attachToLoad(this);
+                return true;
             }
+            return false;
+        }
 
-            return drawable;
+        /**
+         * 请求是否还需要结果：没有取消并且ImageView还绑定在此请求上
+         */
+        boolean isWaiting() {
+            return !isCancelled() && getAttachedImageView() != null;
         }
 
         /**
          * Once the image is processed, associates it to the imageView
          */
-        @Override
-        protected void onPostExecute(BitmapDrawable value) {
+        private void onPostExecute(BitmapDrawable value) {
             // if cancel was called on this task or the "exit early" flag is set then we're done
             if (isCancelled() || mExitTasksEarly) {
-                value = null;
+                return;
             }
 
             final ImageView imageView = getAttachedImageView();
-            if (value != null && imageView != null) {
+            if (imageView != null) {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "onPostExecute - setting bitmap");
                 }
@@ -321,14 +508,6 @@ public abstract class ImageWorker {
             }
         }
 
-        @Override
-        protected void onCancelled(BitmapDrawable value) {
-            super.onCancelled(value);
-            synchronized (mPauseWorkLock) {
-                mPauseWorkLock.notifyAll();
-            }
-        }
-
         /**
          * Returns the ImageView associated with this task as long as the ImageView's task still
          * points to this task as well. Returns null otherwise.
@@ -345,6 +524,252 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * 一张图片的加载，依次经过{@link ImagePipeline}的读取磁盘缓存、下载、解码阶段。
+     * 显示同一张图片的多个{@link BitmapWorkerTask}共享一次加载，所有请求都取消或者ImageView都已经绑定到
+     * 其他图片后，还没有执行的阶段会被丢弃
+     */
+    private class LoadJob extends ImagePipeline.Job {
+        private final String key;
+        private final String baseKey;
+        private final int width;
+        private final int height;
+        private final Object data;
+        //等待结果的请求，和mFinished一起由mInFlightLoads保护
+        private final List<BitmapWorkerTask> mListeners = new ArrayList<BitmapWorkerTask>();
+        private boolean mFinished;
+
+        public LoadJob(String key, String baseKey, Object data) {
+            this.key = key;
+            this.baseKey = baseKey;
+            this.width = getTargetWidth();
+            this.height = getTargetHeight();
+            this.data = data;
+        }
+
+        /**
+         * 加入一个请求
+         * @return 加载已经结束时返回false
+         */
+        boolean addListener(BitmapWorkerTask task) {
+            synchronized (mInFlightLoads) {
+                if (mFinished) {
+                    return false;
+                }
+                mListeners.add(task);
+                task.mLoad = this;
+                return true;
+            }
+        }
+
+        void removeListener(BitmapWorkerTask task) {
+            synchronized (mInFlightLoads) {
+                mListeners.remove(task);
+                if (mListeners.isEmpty() && !mFinished) {
+                    //最后一个请求已经取消，加载在下一次调度时被丢弃
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "removeListener - no one is waiting for " + data);
+                    }
+                    finish();
+                }
+            }
+        }
+
+        boolean isFinished() {
+            synchronized (mInFlightLoads) {
+                return mFinished;
+            }
+        }
+
+        /**
+         * 使用所有请求中最高的优先级
+         * @return 加载还在排队返回true
+         */
+        boolean updatePriority() {
+            int priority = Integer.MIN_VALUE;
+            synchronized (mInFlightLoads) {
+                for (BitmapWorkerTask task : mListeners) {
+                    priority = Math.max(priority, task.mPriority);
+                }
+            }
+            if (priority == Integer.MIN_VALUE) {
+                return false;
+            }
+            return setPriority(priority);
+        }
+
+        /**
+         * 结束加载，之后相同的图片会重新加载，调用时持有mInFlightLoads
+         */
+        private void finish() {
+            mFinished = true;
+            if (mInFlightLoads.get(key) == this) {
+                mInFlightLoads.remove(key);
+            }
+        }
+
+        private List<BitmapWorkerTask> finishAndGetListeners() {
+            synchronized (mInFlightLoads) {
+                finish();
+                return new ArrayList<BitmapWorkerTask>(mListeners);
+            }
+        }
+
+        @Override
+        boolean isStale() {
+            if (mExitTasksEarly) {
+                return true;
+            }
+            synchronized (mInFlightLoads) {
+                if (mFinished) {
+                    return true;
+                }
+                for (BitmapWorkerTask task : mListeners) {
+                    if (task.isWaiting()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        /**
+         * 暂停时任务留在{@link ImagePipeline}的队列中，不占用线程
+         */
+        @Override
+        boolean isPaused() {
+            return mPauseWork;
+        }
+
+        /**
+         * 只有不可见的加载会因为队列已满被丢弃，请求不标记为取消：ImageView重新可见时
+         * ({@link BitmapWorkerTask#setPriority(int)})或者重新绑定相同的图片时会创建新的加载
+         */
+        @Override
+        void onDropped() {
+            synchronized (mInFlightLoads) {
+                for (BitmapWorkerTask task : mListeners) {
+                    task.mDropped.set(true);
+                }
+                finish();
+            }
+        }
+
+        @Override
+        void run(int stage) {
+            switch (stage) {
+                case ImagePipeline.STAGE_DISK:
+                    final ImageCache imageCache = mImageCache;
+                    if (imageCache != null) {
+                        //先从内存中同一张图片的更大尺寸缩小，没有时再读取磁盘
+                        Bitmap bitmap = imageCache.getScaledBitmapFromMemCache(baseKey, width, height);
+                        if (bitmap != null) {
+                            deliver(bitmap, true);
+                            break;
+                        }
+                        bitmap = imageCache.getBitmapFromDiskCache(key);
+                        if (bitmap != null) {
+                            deliver(bitmap, false);
+                            break;
+                        }
+                    }
+                    if (!isStale()) {
+                        mPipeline.submit(needsFetch(data) ? ImagePipeline.STAGE_NETWORK : ImagePipeline.STAGE_DECODE, this);
+                    } else {
+                        //不再提交的加载必须结束，否则之后绑定相同图片的ImageView会加入这个不会完成的加载
+                        finishAndGetListeners();
+                    }
+                    break;
+                case ImagePipeline.STAGE_NETWORK:
+                    if (fetchToDisk(data) && !isStale()) {
+                        mPipeline.submit(ImagePipeline.STAGE_DECODE, this);
+                    } else {
+                        finishAndGetListeners();
+                    }
+                    break;
+                case ImagePipeline.STAGE_DECODE:
+                    final Bitmap decoded = processBitmap(data);
+                    deliver(decoded, decoded != null && shouldWriteToDiskCache(data, decoded));
+                    break;
+            }
+        }
+
+        /**
+         * 把处理好的图片放入缓存，然后在主线程中显示到所有还在等待的ImageView上。这里不检查加载是否已经取消，
+         * 图片已经处理好了，放入缓存后续可能还会用到
+         * @param bitmap
+         * @param writeToDisk 是否需要写入磁盘缓存，图片从磁盘缓存中读取时为false
+         */
+        private void deliver(Bitmap bitmap, boolean writeToDisk) {
+            if (bitmap == null) {
+                finishAndGetListeners();
+                return;
+            }
+            final ImageCache imageCache = mImageCache;
+            // 所有版本都使用RecyclingBitmapDrawable记录显示和缓存的引用计数，归零后Honeycomb及以上放入对象池复用，
+            // 之前的版本直接recycle。只有配合RecyclingImageView显示时才会归零
+            final BitmapDrawable drawable = new RecyclingBitmapDrawable(mResources, bitmap,
+                    imageCache != null ? imageCache.getBitmapPool() : null);
+
+            if (imageCache != null) {
+                imageCache.addBitmapToMemCache(key, drawable);
+                if (writeToDisk) {
+                    //在ImageCache的编码线程中压缩和写入，不占用当前阶段的线程
+                    imageCache.addBitmapToDiskCache(key, drawable, getCompressFormat(data, bitmap));
+                }
+            }
+
+            //放入内存缓存之后再结束，之后绑定的ImageView可以直接从内存缓存中拿到图片
+            final List<BitmapWorkerTask> listeners = finishAndGetListeners();
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (BitmapWorkerTask task : listeners) {
+                        task.onPostExecute(drawable);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 图片预取任务，只经过{@link ImagePipeline#STAGE_NETWORK}阶段
+     */
+    private class PrefetchTask extends ImagePipeline.Job {
+        private final Object data;
+
+        public PrefetchTask(Object data) {
+            this.data = data;
+            setPriority(PRIORITY_PREFETCH);
+        }
+
+        @Override
+        boolean isStale() {
+            //正在滚动或者页面已经退出时放弃预取，把线程留给显示图片的任务
+            return mPauseWork || mExitTasksEarly;
+        }
+
+        @Override
+        void run(int stage) {
+            try {
+                fetchToDisk(data);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        void onDropped() {
+            finish();
+        }
+
+        private void finish() {
+            synchronized (mPrefetching) {
+                mPrefetching.remove(String.valueOf(data));
+            }
+        }
+    }
+
     /**
      * A custom Drawable that will be attached to the imageView while the work is in progress.
      * Contains a reference to the actual worker task, so that it can be stopped if a new binding is
@@ -398,28 +823,39 @@ public abstract class ImageWorker {
      * {@link android.widget.AbsListView.OnScrollListener} to keep
      * scrolling smooth.
      * <p>
+     * <p>
+     * 暂停期间加载任务只在{@link ImagePipeline}中排队，不会提交到线程池，也不会占用或者阻塞线程；
+     * 恢复后按照优先级执行，最新绑定的ImageView先加载，ImageView已经绑定到其他图片的任务直接丢弃。
      * If work is paused, be sure setPauseWork(false) is called again
      * before your fragment or activity is destroyed (for example during
-     * {@link android.app.Activity#onPause()}), or there is a risk the
-     * background thread will never finish.
+     * {@link android.app.Activity#onPause()}), or the queued work will never run.
      */
     public void setPauseWork(boolean pauseWork) {
-        synchronized (mPauseWorkLock) {
-            mPauseWork = pauseWork;
-            if (!mPauseWork) {
-                mPauseWorkLock.notifyAll();
-            }
+        mPauseWork = pauseWork;
+        if (!pauseWork) {
+            mPipeline.dispatchAll();
         }
     }
 
-    protected class CacheAsyncTask extends BaseAsyncTask<Object, Void, Void> {
+    /**
+     * 初始化、清空、刷新、关闭缓存的任务，在{@link ImagePipeline#STAGE_CACHE}阶段按照提交的顺序执行，
+     * 和读取磁盘缓存的任务不在同一个线程池，加载任务等待磁盘缓存初始化时不会阻塞它
+     */
+    private class CacheTask extends ImagePipeline.Job {
+        private final int mMessage;
+
+        public CacheTask(int message) {
+            this.mMessage = message;
+        }
 
-        public CacheAsyncTask() {
+        @Override
+        boolean isStale() {
+            return false;
         }
 
         @Override
-        protected Void doInBackground(Object... params) {
-            switch ((Integer)params[0]) {
+        void run(int stage) {
+            switch (mMessage) {
                 case MESSAGE_CLEAR:
                     clearCacheInternal();
                     break;
@@ -433,7 +869,6 @@ public abstract class ImageWorker {
                     closeCacheInternal();
                     break;
             }
-            return null;
         }
     }
 
@@ -463,14 +898,14 @@ public abstract class ImageWorker {
     }
 
     public void clearCache() {
-        new CacheAsyncTask().executeOnExecutor(mExecutor,MESSAGE_CLEAR);
+        mPipeline.submit(ImagePipeline.STAGE_CACHE, new CacheTask(MESSAGE_CLEAR));
     }
 
     public void flushCache() {
-        new CacheAsyncTask().executeOnExecutor(mExecutor,MESSAGE_FLUSH);
+        mPipeline.submit(ImagePipeline.STAGE_CACHE, new CacheTask(MESSAGE_FLUSH));
     }
 
     public void closeCache() {
-        new CacheAsyncTask().executeOnExecutor(mExecutor, MESSAGE_CLOSE);
+        mPipeline.submit(ImagePipeline.STAGE_CACHE, new CacheTask(MESSAGE_CLOSE));
     }
 }
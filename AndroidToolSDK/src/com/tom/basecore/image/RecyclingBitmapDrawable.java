@@ -25,8 +25,10 @@ import com.tom.basecore.BuildConfig;
 
 /**
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
- * {@link Bitmap#recycle() recycle()} will be called on this drawable's bitmap.
+ * When the drawable is no longer being displayed or cached, this drawable's bitmap
+ * is handed to the {@link BitmapPool} given to the constructor for reuse with inBitmap,
+ * or {@link Bitmap#recycle() recycle()} is called on it if there is no pool or the pool
+ * rejects it.
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
 
@@ -37,8 +39,22 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
 
     private boolean mHasBeenDisplayed;
 
+    private boolean mReleased;
+
+    private final BitmapPool mBitmapPool;
+
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
+        this(res, bitmap, null);
+    }
+
+    /**
+     * @param res
+     * @param bitmap
+     * @param bitmapPool pool that receives the bitmap once it is neither displayed nor cached, may be null
+     */
+    public RecyclingBitmapDrawable(Resources res, Bitmap bitmap, BitmapPool bitmapPool) {
         super(res, bitmap);
+        mBitmapPool = bitmapPool;
     }
 
     /**
@@ -83,9 +99,17 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
 
     private synchronized void checkState() {
         // If the drawable cache and display ref counts = 0, and this drawable
-        // has been displayed, then recycle
+        // has been displayed, then pool or recycle
         if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                && hasValidBitmap()) {
+                && !mReleased && hasValidBitmap()) {
+            mReleased = true;
+            if (mBitmapPool != null && mBitmapPool.put(getBitmap())) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(LOG_TAG, "No longer being used or cached so pooling. "
+                            + toString());
+                }
+                return;
+            }
             if (BuildConfig.DEBUG) {
                 Log.d(LOG_TAG, "No longer being used or cached so recycling. "
                         + toString());
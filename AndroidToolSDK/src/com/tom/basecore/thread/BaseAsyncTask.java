@@ -37,6 +37,10 @@ public abstract class BaseAsyncTask<Params, Progress, Result> {
     private static final int MESSAGE_POST_PROGRESS = 0x2;
     //正在执行的FuturTask，主要用来取消任务
     private FutureTask<Result> mFuture;
+    //任务提交到的线程池，用于修改排队中任务的优先级
+    private XThreadPoolExecutor mSubmitExecutor;
+    //任务的优先级，值越大越先执行
+    private volatile int mPriority = Thread.NORM_PRIORITY;
     //对于无法中断的后台任务，需要自己设置一个CallableTask的子类，并实现cancel方法
     protected CallableTask mCallable;
     //该后台任务是否已经执行过
@@ -94,7 +98,8 @@ public abstract class BaseAsyncTask<Params, Progress, Result> {
     }
 
     /**
-     * 任务被取消的回调
+     * 任务被取消的回调，线程池已满、任务在执行前被更高优先级的任务挤出队列时也会回调，此时mResult为null
+     * 注意：此回调在UI线程中执行
      *
      * @param mResult
      */
@@ -153,9 +158,35 @@ public abstract class BaseAsyncTask<Params, Progress, Result> {
             DebugLog.d(TAG_, "mCallable is not null,so is possible noninterruptable task!!");
         }
         mCallable.setParams(params);
+        mCallable.setPriority(mPriority);
+        mSubmitExecutor = executor;
         mFuture = (FutureTask<Result>) executor.submit(mCallable);
     }
 
+    /**
+     * 设置任务的优先级，可以在任务执行前或者排队过程中调用，排队中的任务会立即按照新的优先级重新排序
+     *
+     * @param priority 值越大越先执行，参考{@link Thread#MIN_PRIORITY}、{@link Thread#MAX_PRIORITY}
+     * @return 任务还在等待队列中并且已经重新排序返回true，否则返回false
+     */
+    public boolean setPriority(int priority) {
+        mPriority = priority;
+        final FutureTask<Result> future = mFuture;
+        if (future != null && mSubmitExecutor != null) {
+            return mSubmitExecutor.setTaskPriority(future, priority);
+        }
+        return false;
+    }
+
+    /**
+     * 获取任务的优先级
+     *
+     * @return
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
     /**
      * 取消任务
      *
@@ -225,6 +256,17 @@ public abstract class BaseAsyncTask<Params, Progress, Result> {
 
         }
 
+        /**
+         * 任务被线程池丢弃，不会再执行，标记为取消并在UI线程回调{@link #onCancelled(Object)}，
+         * 调用方可以在回调中清理界面，例如去掉加载中的占位图
+         */
+        @Override
+        public final void onDiscarded() {
+            DebugLog.d(TAG_, "task is discarded by a full executor, priority:%d", getPriority());
+            mCancelled.set(true);
+            mHandler.obtainMessage(MESSAGE_POST_RESULT, new AsyncTaskResult<Result>(BaseAsyncTask.this, null)).sendToTarget();
+        }
+
         @Override
         public final Result call() throws Exception {
             mInvoker.set(true);
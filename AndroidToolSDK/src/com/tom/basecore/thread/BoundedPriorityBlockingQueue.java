@@ -3,11 +3,12 @@ package com.tom.basecore.thread;
 import java.util.AbstractQueue;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,6 +17,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * them, items are not added in a specific order based an time. Further more, higher priority items put onto
  * the collection cannot be prioritised until the collection can accommodate them. This can lead to non-
  * deterministic ordering when the queue is full.</p>
+ *
+ * <p>Elements are kept in an indexed dual heap: every element is held by one node that lives both in a
+ * heap ordered by the comparator (head = highest priority) and in a heap ordered by the reversed
+ * comparator (head = lowest priority). Each node records its position in both heaps, so {@link #poll()},
+ * {@link #removeMinPriority()} and {@link #remove(Object)} all run in O(log n).</p>
+ *
+ * <p>Elements the comparator considers equal are ordered by insertion sequence: they are taken in FIFO order,
+ * and {@link #removeMinPriority()} sheds the most recently inserted one first.</p>
  * @param <E>
  */
 public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
@@ -23,83 +32,75 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
 
     private static final long serialVersionUID = -6903933977591709194L;
 
+    private static final int DEFAULT_INITIAL_CAPACITY = 11;
+
     /**
      * The capacity bound, or Integer.MAX_VALUE if none
      */
     private final int capacity;
 
     /**
-     * Current number of elements
+     * Orders the elements, the least element has the highest priority
      */
-    private final AtomicInteger count = new AtomicInteger();
+    private final Comparator<? super E> comparator;
 
     /**
-     * Lock held by take, poll, etc
+     * Main lock guarding all access
      */
-    private final ReentrantLock takeLock = new ReentrantLock();
+    private final ReentrantLock lock = new ReentrantLock();
 
     /**
      * Wait queue for waiting takes
      */
-    private final Condition notEmpty = takeLock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
 
     /**
-     * Lock held by put, offer, etc
+     * Wait queue for waiting puts
      */
-    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
 
     /**
-     * Wait queue for waiting puts
+     * Heap whose head is the highest priority element
      */
-    private final Condition notFull = putLock.newCondition();
+    private transient Node<E>[] minHeap;
 
-    private final PriorityBlockingQueue<E> priorityBlockingQueue;
+    /**
+     * Heap whose head is the lowest priority element
+     */
+    private transient Node<E>[] maxHeap;
 
     /**
-     * Signals a waiting take. Called only from put/offer (which do not
-     * otherwise ordinarily lock takeLock.)
+     * Current number of elements
      */
-    private void signalNotEmpty() {
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
-        try {
-            notEmpty.signal();
-        } finally {
-            takeLock.unlock();
-        }
-    }
+    private transient int count;
 
     /**
-     * Signals a waiting put. Called only from take/poll.
+     * Position index used by {@link #remove(Object)}, keyed by element identity
      */
-    private void signalNotFull() {
-        final ReentrantLock putLock = this.putLock;
-        putLock.lock();
-        try {
-            notFull.signal();
-        } finally {
-            putLock.unlock();
-        }
-    }
+    private transient Map<Object, Node<E>> index;
 
     /**
-     * Locks to prevent both puts and takes.
+     * Insertion sequence, breaks ties between elements of equal priority
      */
-    void fullyLock() {
-        putLock.lock();
-        takeLock.lock();
-    }
+    private transient long sequence;
 
     /**
-     * Unlocks to allow both puts and takes.
+     * Holds one element and its position in both heaps
      */
-    void fullyUnlock() {
-        takeLock.unlock();
-        putLock.unlock();
+    static final class Node<E> {
+        final E item;
+        final long seq;
+        int minIndex;
+        int maxIndex;
+
+        Node(E item, long seq) {
+            this.item = item;
+            this.seq = seq;
+        }
     }
 
     /**
-     * Creates a {@code LinkedBlockingQueue} with the given (fixed) capacity.
+     * Creates a {@code BoundedPriorityBlockingQueue} with the given (fixed) capacity.
      *
      * @param capacity the capacity of this queue
      * @throws IllegalArgumentException if {@code capacity} is not greater
@@ -108,8 +109,18 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
     public BoundedPriorityBlockingQueue(int capacity,
                                         final Comparator<? super E> comparator) {
         if (capacity <= 0) throw new IllegalArgumentException();
+        if (comparator == null) throw new NullPointerException();
         this.capacity = capacity;
-        this.priorityBlockingQueue = new PriorityBlockingQueue<E>(capacity, comparator);
+        this.comparator = comparator;
+        initHeaps(Math.min(capacity, DEFAULT_INITIAL_CAPACITY));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void initHeaps(int initialCapacity) {
+        minHeap = (Node<E>[]) new Node[initialCapacity];
+        maxHeap = (Node<E>[]) new Node[initialCapacity];
+        index = new IdentityHashMap<Object, Node<E>>(initialCapacity);
+        count = 0;
     }
 
     /**
@@ -118,7 +129,13 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      * @return the number of elements in this queue
      */
     public int size() {
-        return count.get();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -133,7 +150,7 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      * insert or remove an element.
      */
     public int remainingCapacity() {
-        return capacity - count.get();
+        return capacity - size();
     }
 
     /**
@@ -145,33 +162,16 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      */
     public void put(E e) throws InterruptedException {
         if (e == null) throw new NullPointerException();
-        // Note: convention in all put/take/etc is to preset local var
-        // holding count negative to indicate failure unless set.
-        int c = -1;
-        final ReentrantLock putLock = this.putLock;
-        final AtomicInteger count = this.count;
-        putLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            /*
-             * Note that count is used in wait guard even though it is
-             * not protected by lock. This works because count can
-             * only decrease at this point (all other puts are shut
-             * out by lock), and we (or some other waiting put) are
-             * signalled if it ever changes from capacity. Similarly
-             * for all other uses of count in other wait guards.
-             */
-            while (count.get() == capacity) {
+            while (count == capacity) {
                 notFull.await();
             }
-            priorityBlockingQueue.put(e);
-            c = count.getAndIncrement();
-            if (c + 1 < capacity)
-                notFull.signal();
+            insert(e);
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
-        if (c == 0)
-            signalNotEmpty();
     }
 
     /**
@@ -188,26 +188,19 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
 
         if (e == null) throw new NullPointerException();
         long nanos = unit.toNanos(timeout);
-        int c = -1;
-        final ReentrantLock putLock = this.putLock;
-        final AtomicInteger count = this.count;
-        putLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            while (count.get() == capacity) {
+            while (count == capacity) {
                 if (nanos <= 0)
                     return false;
                 nanos = notFull.awaitNanos(nanos);
             }
-            priorityBlockingQueue.offer(e);
-            c = count.getAndIncrement();
-            if (c + 1 < capacity)
-                notFull.signal();
+            insert(e);
+            return true;
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
-        if (c == 0)
-            signalNotEmpty();
-        return true;
     }
 
     /**
@@ -223,106 +216,64 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      */
     public boolean offer(E e) {
         if (e == null) throw new NullPointerException();
-        final AtomicInteger count = this.count;
-        if (count.get() == capacity)
-            return false;
-        int c = -1;
-        final ReentrantLock putLock = this.putLock;
-        putLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            if (count.get() < capacity) {
-                priorityBlockingQueue.offer(e);
-                c = count.getAndIncrement();
-                if (c + 1 < capacity)
-                    notFull.signal();
-            }
+            if (count == capacity)
+                return false;
+            insert(e);
+            return true;
         } finally {
-            putLock.unlock();
+            lock.unlock();
         }
-        if (c == 0)
-            signalNotEmpty();
-        return c >= 0;
     }
 
     public E take() throws InterruptedException {
-        E x;
-        int c = -1;
-        final AtomicInteger count = this.count;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            while (count.get() == 0) {
+            while (count == 0) {
                 notEmpty.await();
             }
-            x = priorityBlockingQueue.take();
-            c = count.getAndDecrement();
-            if (c > 1)
-                notEmpty.signal();
+            return removeNode(minHeap[0]);
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
     }
 
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
-        E x = null;
-        int c = -1;
         long nanos = unit.toNanos(timeout);
-        final AtomicInteger count = this.count;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lockInterruptibly();
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
         try {
-            while (count.get() == 0) {
+            while (count == 0) {
                 if (nanos <= 0)
                     return null;
                 nanos = notEmpty.awaitNanos(nanos);
             }
-            x = priorityBlockingQueue.poll();
-            c = count.getAndDecrement();
-            if (c > 1)
-                notEmpty.signal();
+            return removeNode(minHeap[0]);
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
     }
 
     public E poll() {
-        final AtomicInteger count = this.count;
-        if (count.get() == 0)
-            return null;
-        E x = null;
-        int c = -1;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            if (count.get() > 0) {
-                x = priorityBlockingQueue.poll();
-                c = count.getAndDecrement();
-                if (c > 1)
-                    notEmpty.signal();
-            }
+            return count == 0 ? null : removeNode(minHeap[0]);
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
-        if (c == capacity)
-            signalNotFull();
-        return x;
     }
 
     public E peek() {
-        if (count.get() == 0)
-            return null;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            return priorityBlockingQueue.peek();
+            return count == 0 ? null : minHeap[0].item;
         } finally {
-            takeLock.unlock();
+            lock.unlock();
         }
     }
 
@@ -339,15 +290,16 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      */
     public boolean remove(Object o) {
         if (o == null) return false;
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            boolean ret = priorityBlockingQueue.remove(o);
-
-            if (ret && count.getAndDecrement() == capacity)
-                notFull.signal();
-            return ret;
+            Node<E> node = findNode(o);
+            if (node == null)
+                return false;
+            removeNode(node);
+            return true;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
@@ -361,11 +313,12 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      */
     public boolean contains(Object o) {
         if (o == null) return false;
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            return priorityBlockingQueue.contains(o);
+            return findNode(o) != null;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
@@ -383,11 +336,16 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      * @return an array containing all of the elements in this queue
      */
     public Object[] toArray() {
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            return priorityBlockingQueue.toArray();
+            Object[] a = new Object[count];
+            for (int i = 0; i < count; i++) {
+                a[i] = minHeap[i].item;
+            }
+            return a;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
@@ -428,21 +386,24 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      */
     @SuppressWarnings("unchecked")
     public <T> T[] toArray(T[] a) {
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            return priorityBlockingQueue.toArray(a);
+            if (a.length < count)
+                a = (T[]) java.lang.reflect.Array.newInstance(a.getClass().getComponentType(), count);
+            for (int i = 0; i < count; i++) {
+                a[i] = (T) minHeap[i].item;
+            }
+            if (a.length > count)
+                a[count] = null;
+            return a;
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
     public String toString() {
-        fullyLock();
-        try {
-            return priorityBlockingQueue.toString();
-        } finally {
-            fullyUnlock();
-        }
+        return java.util.Arrays.toString(toArray());
     }
 
     /**
@@ -450,13 +411,18 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      * The queue will be empty after this call returns.
      */
     public void clear() {
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            priorityBlockingQueue.clear();
-            if (count.getAndSet(0) == capacity)
-                notFull.signal();
+            for (int i = 0; i < count; i++) {
+                minHeap[i] = null;
+                maxHeap[i] = null;
+            }
+            index.clear();
+            count = 0;
+            notFull.signalAll();
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
@@ -483,25 +449,17 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
             throw new IllegalArgumentException();
         if (maxElements <= 0)
             return 0;
-        boolean signalNotFull = false;
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            int n = 0;
-            try {
-                n = priorityBlockingQueue.drainTo(c, maxElements);
-                return n;
-            } finally {
-                // Restore invariants even if c.add() threw
-                if (n > 0) {
-                    // assert h.item == null;
-                    signalNotFull = (count.getAndAdd(-n) == capacity);
-                }
+            int n = Math.min(count, maxElements);
+            for (int i = 0; i < n; i++) {
+                // Remove before adding, so a throwing c.add() does not leave a duplicate behind
+                c.add(removeNode(minHeap[0]));
             }
+            return n;
         } finally {
-            takeLock.unlock();
-            if (signalNotFull)
-                signalNotFull();
+            lock.unlock();
         }
     }
 
@@ -515,9 +473,57 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
      * @return an iterator over the elements in this queue in proper sequence
      */
     public Iterator<E> iterator() {
-        return priorityBlockingQueue.iterator();
+        return new Itr(toArray());
+    }
+
+    /**
+     * Snapshot iterator that works off copy of underlying heap array.
+     */
+    final class Itr implements Iterator<E> {
+        final Object[] array; // Array of all elements
+        int cursor;           // index of next element to return
+        int lastRet;          // index of last element, or -1 if no such
+
+        Itr(Object[] array) {
+            lastRet = -1;
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E) array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            removeEq(array[lastRet]);
+            lastRet = -1;
+        }
     }
 
+    /**
+     * Identity-based version for use in Itr.remove
+     */
+    void removeEq(Object o) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Node<E> node = index.get(o);
+            if (node != null && node.item == o) {
+                removeNode(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
     /**
      * Saves this queue to a stream (that is, serializes it).
@@ -531,19 +537,20 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
     private void writeObject(java.io.ObjectOutputStream s)
             throws java.io.IOException {
 
-        fullyLock();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
             // Write out any hidden stuff, plus capacity
             s.defaultWriteObject();
 
             // Write out all elements in the proper order.
-            for (E e : priorityBlockingQueue)
-                s.writeObject(e);
+            for (int i = 0; i < count; i++)
+                s.writeObject(minHeap[i].item);
 
             // Use trailing null as sentinel
             s.writeObject(null);
         } finally {
-            fullyUnlock();
+            lock.unlock();
         }
     }
 
@@ -560,7 +567,7 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
         // Read in capacity, and any hidden stuff
         s.defaultReadObject();
 
-        count.set(0);
+        initHeaps(Math.min(capacity, DEFAULT_INITIAL_CAPACITY));
         // Read in all elements and place in queue
         for (; ; ) {
             @SuppressWarnings("unchecked")
@@ -572,22 +579,243 @@ public class BoundedPriorityBlockingQueue<E> extends AbstractQueue<E>
     }
 
     /**
+     * Removes the element with the lowest priority, in O(log n).
+     *
      * @return Whether the minimum item in queue is removed
      */
     public boolean removeMinPriority() {
-        boolean ret = false;
-        E min = null;
-        fullyLock();
+        return pollMinPriority() != null;
+    }
+
+    /**
+     * Retrieves and removes the element with the lowest priority, in O(log n).
+     *
+     * @return the lowest priority element, or {@code null} if this queue is empty
+     */
+    public E pollMinPriority() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
         try {
-            for (E e : priorityBlockingQueue) {
-                if (min == null || priorityBlockingQueue.comparator().compare(min, e) < 0) {
-                    min = e;
-                }
-            }
-            ret = remove(min);
+            return count == 0 ? null : removeNode(maxHeap[0]);
         } finally {
-            fullyUnlock();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the element with the lowest priority.
+     *
+     * @return the lowest priority element, or {@code null} if this queue is empty
+     */
+    public E peekMinPriority() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count == 0 ? null : maxHeap[0].item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the priority of a queued element and restores its position in both heaps, in O(log n).
+     * The priority is updated under the queue lock, so the heaps never observe a half-updated element.
+     * If the element is not queued (already taken, or not yet inserted) only its priority is updated.
+     *
+     * @param o        the element, must implement {@link IPriorityInterface}
+     * @param priority the new priority
+     * @return {@code true} if the element was queued and has been re-sorted
+     */
+    public boolean updatePriority(Object o, int priority) {
+        if (!(o instanceof IPriorityInterface))
+            return false;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            ((IPriorityInterface) o).setPriority(priority);
+            Node<E> node = findNode(o);
+            if (node == null)
+                return false;
+            resift(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Heap maintenance, all called with the lock held.
+     */
+
+    /**
+     * Restores the position of a node whose priority has changed.
+     */
+    private void resift(Node<E> node) {
+        int i = node.minIndex;
+        siftUpMin(i);
+        if (minHeap[i] == node)
+            siftDownMin(i);
+        i = node.maxIndex;
+        siftUpMax(i);
+        if (maxHeap[i] == node)
+            siftDownMax(i);
+    }
+
+    /**
+     * Inserts the element into both heaps and signals a waiting take.
+     */
+    private void insert(E e) {
+        if (count == minHeap.length)
+            grow();
+        Node<E> node = new Node<E>(e, sequence++);
+        int n = count++;
+        setMin(n, node);
+        setMax(n, node);
+        siftUpMin(n);
+        siftUpMax(n);
+        index.put(e, node);
+        notEmpty.signal();
+    }
+
+    /**
+     * Removes the node from both heaps and signals a waiting put.
+     */
+    private E removeNode(Node<E> node) {
+        int last = --count;
+        removeAtMin(node.minIndex, last);
+        removeAtMax(node.maxIndex, last);
+        if (index.get(node.item) == node)
+            index.remove(node.item);
+        notFull.signal();
+        return node.item;
+    }
+
+    /**
+     * Finds the node holding {@code o}, by identity through the position index first and
+     * by {@code equals} otherwise.
+     */
+    private Node<E> findNode(Object o) {
+        Node<E> node = index.get(o);
+        if (node != null)
+            return node;
+        for (int i = 0; i < count; i++) {
+            if (o.equals(minHeap[i].item))
+                return minHeap[i];
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        int oldCapacity = minHeap.length;
+        int newCapacity = oldCapacity < 64 ? oldCapacity * 2 + 2 : oldCapacity + (oldCapacity >> 1);
+        if (newCapacity > capacity || newCapacity < 0)
+            newCapacity = capacity;
+        Node<E>[] newMin = (Node<E>[]) new Node[newCapacity];
+        Node<E>[] newMax = (Node<E>[]) new Node[newCapacity];
+        System.arraycopy(minHeap, 0, newMin, 0, count);
+        System.arraycopy(maxHeap, 0, newMax, 0, count);
+        minHeap = newMin;
+        maxHeap = newMax;
+    }
+
+    private void setMin(int i, Node<E> node) {
+        minHeap[i] = node;
+        node.minIndex = i;
+    }
+
+    private void setMax(int i, Node<E> node) {
+        maxHeap[i] = node;
+        node.maxIndex = i;
+    }
+
+    /**
+     * Compares by priority then by insertion order, negative if {@code a} should run before {@code b}
+     */
+    private int compare(Node<E> a, Node<E> b) {
+        int result = comparator.compare(a.item, b.item);
+        if (result != 0)
+            return result;
+        return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+    }
+
+    private void removeAtMin(int i, int last) {
+        Node<E> moved = minHeap[last];
+        minHeap[last] = null;
+        if (i != last) {
+            setMin(i, moved);
+            siftDownMin(i);
+            if (minHeap[i] == moved)
+                siftUpMin(i);
+        }
+    }
+
+    private void removeAtMax(int i, int last) {
+        Node<E> moved = maxHeap[last];
+        maxHeap[last] = null;
+        if (i != last) {
+            setMax(i, moved);
+            siftDownMax(i);
+            if (maxHeap[i] == moved)
+                siftUpMax(i);
+        }
+    }
+
+    private void siftUpMin(int k) {
+        Node<E> node = minHeap[k];
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            Node<E> p = minHeap[parent];
+            if (compare(node, p) >= 0)
+                break;
+            setMin(k, p);
+            k = parent;
+        }
+        setMin(k, node);
+    }
+
+    private void siftDownMin(int k) {
+        Node<E> node = minHeap[k];
+        int half = count >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            int right = child + 1;
+            if (right < count && compare(minHeap[right], minHeap[child]) < 0)
+                child = right;
+            if (compare(node, minHeap[child]) <= 0)
+                break;
+            setMin(k, minHeap[child]);
+            k = child;
+        }
+        setMin(k, node);
+    }
+
+    private void siftUpMax(int k) {
+        Node<E> node = maxHeap[k];
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            Node<E> p = maxHeap[parent];
+            if (compare(node, p) <= 0)
+                break;
+            setMax(k, p);
+            k = parent;
+        }
+        setMax(k, node);
+    }
+
+    private void siftDownMax(int k) {
+        Node<E> node = maxHeap[k];
+        int half = count >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            int right = child + 1;
+            if (right < count && compare(maxHeap[right], maxHeap[child]) > 0)
+                child = right;
+            if (compare(node, maxHeap[child]) >= 0)
+                break;
+            setMax(k, maxHeap[child]);
+            k = child;
         }
-        return ret;
+        setMax(k, node);
     }
 }
@@ -14,6 +14,13 @@ import java.util.concurrent.RunnableFuture;
 
     }
 
+    /**
+     * 线程池已满，任务在执行之前被更高优先级的任务挤出队列时调用，任务不会再执行
+     */
+    public void onDiscarded() {
+
+    }
+
     public abstract RunnableFuture<T> newTaskFor();
 
     public abstract RunnableFuture<T> newTaskFor(T value);
@@ -18,7 +18,9 @@ import java.util.concurrent.FutureTask;
 
     @Override
     public void setPriority(int priority) {
-
+        if (mCallable != null && mCallable instanceof IPriorityInterface) {
+            ((IPriorityInterface) mCallable).setPriority(priority);
+        }
     }
 
     @Override
@@ -29,6 +31,15 @@ import java.util.concurrent.FutureTask;
         return Thread.NORM_PRIORITY;
     }
 
+    /**
+     * 任务被线程池丢弃，通知包装的任务
+     */
+    void onDiscarded() {
+        if (mCallable != null && mCallable instanceof CancelableCallable) {
+            ((CancelableCallable) mCallable).onDiscarded();
+        }
+    }
+
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
         try {
@@ -1,7 +1,6 @@
 package com.tom.basecore.thread;
 
 import com.tom.basecore.utlis.AppUtils;
-import com.tom.basecore.utlis.DebugLog;
 import com.tom.basecore.utlis.OSVersionUtils;
 
 import java.util.Comparator;
@@ -44,11 +43,9 @@ public class ThreadPoolManager {
         public int compare(Runnable lhs, Runnable rhs) {
             if (lhs instanceof IPriorityInterface && rhs instanceof IPriorityInterface) {
 
-                int result=((IPriorityInterface) rhs).getPriority()-((IPriorityInterface) lhs).getPriority();
-                DebugLog.d(TAG, "compare result:" + result);
-                return result;
+                //比较发生在队列锁内，每次入队出队都会调用O(log n)次，这里不要打日志
+                return ((IPriorityInterface) rhs).getPriority()-((IPriorityInterface) lhs).getPriority();
             }
-            DebugLog.d(TAG, "compare:0");
             return 0;
         }
     };
@@ -97,6 +94,21 @@ public class ThreadPoolManager {
      * @return
      */
     public static synchronized XThreadPoolExecutor createPriorityThreadPool(int core_pool_size, int max_pool_size, int task_queue_size, long keepAliveTime) {
+        return createPriorityThreadPool(core_pool_size, max_pool_size, task_queue_size, keepAliveTime, mHandler);
+    }
+
+    /**
+     * 创建指定配置的线程池，此线程池支持快速中断和优先级排序
+     * 线程池满时交给指定的{@link RejectedExecutionHandler}处理，而不是移除优先级最低的任务，
+     * 用于不能丢弃任务的场景
+     * @param core_pool_size
+     * @param max_pool_size
+     * @param task_queue_size
+     * @param keepAliveTime
+     * @param handler 线程池满时的处理策略
+     * @return
+     */
+    public static synchronized XThreadPoolExecutor createPriorityThreadPool(int core_pool_size, int max_pool_size, int task_queue_size, long keepAliveTime, RejectedExecutionHandler handler) {
         if (core_pool_size < 0 || max_pool_size < 0 || task_queue_size < 0 || keepAliveTime < 0) {
             throw new IllegalArgumentException("core_pool_size or max_pool_size or task_queue_size or keepAliveTime need greator than zero!! ");
         }
@@ -111,6 +123,40 @@ public class ThreadPoolManager {
             public Thread newThread(Runnable r) {
                 return new Thread(r, "PriorityThread#" + mCount.getAndIncrement());
             }
+        },handler);
+
+        if (OSVersionUtils.hasGingerbread()) {
+            //允许核心进程超时
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mExecutor;
+    }
+
+    /**
+     * 创建任务队列没有容量限制的线程池，此线程池支持快速中断和优先级排序
+     * <pre>
+     *     1、任务不会因为线程池已满被丢弃或者交给提交任务的线程执行，用于在主线程提交任务的场景
+     *     2、队列不会满，线程数固定为pool_size(按照cpu核数放大)，空闲超时后线程退出
+     * </pre>
+     * @param pool_size
+     * @param keepAliveTime
+     * @return
+     */
+    public static synchronized XThreadPoolExecutor createUnboundedPriorityThreadPool(int pool_size, long keepAliveTime) {
+        if (pool_size <= 0 || keepAliveTime < 0) {
+            throw new IllegalArgumentException("pool_size need greator than zero and keepAliveTime can not less than zero!! ");
+        }
+        int numCores = AppUtils.getNumCores();
+        BlockingQueue<Runnable> mPoolWorkQueue =
+                new BoundedPriorityBlockingQueue<Runnable>(Integer.MAX_VALUE, mCompartor);
+        XThreadPoolExecutor mExecutor = new XThreadPoolExecutor(numCores * pool_size, numCores * pool_size, numCores * keepAliveTime,
+                TimeUnit.SECONDS, mPoolWorkQueue, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "UnboundedPriorityThread#" + mCount.getAndIncrement());
+            }
         },mHandler);
 
         if (OSVersionUtils.hasGingerbread()) {
@@ -189,17 +235,57 @@ public class ThreadPoolManager {
         return mExecutor;
     }
 
+    /**
+     * 创建固定线程数的线程池，线程数不乘以处理器核数，空闲的线程超时后退出
+     * 此线程池支持优先级排序
+     * @param thread_name 线程名称的前缀
+     * @param pool_size 线程数
+     * @param task_queue_size 等待队列的长度
+     * @param keepAliveTime 线程最大的闲置时间，秒
+     * @return
+     */
+    public static synchronized XThreadPoolExecutor createBoundedThreadPool(final String thread_name, int pool_size, int task_queue_size, long keepAliveTime) {
+        if (pool_size <= 0 || task_queue_size < 0 || keepAliveTime <= 0) {
+            throw new IllegalArgumentException("pool_size or task_queue_size or keepAliveTime need greator than zero!! ");
+        }
+        BlockingQueue<Runnable> mPoolWorkQueue =
+                new BoundedPriorityBlockingQueue<Runnable>(Math.max(1, task_queue_size), mCompartor);
+        XThreadPoolExecutor mExecutor = new XThreadPoolExecutor(pool_size, pool_size, keepAliveTime,
+                TimeUnit.SECONDS, mPoolWorkQueue, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, thread_name + "#" + mCount.getAndIncrement());
+            }
+        },mHandler);
+        if (OSVersionUtils.hasGingerbread()) {
+            //允许核心进程超时
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        return mExecutor;
+    }
+
     /**
      * 当线程池满时，移除最低优先级的任务
      * @param r
      * @param executor
      */
     private static void removeLowestPriorityTask(Runnable r, ThreadPoolExecutor executor) {
+        Object discarded = r;
         if (!executor.isShutdown()) {
             BlockingQueue<Runnable> blockingQueue = executor.getQueue();
-            if (blockingQueue instanceof BoundedPriorityBlockingQueue && ((BoundedPriorityBlockingQueue) blockingQueue).removeMinPriority()) {
-                executor.execute(r);
+            if (blockingQueue instanceof BoundedPriorityBlockingQueue) {
+                Object removed = ((BoundedPriorityBlockingQueue) blockingQueue).pollMinPriority();
+                if (removed != null) {
+                    executor.execute(r);
+                    discarded = removed;
+                }
             }
         }
+        //被丢弃的任务不会再执行，通知任务做清理，避免依赖它的请求一直等待
+        if (discarded instanceof PriorityFutureTask) {
+            ((PriorityFutureTask) discarded).onDiscarded();
+        }
     }
 }
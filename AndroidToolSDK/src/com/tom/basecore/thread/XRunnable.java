@@ -52,5 +52,11 @@ public abstract class XRunnable<T> extends CancelableCallable<T> implements Runn
                 task.setPriority(priority);
             super.setPriority(priority);
         }
+
+        @Override
+        public void onDiscarded() {
+            if(task!=null)
+                task.onDiscarded();
+        }
     }
 }
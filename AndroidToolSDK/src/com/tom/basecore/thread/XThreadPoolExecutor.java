@@ -5,6 +5,7 @@ import com.tom.basecore.utlis.DebugLog;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadFactory;
@@ -48,6 +49,24 @@ public class XThreadPoolExecutor extends ThreadPoolExecutor {
         return super.newTaskFor(runnable, value);
     }
 
+    /**
+     * 修改已经提交的任务的优先级，如果任务还在等待队列中，会立即按照新的优先级重新排序
+     * @param task {@link #submit(Callable)}等方法返回的Future
+     * @param priority 新的优先级，值越大越先执行
+     * @return 任务还在等待队列中并且已经重新排序返回true，否则返回false
+     */
+    public boolean setTaskPriority(Future<?> task, int priority) {
+        if (!(task instanceof IPriorityInterface)) {
+            return false;
+        }
+        BlockingQueue<Runnable> queue = getQueue();
+        if (queue instanceof BoundedPriorityBlockingQueue) {
+            return ((BoundedPriorityBlockingQueue<Runnable>) queue).updatePriority(task, priority);
+        }
+        ((IPriorityInterface) task).setPriority(priority);
+        return false;
+    }
+
     @Override
     protected void beforeExecute(Thread t, Runnable r) {
         super.beforeExecute(t, r);